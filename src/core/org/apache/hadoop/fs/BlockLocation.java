@@ -20,6 +20,7 @@ package org.apache.hadoop.fs;
 import org.apache.hadoop.io.*;
 
 import java.io.*;
+import org.apache.hadoop.spatial.BlockStatistics;
 import org.apache.hadoop.spatial.CellInfo;
 import org.apache.hadoop.spatial.Rectangle;
 import org.apache.hadoop.spatial.Shape;
@@ -45,6 +46,9 @@ public class BlockLocation implements Writable, Shape {
   private long offset;  //offset of the of the block in the file
   private long length;
   private CellInfo cellInfo; // Location of grid cell associated with this block
+  // Statistics of data in this block. Not serialized as it is loaded from
+  // the sidecar file of the block statistics on the client side
+  private BlockStatistics statistics;
 
   /**
    * Default Constructor
@@ -278,6 +282,19 @@ public class BlockLocation implements Writable, Shape {
     return cellInfo;
   }
 
+  public void setStatistics(BlockStatistics statistics) {
+    this.statistics = statistics;
+  }
+
+  /**
+   * Returns statistics of the data in this block or <code>null</code> if not
+   * available.
+   * @see FileSystem#getBlockStatistics(FileStatus)
+   */
+  public BlockStatistics getStatistics() {
+    return statistics;
+  }
+
   @Override
   public Text toText(Text text) {
     throw new RuntimeException("Not implemented");
@@ -293,6 +310,11 @@ public class BlockLocation implements Writable, Shape {
     return cellInfo == null ? null : cellInfo.getMBR();
   }
 
+  @Override
+  public Rectangle getMBR(Rectangle mbr) {
+    return cellInfo == null ? null : cellInfo.getMBR(mbr);
+  }
+
   @Override
   public double distanceTo(long x, long y) {
     return cellInfo == null ? -1 : cellInfo.distanceTo(x, y);
@@ -313,6 +335,7 @@ public class BlockLocation implements Writable, Shape {
     c.offset = this.offset;
     c.length = this.length;
     c.cellInfo = this.cellInfo == null? null : this.cellInfo.clone();
+    c.statistics = this.statistics;
     return c;
   }
 }
@@ -44,6 +44,7 @@ import org.apache.hadoop.net.NetUtils;
 import org.apache.hadoop.security.SecurityUtil;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hadoop.security.token.Token;
+import org.apache.hadoop.spatial.BlockStatistics;
 import org.apache.hadoop.spatial.CellInfo;
 import org.apache.hadoop.spatial.SimpleSpatialIndex;
 
@@ -423,12 +424,114 @@ public abstract class FileSystem extends Configured implements Closeable {
   public SimpleSpatialIndex<BlockLocation> getGlobalIndex(FileStatus file)
       throws IOException {
     BlockLocation[] blocks = getFileBlockLocations(file, 0, file.getLen());
+    BlockStatistics[] stats = getBlockStatistics(file);
+    if (stats != null) {
+      // Attach statistics to blocks. Both are sorted by offset.
+      int i_stat = 0;
+      for (BlockLocation block : blocks) {
+        while (i_stat < stats.length &&
+            stats[i_stat].getOffset() < block.getOffset())
+          i_stat++;
+        if (i_stat < stats.length &&
+            stats[i_stat].getOffset() == block.getOffset())
+          block.setStatistics(stats[i_stat]);
+      }
+    }
     SimpleSpatialIndex<BlockLocation> gIndex =
         new SimpleSpatialIndex<BlockLocation>();
     gIndex.bulkLoad(blocks);
     return gIndex;
   }
   
+  /**
+   * Returns the path of the sidecar file that stores statistics of the
+   * blocks of the given file.
+   * @param f
+   * @return
+   */
+  public static Path getBlockStatisticsPath(Path f) {
+    return new Path(f.getParent(), "."+f.getName()+".stats");
+  }
+  
+  /**
+   * Deletes a file along with the sidecar file of its block statistics.
+   * Files that might have statistics should be deleted or replaced using
+   * this method so that statistics of an older file are never used for a
+   * newer file with the same name.
+   * @param f
+   * @param recursive
+   * @return
+   * @throws IOException
+   */
+  public boolean deleteWithStatistics(Path f, boolean recursive)
+      throws IOException {
+    delete(getBlockStatisticsPath(f), false);
+    return delete(f, recursive);
+  }
+  
+  /**Returns the number of blocks of the given file*/
+  private int getBlockCount(FileStatus fileStatus) throws IOException {
+    BlockLocation[] blocks =
+        getFileBlockLocations(fileStatus, 0, fileStatus.getLen());
+    return blocks == null ? 0 : blocks.length;
+  }
+  
+  /**
+   * Stores statistics of the blocks of the given file in its sidecar file.
+   * The file must be completely written before its statistics are stored.
+   * @param f
+   * @param stats - statistics of blocks sorted by offset
+   * @throws IOException
+   */
+  public void setBlockStatistics(Path f, BlockStatistics[] stats)
+      throws IOException {
+    FileStatus fileStatus = getFileStatus(f);
+    FSDataOutputStream out = create(getBlockStatisticsPath(f), true);
+    // The length, modification time and number of blocks of the file are
+    // stored to detect outdated statistics. Grid files are a whole number of
+    // blocks so a replaced file might have exactly the same length.
+    out.writeLong(fileStatus.getLen());
+    out.writeLong(fileStatus.getModificationTime());
+    out.writeInt(getBlockCount(fileStatus));
+    out.writeInt(stats.length);
+    for (BlockStatistics stat : stats)
+      stat.write(out);
+    out.close();
+  }
+  
+  /**
+   * Returns statistics of the blocks of the given file as written by
+   * {@link #setBlockStatistics(Path, BlockStatistics[])}. If the file has no
+   * statistics or the stored statistics are outdated, a <code>null</code>
+   * is returned.
+   * @param file
+   * @return - statistics of blocks sorted by offset or <code>null</code>
+   * @throws IOException
+   */
+  public BlockStatistics[] getBlockStatistics(FileStatus file)
+      throws IOException {
+    Path statsPath = getBlockStatisticsPath(file.getPath());
+    if (!exists(statsPath))
+      return null;
+    FSDataInputStream in = open(statsPath);
+    try {
+      if (in.readLong() != file.getLen() ||
+          in.readLong() != file.getModificationTime() ||
+          in.readInt() != getBlockCount(file)) {
+        LOG.warn("Ignoring outdated block statistics of "+file.getPath());
+        return null;
+      }
+      BlockStatistics[] stats = new BlockStatistics[in.readInt()];
+      for (int i = 0; i < stats.length; i++) {
+        stats[i] = new BlockStatistics();
+        stats[i].readFields(in);
+      }
+      return stats;
+    } finally {
+      in.close();
+    }
+  }
+  
   /**
    * Opens an FSDataInputStream at the indicated Path.
    * @param f the file name to open
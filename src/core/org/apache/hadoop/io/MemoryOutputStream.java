@@ -13,6 +13,14 @@ public class MemoryOutputStream extends ByteArrayOutputStream {
     return count;
   }
 
+  /**
+   * Returns the buffer that holds the written data. Only the first
+   * {@link #getLength()} bytes are valid.
+   */
+  public byte[] getBuffer() {
+    return buf;
+  }
+
   public void clear() {
     count = 0;
   }
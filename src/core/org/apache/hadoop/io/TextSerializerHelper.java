@@ -301,6 +301,38 @@ public final class TextSerializerHelper {
     return negative ? -i : i;
   }
   
+  /**
+   * Returns the position right after the decimal long that starts at the
+   * given offset. Unlike {@link #consumeLong(Text, char)}, the given bytes
+   * are not modified.
+   * @param bytes
+   * @param offset - position of the first character of the long
+   * @param end - position right after the last character to check
+   * @return
+   */
+  public static int skipLong(byte[] bytes, int offset, int end) {
+    while (offset < end && DecimalChars[bytes[offset] & 0xff])
+      offset++;
+    return offset;
+  }
+  
+  /**
+   * Returns the position of the first occurrence of the separator at or
+   * after the given offset or end if the separator is not found.
+   * The given bytes are not modified.
+   * @param bytes
+   * @param offset
+   * @param end
+   * @param separator
+   * @return
+   */
+  public static int skipToSeparator(byte[] bytes, int offset, int end,
+      char separator) {
+    while (offset < end && bytes[offset] != separator)
+      offset++;
+    return offset;
+  }
+  
   public static long consumeLong(Text text, char separator) {
     int i = 0;
     byte[] bytes = text.getBytes();
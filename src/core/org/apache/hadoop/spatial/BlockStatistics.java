@@ -0,0 +1,226 @@
+package org.apache.hadoop.spatial;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * Statistics of the data stored in one block of a grid file. These are
+ * collected while the file is written and stored in a sidecar file next to
+ * it. They include the actual MBR of the data which could be much smaller
+ * than the cell of the block, the number of records, the total size of
+ * records in bytes and a small histogram that counts records by their
+ * centers in a uniform grid over the cell.
+ * @author eldawy
+ *
+ */
+public class BlockStatistics implements Writable {
+  /**Number of histogram buckets along each axis*/
+  public static final int HistogramSize = 4;
+
+  /**Offset of the block in the file*/
+  private long offset;
+
+  /**The cell of the block. The histogram covers the area of this cell.*/
+  private CellInfo cellInfo;
+
+  /**The MBR of all records in the block*/
+  private long x1, y1, x2, y2;
+
+  /**Number of records in the block*/
+  private long recordCount;
+
+  /**Total size of all records in bytes*/
+  private long size;
+
+  /**Number of records in each bucket of the histogram stored row by row*/
+  private final int[] histogram = new int[HistogramSize * HistogramSize];
+
+  public BlockStatistics() {
+    this(new CellInfo());
+  }
+
+  public BlockStatistics(CellInfo cellInfo) {
+    this.cellInfo = cellInfo;
+    x1 = y1 = Long.MAX_VALUE;
+    x2 = y2 = Long.MIN_VALUE;
+  }
+
+  /**
+   * Adds a record to the statistics of this block
+   * @param mbr - the MBR of the record
+   * @param recordSize - size of the record in bytes
+   */
+  public void addRecord(Rectangle mbr, int recordSize) {
+    if (mbr.getX1() < x1) x1 = mbr.getX1();
+    if (mbr.getY1() < y1) y1 = mbr.getY1();
+    if (mbr.getX2() > x2) x2 = mbr.getX2();
+    if (mbr.getY2() > y2) y2 = mbr.getY2();
+    int col = getBucket(mbr.x + mbr.width / 2, cellInfo.x, cellInfo.width);
+    int row = getBucket(mbr.y + mbr.height / 2, cellInfo.y, cellInfo.height);
+    histogram[row * HistogramSize + col]++;
+    recordCount++;
+    size += recordSize;
+  }
+
+  /**
+   * Returns the bucket index that contains the given coordinate along one
+   * axis. Coordinates outside the cell are put in the nearest bucket.
+   */
+  private static int getBucket(long coord, long cellStart, long cellSize) {
+    if (cellSize <= 0)
+      return 0;
+    int bucket = (int) ((double) (coord - cellStart) * HistogramSize / cellSize);
+    return Math.max(0, Math.min(HistogramSize - 1, bucket));
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  public void setOffset(long offset) {
+    this.offset = offset;
+  }
+
+  public CellInfo getCellInfo() {
+    return cellInfo;
+  }
+
+  /**
+   * Returns the MBR of all records in the block or <code>null</code> if the
+   * block has no records.
+   * @return
+   */
+  public Rectangle getMBR() {
+    return recordCount == 0 ? null : new Rectangle(x1, y1, x2 - x1, y2 - y1);
+  }
+
+  public long getRecordCount() {
+    return recordCount;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Returns number of records whose centers fall in the given bucket
+   * @param col
+   * @param row
+   * @return
+   */
+  public int getHistogramCount(int col, int row) {
+    return histogram[row * HistogramSize + col];
+  }
+
+  /**
+   * Whether any record in this block could overlap the given shape or not.
+   * @param s
+   * @return
+   */
+  public boolean isIntersected(Shape s) {
+    if (recordCount == 0)
+      return false;
+    // Expand the MBR by one unit to be safe with records of zero width or
+    // height on its edges
+    return s.isIntersected(new Rectangle(x1, y1, x2 - x1 + 1, y2 - y1 + 1));
+  }
+
+  /**
+   * Whether the data in this block could overlap the data in the given block
+   * or not. Records touching at the edges are considered overlapping.
+   * @param other
+   * @return
+   */
+  public boolean isIntersected(BlockStatistics other) {
+    return recordCount > 0 && other.recordCount > 0 &&
+        x2 >= other.x1 && other.x2 >= x1 && y2 >= other.y1 && other.y2 >= y1;
+  }
+
+  /**
+   * Estimates the number of records in this block that overlap the MBR of
+   * the given range. Records of each bucket are assumed to be uniformly
+   * distributed over the part of the bucket covered by the data MBR.
+   * @param range
+   * @return
+   */
+  public double estimateRecordCount(Shape range) {
+    if (recordCount == 0)
+      return 0;
+    Rectangle rangeMBR = range.getMBR();
+    double qx1 = Math.max(rangeMBR.getX1(), x1);
+    double qy1 = Math.max(rangeMBR.getY1(), y1);
+    double qx2 = Math.min(rangeMBR.getX2(), x2);
+    double qy2 = Math.min(rangeMBR.getY2(), y2);
+    if (qx1 > qx2 || qy1 > qy2)
+      return 0;
+    double estimate = 0;
+    double bucketWidth = (double) cellInfo.width / HistogramSize;
+    double bucketHeight = (double) cellInfo.height / HistogramSize;
+    for (int row = 0; row < HistogramSize; row++) {
+      for (int col = 0; col < HistogramSize; col++) {
+        int count = histogram[row * HistogramSize + col];
+        if (count == 0)
+          continue;
+        // Part of the bucket covered by data. Buckets at the edges extend
+        // to cover records with centers outside the cell.
+        double bx1 = col == 0 ? x1 : Math.max(x1, cellInfo.x + col * bucketWidth);
+        double bx2 = col == HistogramSize - 1 ? x2 :
+          Math.min(x2, cellInfo.x + (col + 1) * bucketWidth);
+        double by1 = row == 0 ? y1 : Math.max(y1, cellInfo.y + row * bucketHeight);
+        double by2 = row == HistogramSize - 1 ? y2 :
+          Math.min(y2, cellInfo.y + (row + 1) * bucketHeight);
+        estimate += count * overlapRatio(bx1, bx2, qx1, qx2) *
+            overlapRatio(by1, by2, qy1, qy2);
+      }
+    }
+    return estimate;
+  }
+
+  /**
+   * Returns the ratio of the interval [b1, b2] that overlaps [q1, q2]
+   */
+  private static double overlapRatio(double b1, double b2, double q1,
+      double q2) {
+    if (b2 <= b1)
+      return b1 >= q1 && b1 <= q2 ? 1.0 : 0.0;
+    double overlap = Math.min(b2, q2) - Math.max(b1, q1);
+    return overlap <= 0 ? 0.0 : overlap / (b2 - b1);
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeLong(offset);
+    cellInfo.write(out);
+    out.writeLong(recordCount);
+    out.writeLong(size);
+    out.writeLong(x1);
+    out.writeLong(y1);
+    out.writeLong(x2);
+    out.writeLong(y2);
+    for (int count : histogram)
+      out.writeInt(count);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    offset = in.readLong();
+    cellInfo.readFields(in);
+    recordCount = in.readLong();
+    size = in.readLong();
+    x1 = in.readLong();
+    y1 = in.readLong();
+    x2 = in.readLong();
+    y2 = in.readLong();
+    for (int i = 0; i < histogram.length; i++)
+      histogram[i] = in.readInt();
+  }
+
+  @Override
+  public String toString() {
+    return "Block at "+offset+" "+cellInfo+" records: "+recordCount+
+        " size: "+size+" MBR: "+getMBR();
+  }
+}
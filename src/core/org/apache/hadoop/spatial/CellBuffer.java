@@ -0,0 +1,195 @@
+package org.apache.hadoop.spatial;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Buffers the data of one cell before it is written to the file system.
+ * Data is kept in memory as long as the memory budget shared by all buffers
+ * of one writer allows. Once the budget is exceeded, the buffer spills its
+ * contents to a local temporary file and continues writing there. This
+ * allows building the local index of a cell from its data without writing
+ * the data to the output file system and reading it back.
+ * @author eldawy
+ *
+ */
+public class CellBuffer extends OutputStream {
+  public static final Log LOG = LogFactory.getLog(CellBuffer.class);
+
+  /**Initial size of the memory buffer*/
+  private static final int InitialCapacity = 64 * 1024;
+
+  /**The cell this buffer holds data for*/
+  private final CellInfo cellInfo;
+
+  /**Memory available to all buffers sharing the same budget*/
+  private final AtomicLong availableMemory;
+
+  /**In-memory data. Set to null when the buffer spills to disk*/
+  private byte[] data;
+
+  /**Number of bytes written to this buffer*/
+  private int length;
+
+  /**The local file that holds the data after spilling*/
+  private File spillFile;
+
+  /**An output stream open on the spill file*/
+  private OutputStream spillOut;
+
+  /**
+   * Creates a new buffer for the given cell
+   * @param cellInfo - the cell this buffer holds data for
+   * @param availableMemory - the memory budget shared with other buffers
+   */
+  public CellBuffer(CellInfo cellInfo, AtomicLong availableMemory) {
+    this.cellInfo = cellInfo;
+    this.availableMemory = availableMemory;
+  }
+
+  public CellInfo getCellInfo() {
+    return cellInfo;
+  }
+
+  /**Number of bytes written to this buffer*/
+  public int getLength() {
+    return length;
+  }
+
+  /**Whether the data of this buffer has been spilled to disk or not*/
+  public boolean isSpilled() {
+    return spillFile != null;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (spillOut == null && ensureCapacity(length + 1)) {
+      data[length] = (byte) b;
+    } else {
+      spillOut.write(b);
+    }
+    length++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (spillOut == null && ensureCapacity(length + len)) {
+      System.arraycopy(b, off, data, length, len);
+    } else {
+      spillOut.write(b, off, len);
+    }
+    length += len;
+  }
+
+  /**
+   * Makes sure the memory buffer can hold the given number of bytes. If the
+   * memory budget does not allow expanding it, the buffer is spilled to disk.
+   * @param capacity
+   * @return - <code>true</code> if data can be written to memory
+   * @throws IOException - if an error happens while spilling to disk
+   */
+  private boolean ensureCapacity(int capacity) throws IOException {
+    int currentCapacity = data == null ? 0 : data.length;
+    if (capacity <= currentCapacity)
+      return true;
+    int newCapacity = Math.max(capacity,
+        Math.max(InitialCapacity, currentCapacity * 2));
+    if (reserveMemory(newCapacity - currentCapacity)) {
+      byte[] newData = new byte[newCapacity];
+      if (data != null)
+        System.arraycopy(data, 0, newData, 0, length);
+      data = newData;
+      return true;
+    }
+    spill();
+    return false;
+  }
+
+  /**
+   * Reserves the given number of bytes from the shared memory budget
+   * @param bytes
+   * @return - <code>true</code> if the memory is reserved
+   */
+  private boolean reserveMemory(long bytes) {
+    long available;
+    do {
+      available = availableMemory.get();
+      if (available < bytes)
+        return false;
+    } while (!availableMemory.compareAndSet(available, available - bytes));
+    return true;
+  }
+
+  /**
+   * Moves all data in memory to a local temporary file and frees the memory
+   * @throws IOException
+   */
+  private void spill() throws IOException {
+    spillFile = File.createTempFile("cell", ".spill");
+    spillFile.deleteOnExit();
+    LOG.info("Spilling "+length+" bytes of "+cellInfo+" to "+spillFile);
+    spillOut = new BufferedOutputStream(new FileOutputStream(spillFile),
+        InitialCapacity);
+    if (data != null) {
+      spillOut.write(data, 0, length);
+      availableMemory.addAndGet(data.length);
+      data = null;
+    }
+  }
+
+  /**
+   * Returns all data written to this buffer. For buffers kept in memory, the
+   * returned array is the buffer itself and could be longer than
+   * {@link #getLength()}. Spilled data is read back from disk.
+   * @return
+   * @throws IOException
+   */
+  public byte[] getData() throws IOException {
+    if (spillFile == null)
+      return data == null ? new byte[0] : data;
+    spillOut.flush();
+    byte[] spilledData = new byte[length];
+    InputStream in = new FileInputStream(spillFile);
+    try {
+      int bytesRead = 0;
+      while (bytesRead < length) {
+        int n = in.read(spilledData, bytesRead, length - bytesRead);
+        if (n < 0)
+          throw new IOException("Spill file "+spillFile+" is truncated");
+        bytesRead += n;
+      }
+    } finally {
+      in.close();
+    }
+    return spilledData;
+  }
+
+  /**
+   * Frees all memory and disk space used by this buffer. The buffer should
+   * not be used after calling this method.
+   */
+  public void release() throws IOException {
+    if (data != null) {
+      availableMemory.addAndGet(data.length);
+      data = null;
+    }
+    if (spillOut != null) {
+      spillOut.close();
+      spillOut = null;
+    }
+    if (spillFile != null) {
+      if (!spillFile.delete())
+        LOG.warn("Could not delete spill file "+spillFile);
+      spillFile = null;
+    }
+  }
+}
@@ -0,0 +1,348 @@
+package org.apache.hadoop.spatial;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A read-only index over a set of cells used to route records to the cells
+ * they overlap. If the cells form a grid, e.g., cells created by
+ * {@link GridInfo#getAllCells()}, overlapping cells are found directly from
+ * the column and row boundaries of the grid. Otherwise, e.g., cells packed
+ * using an R-tree, the cells are packed in a small R-tree using the STR
+ * algorithm. Searching the index does not create any objects. The index is
+ * immutable once built and can be searched by multiple threads at the same
+ * time.
+ * @author eldawy
+ *
+ */
+public class CellIndex {
+  /**Maximum number of entries in one node of the tree*/
+  private static final int Degree = 16;
+
+  /**
+   * Coordinates of the entries at each level of the tree. Level zero holds
+   * the cells themselves. Entry i at level l covers entries
+   * [i * Degree, (i + 1) * Degree) at level l - 1. The last level has
+   * exactly one entry which is the root.
+   */
+  private final long[][] x1s, y1s, x2s, y2s;
+
+  /**Number of entries at each level*/
+  private final int[] levelSizes;
+
+  /**IDs of the cells in the order they are stored at level zero*/
+  private final int[] cellIds;
+
+  /**
+   * Boundaries of columns and rows if the cells form a grid. Column i spans
+   * the range [xBoundaries[i], xBoundaries[i+1]). Null if cells are not a
+   * grid.
+   */
+  private long[] xBoundaries, yBoundaries;
+
+  /**IDs of grid cells stored column by column*/
+  private int[] gridCellIds;
+
+  /**All cells sorted by ID to find a cell given its ID*/
+  private final CellInfo[] cellsById;
+
+  /**
+   * Builds an index over the given cells. Null entries are skipped.
+   * @param cells
+   */
+  public CellIndex(CellInfo[] cells) {
+    int numCells = 0;
+    for (CellInfo cell : cells)
+      if (cell != null)
+        numCells++;
+    CellInfo[] sorted = new CellInfo[numCells];
+    numCells = 0;
+    for (CellInfo cell : cells)
+      if (cell != null)
+        sorted[numCells++] = cell;
+    cellsById = sorted.clone();
+    Arrays.sort(cellsById, new Comparator<CellInfo>() {
+      @Override
+      public int compare(CellInfo c1, CellInfo c2) {
+        return c1.cellId < c2.cellId ? -1 : (c1.cellId > c2.cellId ? 1 : 0);
+      }
+    });
+    buildGrid(sorted);
+    packSTR(sorted);
+
+    // Number of levels needed to reach a single root
+    int numLevels = 1;
+    for (int size = numCells; size > 1; size = (size + Degree - 1) / Degree)
+      numLevels++;
+    if (numCells == 0)
+      numLevels = 1;
+    x1s = new long[numLevels][];
+    y1s = new long[numLevels][];
+    x2s = new long[numLevels][];
+    y2s = new long[numLevels][];
+    levelSizes = new int[numLevels];
+
+    cellIds = new int[numCells];
+    allocateLevel(0, numCells);
+    for (int i = 0; i < numCells; i++) {
+      cellIds[i] = (int) sorted[i].cellId;
+      x1s[0][i] = sorted[i].getX1();
+      y1s[0][i] = sorted[i].getY1();
+      x2s[0][i] = sorted[i].getX2();
+      y2s[0][i] = sorted[i].getY2();
+    }
+    for (int level = 1; level < numLevels; level++) {
+      int childSize = levelSizes[level - 1];
+      allocateLevel(level, (childSize + Degree - 1) / Degree);
+      for (int node = 0; node < levelSizes[level]; node++) {
+        long x1 = Long.MAX_VALUE, y1 = Long.MAX_VALUE;
+        long x2 = Long.MIN_VALUE, y2 = Long.MIN_VALUE;
+        int end = Math.min(childSize, (node + 1) * Degree);
+        for (int child = node * Degree; child < end; child++) {
+          x1 = Math.min(x1, x1s[level - 1][child]);
+          y1 = Math.min(y1, y1s[level - 1][child]);
+          x2 = Math.max(x2, x2s[level - 1][child]);
+          y2 = Math.max(y2, y2s[level - 1][child]);
+        }
+        x1s[level][node] = x1;
+        y1s[level][node] = y1;
+        x2s[level][node] = x2;
+        y2s[level][node] = y2;
+      }
+    }
+  }
+
+  /**
+   * Checks whether the given cells form a grid where every cell covers
+   * exactly one column and one row. If so, boundaries of columns and rows
+   * are stored to search the grid directly.
+   * @param cells
+   */
+  private void buildGrid(CellInfo[] cells) {
+    if (cells.length < 2)
+      return;
+    long[] xs = distinctStarts(cells, true);
+    long[] ys = distinctStarts(cells, false);
+    int columns = xs.length - 1, rows = ys.length - 1;
+    if ((long) columns * rows != cells.length)
+      return;
+    int[] ids = new int[cells.length];
+    boolean[] filled = new boolean[cells.length];
+    for (CellInfo cell : cells) {
+      int col = Arrays.binarySearch(xs, cell.getX1());
+      int row = Arrays.binarySearch(ys, cell.getY1());
+      if (col >= columns || row >= rows || cell.getX2() != xs[col + 1] ||
+          cell.getY2() != ys[row + 1] || filled[col * rows + row])
+        return;
+      filled[col * rows + row] = true;
+      ids[col * rows + row] = (int) cell.cellId;
+    }
+    xBoundaries = xs;
+    yBoundaries = ys;
+    gridCellIds = ids;
+  }
+
+  /**
+   * Returns the sorted distinct starts of the given cells along one axis
+   * followed by the maximum end of all cells.
+   */
+  private static long[] distinctStarts(CellInfo[] cells, boolean x) {
+    long[] starts = new long[cells.length + 1];
+    long maxEnd = Long.MIN_VALUE;
+    for (int i = 0; i < cells.length; i++) {
+      starts[i] = x ? cells[i].getX1() : cells[i].getY1();
+      maxEnd = Math.max(maxEnd, x ? cells[i].getX2() : cells[i].getY2());
+    }
+    Arrays.sort(starts, 0, cells.length);
+    int count = 0;
+    for (int i = 0; i < cells.length; i++)
+      if (count == 0 || starts[i] != starts[count - 1])
+        starts[count++] = starts[i];
+    if (maxEnd <= starts[count - 1])
+      return new long[] {starts[0]}; // Not a valid grid
+    starts[count++] = maxEnd;
+    return Arrays.copyOf(starts, count);
+  }
+
+  private void allocateLevel(int level, int size) {
+    levelSizes[level] = size;
+    x1s[level] = new long[size];
+    y1s[level] = new long[size];
+    x2s[level] = new long[size];
+    y2s[level] = new long[size];
+  }
+
+  /**
+   * Sorts the given cells in the Sort-Tile-Recursive order so that
+   * consecutive groups of cells are spatially close to each other.
+   * @param cells
+   */
+  private static void packSTR(CellInfo[] cells) {
+    int numLeaves = (cells.length + Degree - 1) / Degree;
+    int numSlices = (int) Math.ceil(Math.sqrt(numLeaves));
+    if (numSlices <= 1)
+      return;
+    Arrays.sort(cells, new Comparator<CellInfo>() {
+      @Override
+      public int compare(CellInfo c1, CellInfo c2) {
+        long diff = (c1.getX1() + c1.getX2()) / 2 - (c2.getX1() + c2.getX2()) / 2;
+        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+      }
+    });
+    int sliceSize = numSlices * Degree;
+    Comparator<CellInfo> yComparator = new Comparator<CellInfo>() {
+      @Override
+      public int compare(CellInfo c1, CellInfo c2) {
+        long diff = (c1.getY1() + c1.getY2()) / 2 - (c2.getY1() + c2.getY2()) / 2;
+        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+      }
+    };
+    for (int start = 0; start < cells.length; start += sliceSize)
+      Arrays.sort(cells, start, Math.min(cells.length, start + sliceSize),
+          yComparator);
+  }
+
+  /**Number of cells in this index*/
+  public int getCellCount() {
+    return cellIds.length;
+  }
+
+  /**Whether the cells form a grid that is searched directly or not*/
+  public boolean isGrid() {
+    return xBoundaries != null;
+  }
+
+  /**
+   * Returns the cell with the given ID or <code>null</code> if not found
+   * @param cellId
+   * @return
+   */
+  public CellInfo getCell(long cellId) {
+    int low = 0, high = cellsById.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (cellsById[mid].cellId < cellId)
+        low = mid + 1;
+      else if (cellsById[mid].cellId > cellId)
+        high = mid - 1;
+      else
+        return cellsById[mid];
+    }
+    return null;
+  }
+
+  /**
+   * Finds all cells that overlap the given rectangle. The same test of
+   * {@link Rectangle#isIntersected(Shape)} is used where cells that only
+   * touch the rectangle at the edges are not considered overlapping.
+   * @param mbr
+   * @param result - receives the IDs of the overlapping cells. Must be able
+   *   to hold {@link #getCellCount()} IDs.
+   * @return - number of overlapping cells
+   */
+  public int search(Rectangle mbr, int[] result) {
+    if (cellIds.length == 0)
+      return 0;
+    if (xBoundaries != null)
+      return searchGrid(mbr.getX1(), mbr.getY1(), mbr.getX2(), mbr.getY2(),
+          result);
+    int root = levelSizes.length - 1;
+    if (root == 0) {
+      // Only one cell
+      return overlaps(0, 0, mbr.getX1(), mbr.getY1(), mbr.getX2(), mbr.getY2()) ?
+          store(result, 0, 0) : 0;
+    }
+    return search(root, 0, mbr.getX1(), mbr.getY1(), mbr.getX2(), mbr.getY2(),
+        result, 0);
+  }
+
+  /**
+   * Searches the grid of cells for cells overlapping the given range
+   * @return - number of overlapping cells
+   */
+  private int searchGrid(long qx1, long qy1, long qx2, long qy2,
+      int[] result) {
+    int col1 = firstOverlapping(xBoundaries, qx1);
+    int col2 = lastOverlapping(xBoundaries, qx2);
+    int row1 = firstOverlapping(yBoundaries, qy1);
+    int row2 = lastOverlapping(yBoundaries, qy2);
+    int rows = yBoundaries.length - 1;
+    int count = 0;
+    for (int col = col1; col <= col2; col++)
+      for (int row = row1; row <= row2; row++)
+        result[count++] = gridCellIds[col * rows + row];
+    return count;
+  }
+
+  /**
+   * Returns the index of the interval [bounds[i], bounds[i+1]) that contains
+   * the given value. The index is first estimated assuming equal intervals
+   * and then corrected. The value must be in the range
+   * [bounds[0], bounds[bounds.length - 1]).
+   */
+  private static int findInterval(long[] bounds, long value) {
+    int count = bounds.length - 1;
+    int i = (int) ((double) (value - bounds[0]) * count /
+        (bounds[count] - bounds[0]));
+    i = Math.max(0, Math.min(count - 1, i));
+    while (bounds[i] > value)
+      i--;
+    while (bounds[i + 1] <= value)
+      i++;
+    return i;
+  }
+
+  /**
+   * Returns the first interval that ends after the given value or
+   * bounds.length - 1 if none
+   */
+  private static int firstOverlapping(long[] bounds, long value) {
+    if (value < bounds[0])
+      return 0;
+    if (value >= bounds[bounds.length - 1])
+      return bounds.length - 1;
+    return findInterval(bounds, value);
+  }
+
+  /**
+   * Returns the last interval that starts before the given value or -1 if
+   * none
+   */
+  private static int lastOverlapping(long[] bounds, long value) {
+    if (value <= bounds[0])
+      return -1;
+    if (value > bounds[bounds.length - 1])
+      return bounds.length - 2;
+    int i = findInterval(bounds, value - 1);
+    return i;
+  }
+
+  private int store(int[] result, int count, int entry) {
+    result[count++] = cellIds[entry];
+    return count;
+  }
+
+  private boolean overlaps(int level, int entry, long qx1, long qy1, long qx2,
+      long qy2) {
+    return x2s[level][entry] > qx1 && qx2 > x1s[level][entry] &&
+        y2s[level][entry] > qy1 && qy2 > y1s[level][entry];
+  }
+
+  /**
+   * Searches the children of the given node
+   * @return - the new number of cells in the result
+   */
+  private int search(int level, int node, long qx1, long qy1, long qx2,
+      long qy2, int[] result, int count) {
+    int end = Math.min(levelSizes[level - 1], (node + 1) * Degree);
+    for (int child = node * Degree; child < end; child++) {
+      if (overlaps(level - 1, child, qx1, qy1, qx2, qy2)) {
+        if (level == 1)
+          count = store(result, count, child);
+        else
+          count = search(level - 1, child, qx1, qy1, qx2, qy2, result, count);
+      }
+    }
+    return count;
+  }
+}
@@ -113,4 +113,12 @@ public class CellInfo extends Rectangle implements WritableComparable<CellInfo>
     this.cellId = TextSerializerHelper.consumeLong(text, ',');
     super.fromText(text);
   }
+  
+  @Override
+  public Rectangle parseMBR(Text text, Rectangle mbr) {
+    // Skip the cell ID
+    byte[] bytes = text.getBytes();
+    int offset = TextSerializerHelper.skipLong(bytes, 0, text.getLength()) + 1;
+    return parseMBR(bytes, offset, text.getLength(), mbr);
+  }
 }
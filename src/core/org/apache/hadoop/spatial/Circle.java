@@ -20,6 +20,9 @@ public class Circle extends Arc2D.Double implements Shape {
    */
   private static final long serialVersionUID = 9221371239739890276L;
 
+  /**A temporary rectangle used to retrieve the MBR of other shapes*/
+  private transient Rectangle tempMBR;
+
   /**
    * Default constructor to allow construction then deserialization
    */
@@ -86,7 +89,7 @@ public class Circle extends Arc2D.Double implements Shape {
     set(x, y, r);
   }
   
-  private double getRadius() {
+  public double getRadius() {
     return getWidth() / 2.0;
   }
   
@@ -100,6 +103,13 @@ public class Circle extends Arc2D.Double implements Shape {
     return new Rectangle((long)getMinX(), (long)getMinY(),
         (long)getWidth(), (long)getHeight());
   }
+  
+  @Override
+  public Rectangle getMBR(Rectangle mbr) {
+    mbr.set((long)getMinX(), (long)getMinY(),
+        (long)getWidth(), (long)getHeight());
+    return mbr;
+  }
 
   @Override
   public double distanceTo(long x, long y) {
@@ -108,10 +118,49 @@ public class Circle extends Arc2D.Double implements Shape {
     return Math.sqrt(dx * dx + dy * dy);
   }
 
+  /**
+   * Tests whether this circle intersects the given shape. Circles and
+   * polygons are tested exactly while other shapes are tested using their
+   * MBRs. As in {@link Rectangle}, two shapes intersect only if their
+   * interiors overlap. Shapes that only touch are not considered
+   * intersecting.
+   */
   @Override
   public boolean isIntersected(Shape s) {
-    Rectangle mbr = s.getMBR();
-    return super.intersects(mbr.x, mbr.y, mbr.width, mbr.height);
+    if (s instanceof Circle) {
+      Circle c = (Circle) s;
+      double dx = getCenterX() - c.getCenterX();
+      double dy = getCenterY() - c.getCenterY();
+      double r = getRadius() + c.getRadius();
+      return dx * dx + dy * dy < r * r;
+    }
+    if (s instanceof Polygon)
+      return ((Polygon) s).isIntersected(getCenterX(), getCenterY(),
+          getRadius());
+    if (tempMBR == null)
+      tempMBR = new Rectangle();
+    Rectangle mbr = s.getMBR(tempMBR);
+    if (mbr == null)
+      return true; // A shape with no MBR covers the whole space
+    return isIntersected(mbr.getX1(), mbr.getY1(), mbr.getX2(), mbr.getY2());
+  }
+  
+  /**
+   * Tests whether this circle overlaps the interior of the given rectangle
+   * @param rx1
+   * @param ry1
+   * @param rx2
+   * @param ry2
+   * @return
+   */
+  public boolean isIntersected(long rx1, long ry1, long rx2, long ry2) {
+    double cx = getCenterX(), cy = getCenterY(), r = getRadius();
+    if (!(cx + r > rx1 && rx2 > cx - r && cy + r > ry1 && ry2 > cy - r))
+      return false;
+    // Find the closest point in the rectangle to the center
+    double dx = cx - Math.max(rx1, Math.min(rx2, cx));
+    double dy = cy - Math.max(ry1, Math.min(ry2, cy));
+    return dx * dx + dy * dy < r * r;
   }
   
   public Circle clone() {
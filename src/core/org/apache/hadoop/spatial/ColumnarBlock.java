@@ -0,0 +1,374 @@
+package org.apache.hadoop.spatial;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+
+/**
+ * A block of shapes stored in a binary columnar format. The MBRs of all
+ * records are stored in four columns (x, y, width, height) followed by an
+ * attribute column that contains the text representation of all records.
+ * Records are sorted by x so that the x column is stored as deltas between
+ * consecutive values. All other columns are stored relative to their minimum
+ * value. All values in a column are bit-packed using the minimum number of
+ * bits that can represent the largest value. The attribute column can be
+ * optionally compressed.
+ * This allows reading the MBRs of all records in a block without parsing
+ * any text or reading the attribute column at all.
+ * The layout of the block is:
+ * <ul>
+ * <li>int recordCount</li>
+ * <li>Four columns each as: long base, byte bitsPerValue, packed longs</li>
+ * <li>byte compressed, int storedLength, int rawLength</li>
+ * <li>storedLength bytes of attributes</li>
+ * </ul>
+ * @author eldawy
+ *
+ */
+public class ColumnarBlock {
+  private static final Log LOG = LogFactory.getLog(ColumnarBlock.class);
+
+  /**Maximum storage overhead of the columns for each record*/
+  public static final int RecordOverhead = 4 * 8;
+
+  /**Maximum storage overhead of a block regardless of number of records*/
+  public static final int BlockOverhead = 4 + 4 * (8 + 1 + 8) + 1 + 4 + 4;
+
+  /**Number of records in this block*/
+  private int recordCount;
+
+  /**Columns of MBRs of all records*/
+  private long[] xs, ys, widths, heights;
+
+  /**Text representation of all records separated by new lines*/
+  private byte[] attributes;
+
+  /**Number of bytes in the attributes array*/
+  private int attributesLength;
+
+  /**Position of the next line to read from attributes*/
+  private int attributesPos;
+
+  /**Whether the attribute column has been read or not*/
+  private boolean attributesRead;
+
+  /**
+   * Writes the given records in the columnar format.
+   * @param data - text representation of records separated by new lines
+   * @param offset - offset of first record in data
+   * @param len - total length of all records
+   * @param stockObject - used to parse records to get their MBRs
+   * @param out - the output to write to
+   * @param compress - whether to compress the attribute column or not
+   * @throws IOException
+   */
+  public static <S extends Shape> void write(final byte[] data, int offset,
+      int len, S stockObject, DataOutput out, boolean compress)
+      throws IOException {
+    // Find the boundaries and MBR of all records
+    int count = 0;
+    int i_start = offset;
+    while (i_start < offset + len) {
+      i_start = RTree.skipToEOL(data, i_start);
+      count++;
+    }
+    final int[] starts = new int[count];
+    final int[] ends = new int[count];
+    final long[] xs = new long[count];
+    final long[] ys = new long[count];
+    final long[] widths = new long[count];
+    final long[] heights = new long[count];
+    Text line = new Text();
+    Rectangle mbr = new Rectangle();
+    i_start = offset;
+    for (int i = 0; i < count; i++) {
+      int i_end = RTree.skipToEOL(data, i_start);
+      line.set(data, i_start, i_end - i_start);
+      stockObject.fromText(line);
+      stockObject.getMBR(mbr);
+      starts[i] = i_start;
+      ends[i] = i_end;
+      xs[i] = mbr.x;
+      ys[i] = mbr.y;
+      widths[i] = mbr.width;
+      heights[i] = mbr.height;
+      i_start = i_end;
+    }
+    LOG.info("Writing a columnar block with "+count+" records");
+
+    // Sort records by x to make the x column delta-encoded
+    if (count > 1) {
+      new QuickSort().sort(new IndexedSortable() {
+        @Override
+        public void swap(int i, int j) {
+          int t = starts[i]; starts[i] = starts[j]; starts[j] = t;
+          t = ends[i]; ends[i] = ends[j]; ends[j] = t;
+          long l = xs[i]; xs[i] = xs[j]; xs[j] = l;
+          l = ys[i]; ys[i] = ys[j]; ys[j] = l;
+          l = widths[i]; widths[i] = widths[j]; widths[j] = l;
+          l = heights[i]; heights[i] = heights[j]; heights[j] = l;
+        }
+
+        @Override
+        public int compare(int i, int j) {
+          return xs[i] < xs[j] ? -1 : (xs[i] > xs[j] ? 1 : 0);
+        }
+      }, 0, count);
+    }
+
+    out.writeInt(count);
+    writeColumn(out, xs, count, true);
+    writeColumn(out, ys, count, false);
+    writeColumn(out, widths, count, false);
+    writeColumn(out, heights, count, false);
+
+    // Arrange attributes in the same order of records. Each record is
+    // terminated by a new line.
+    int rawLength = 0;
+    for (int i = 0; i < count; i++) {
+      int length = ends[i] - starts[i];
+      if (length == 0 || data[ends[i] - 1] != '\n')
+        length++;
+      rawLength += length;
+    }
+    byte[] raw = new byte[rawLength];
+    int pos = 0;
+    for (int i = 0; i < count; i++) {
+      int length = ends[i] - starts[i];
+      System.arraycopy(data, starts[i], raw, pos, length);
+      pos += length;
+      if (length == 0 || data[ends[i] - 1] != '\n')
+        raw[pos++] = '\n';
+    }
+
+    byte[] stored = raw;
+    int storedLength = rawLength;
+    boolean compressed = false;
+    if (compress && rawLength > 0) {
+      Deflater deflater = new Deflater();
+      deflater.setInput(raw, 0, rawLength);
+      deflater.finish();
+      byte[] compressedBytes = new byte[rawLength];
+      int compressedLength = deflater.deflate(compressedBytes);
+      // Keep the raw bytes if compression does not reduce the size
+      if (deflater.finished() && compressedLength < rawLength) {
+        stored = compressedBytes;
+        storedLength = compressedLength;
+        compressed = true;
+      }
+      deflater.end();
+    }
+    out.writeBoolean(compressed);
+    out.writeInt(storedLength);
+    out.writeInt(rawLength);
+    out.write(stored, 0, storedLength);
+  }
+
+  /**
+   * Writes a column of values as bit-packed longs.
+   * @param out
+   * @param values
+   * @param count
+   * @param delta - if <code>true</code>, values are assumed to be sorted and
+   *   are stored as differences between consecutive values. Otherwise,
+   *   values are stored relative to their minimum value.
+   * @throws IOException
+   */
+  private static void writeColumn(DataOutput out, long[] values, int count,
+      boolean delta) throws IOException {
+    long base = count == 0 ? 0 : values[0];
+    if (!delta) {
+      for (int i = 1; i < count; i++)
+        if (values[i] < base)
+          base = values[i];
+    }
+    // Find the number of bits needed to store the largest encoded value
+    long allBits = 0;
+    for (int i = 0; i < count; i++)
+      allBits |= encode(values, i, base, delta);
+    int bits = 64 - Long.numberOfLeadingZeros(allBits);
+    out.writeLong(base);
+    out.writeByte(bits);
+
+    long[] words = new long[(int) (((long) count * bits + 63) / 64)];
+    for (int i = 0; i < count && bits > 0; i++) {
+      long v = encode(values, i, base, delta);
+      long bitPos = (long) i * bits;
+      int word = (int) (bitPos >>> 6);
+      int shift = (int) (bitPos & 63);
+      words[word] |= v << shift;
+      if (shift + bits > 64)
+        words[word + 1] |= v >>> (64 - shift);
+    }
+    for (long word : words)
+      out.writeLong(word);
+  }
+
+  private static long encode(long[] values, int i, long base, boolean delta) {
+    return delta ? (i == 0 ? 0 : values[i] - values[i - 1]) : values[i] - base;
+  }
+
+  /**
+   * Reads a column written by {@link #writeColumn(DataOutput, long[], int, boolean)}
+   * @return - number of bytes read
+   */
+  private static int readColumn(DataInput in, long[] values, int count,
+      boolean delta) throws IOException {
+    long base = in.readLong();
+    int bits = in.readByte();
+    long mask = bits == 64 ? -1L : (1L << bits) - 1;
+    int wordCount = (int) (((long) count * bits + 63) / 64);
+    long word = 0, nextWord = wordCount > 0 ? in.readLong() : 0;
+    int wordsRead = wordCount > 0 ? 1 : 0;
+    int currentWord = -1;
+    for (int i = 0; i < count; i++) {
+      long v = 0;
+      if (bits > 0) {
+        long bitPos = (long) i * bits;
+        int w = (int) (bitPos >>> 6);
+        int shift = (int) (bitPos & 63);
+        // Advance to the word that contains the first bit of this value
+        while (currentWord < w) {
+          word = nextWord;
+          nextWord = wordsRead < wordCount ? in.readLong() : 0;
+          if (wordsRead < wordCount)
+            wordsRead++;
+          currentWord++;
+        }
+        v = word >>> shift;
+        if (shift + bits > 64)
+          v |= nextWord << (64 - shift);
+        v &= mask;
+      }
+      values[i] = delta ? (i == 0 ? base : values[i - 1] + v) : base + v;
+    }
+    // Skip any words not consumed
+    while (wordsRead < wordCount) {
+      in.readLong();
+      wordsRead++;
+    }
+    return 8 + 1 + wordCount * 8;
+  }
+
+  /**
+   * Reads the MBR columns of a block. The attribute column is not read and
+   * should be read next using {@link #readAttributes(DataInput)} if needed.
+   * @param in
+   * @return - number of bytes read
+   * @throws IOException
+   */
+  public int readColumns(DataInput in) throws IOException {
+    recordCount = in.readInt();
+    if (xs == null || xs.length < recordCount) {
+      xs = new long[recordCount];
+      ys = new long[recordCount];
+      widths = new long[recordCount];
+      heights = new long[recordCount];
+    }
+    int bytesRead = 4;
+    bytesRead += readColumn(in, xs, recordCount, true);
+    bytesRead += readColumn(in, ys, recordCount, false);
+    bytesRead += readColumn(in, widths, recordCount, false);
+    bytesRead += readColumn(in, heights, recordCount, false);
+    attributesRead = false;
+    attributesLength = 0;
+    attributesPos = 0;
+    return bytesRead;
+  }
+
+  /**
+   * Reads the attribute column. Must be called right after
+   * {@link #readColumns(DataInput)}.
+   * @param in
+   * @return - number of bytes read
+   * @throws IOException
+   */
+  public int readAttributes(DataInput in) throws IOException {
+    boolean compressed = in.readBoolean();
+    int storedLength = in.readInt();
+    int rawLength = in.readInt();
+    if (attributes == null || attributes.length < rawLength)
+      attributes = new byte[rawLength];
+    if (compressed) {
+      byte[] stored = new byte[storedLength];
+      in.readFully(stored);
+      Inflater inflater = new Inflater();
+      inflater.setInput(stored);
+      try {
+        int inflated = 0;
+        while (inflated < rawLength && !inflater.finished()) {
+          int n = inflater.inflate(attributes, inflated, rawLength - inflated);
+          // No progress can be made on truncated or corrupt data
+          if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+            throw new IOException("Corrupt columnar block");
+          inflated += n;
+        }
+        if (inflated != rawLength)
+          throw new IOException("Corrupt columnar block: expected "+rawLength+
+              " bytes of attributes but found "+inflated);
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupted attribute column", e);
+      } finally {
+        inflater.end();
+      }
+    } else {
+      in.readFully(attributes, 0, rawLength);
+    }
+    attributesLength = rawLength;
+    attributesPos = 0;
+    attributesRead = true;
+    return 1 + 4 + 4 + storedLength;
+  }
+
+  /**
+   * Number of records in the block last read
+   * @return
+   */
+  public int getRecordCount() {
+    return recordCount;
+  }
+
+  /**
+   * Retrieves the MBR of the record at the given index.
+   * @param i
+   * @param mbr - the rectangle to store the MBR in
+   * @return - the given rectangle
+   */
+  public Rectangle getMBR(int i, Rectangle mbr) {
+    mbr.set(xs[i], ys[i], widths[i], heights[i]);
+    return mbr;
+  }
+
+  /**
+   * Whether the attribute column of the current block has been read
+   * @return
+   */
+  public boolean isAttributesRead() {
+    return attributesRead;
+  }
+
+  /**
+   * Reads the text representation of the next record from the attribute
+   * column. Records are returned in the same order of MBRs.
+   * @param line - the text to store the line in including its new line
+   * @return - <code>true</code> if a line was read or <code>false</code> if
+   *   all records have been read
+   */
+  public boolean nextLine(Text line) {
+    if (attributesPos >= attributesLength)
+      return false;
+    int eol = RTree.skipToEOL(attributes, attributesPos);
+    line.set(attributes, attributesPos, eol - attributesPos);
+    attributesPos = eol;
+    return true;
+  }
+}
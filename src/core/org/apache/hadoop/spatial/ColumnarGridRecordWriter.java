@@ -0,0 +1,105 @@
+package org.apache.hadoop.spatial;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Writes a grid file where each block is stored in the binary columnar
+ * format.
+ * @see ColumnarBlock
+ * @author eldawy
+ *
+ * @param <S>
+ */
+public class ColumnarGridRecordWriter<S extends Shape> extends GridRecordWriter<S> {
+  public static final Log LOG = LogFactory.getLog(ColumnarGridRecordWriter.class);
+  
+  /**
+   * Keeps the number of elements written to each cell so far.
+   * Helps calculating the overhead of the MBR columns
+   */
+  private int[] cellCount;
+  
+  /**Whether to compress the attribute column or not*/
+  protected boolean compress;
+
+  /**
+   * Initializes a new ColumnarGridRecordWriter.
+   * @param fileSystem - of output file
+   * @param outFile - output file path
+   * @param cells - the cells used to partition the input
+   * @param overwrite - whether to overwrite existing files or not
+   * @throws IOException
+   */
+  public ColumnarGridRecordWriter(FileSystem fileSystem, Path outFile,
+      CellInfo[] cells, boolean overwrite) throws IOException {
+    super(fileSystem, outFile, cells, overwrite);
+    LOG.info("Writing to columnar blocks");
+    cellCount = new int[cells.length];
+    this.compress = fileSystem.getConf().getBoolean(
+        SpatialSite.COLUMNAR_COMPRESS, true);
+    // Keep data of cells locally until they are written in columnar format
+    this.bufferCells = true;
+  }
+  
+  @Override
+  protected void writeInternal(int cellIndex, Text text)
+      throws IOException {
+    synchronized (cellLocks[cellIndex]) {
+      if (text.getLength() == 0) {
+        // Write to parent cell which will close the block
+        super.writeInternal(cellIndex, text);
+        return;
+      }
+      FSDataOutputStream cellOutput = (FSDataOutputStream) getCellStream(cellIndex);
+    
+      // Check if the columns of this object will get the block above its size
+      long new_data_size = 8 + ColumnarBlock.BlockOverhead +
+          cellOutput.getPos() + text.getLength() + NEW_LINE.length +
+          (long) (cellCount[cellIndex] + 1) * ColumnarBlock.RecordOverhead;
+      if (new_data_size > getCellCapacity() && cellCount[cellIndex] > 0) {
+        LOG.info("Early flushing a columnar block with data "+cellOutput.getPos());
+        super.writeInternal(cellIndex, new Text());
+      }
+    
+      super.writeInternal(cellIndex, text);
+      cellCount[cellIndex]++;
+    }
+  }
+  
+  @Override
+  protected int getMaxConcurrentThreads() {
+    // Closing a cell keeps the whole cell in memory along with its columns
+    // and the compressed attributes.
+    long maxMemory = Runtime.getRuntime().maxMemory();
+    long memoryPerClose = 3 * getCellCapacity();
+    return (int) Math.max(1, Math.min(super.getMaxConcurrentThreads(),
+        maxMemory / memoryPerClose));
+  }
+
+  @Override
+  protected void closeCell(int cellIndex, boolean background)
+      throws IOException {
+    super.closeCell(cellIndex, background);
+    cellCount[cellIndex] = 0;
+  }
+  
+  /**
+   * Writes a block in the columnar format.
+   */
+  @Override
+  protected void writeBlock(DataOutputStream out, byte[] data, int offset,
+      int length, long capacity) throws IOException {
+    out.writeLong(SpatialSite.ColumnarFileMarker);
+    // Use a separate stock object as multiple cells can be closed in parallel
+    ColumnarBlock.write(data, offset, length, stockObject.clone(), out,
+        compress);
+  }
+}
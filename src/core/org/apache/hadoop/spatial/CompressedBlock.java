@@ -0,0 +1,216 @@
+package org.apache.hadoop.spatial;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Hashtable;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * A block of a grid file compressed independently of other blocks. The
+ * compressed data is a complete block in any other format, i.e., heap,
+ * RTree or columnar, including its marker. Each compressed block fits in
+ * one block of the file system followed by new lines as any other block.
+ * This keeps blocks aligned with file system blocks so that each block can
+ * be selected using the global index and decompressed on its own.
+ * The layout of the block is:
+ * <ul>
+ * <li>long marker ({@link SpatialSite#CompressedFileMarker})</li>
+ * <li>UTF class name of the compression codec</li>
+ * <li>int uncompressedLength, int compressedLength</li>
+ * <li>compressedLength bytes of compressed data</li>
+ * </ul>
+ * @author eldawy
+ *
+ */
+public class CompressedBlock {
+  /**Configuration used to create codecs*/
+  private final Configuration conf;
+
+  /**Codecs used so far indexed by their class names*/
+  private final Hashtable<String, CompressionCodec> codecs =
+      new Hashtable<String, CompressionCodec>();
+
+  /**Compressed data of the last read block*/
+  private byte[] compressed;
+
+  /**Decompressed data of the last read block*/
+  private byte[] data;
+
+  /**Number of bytes of decompressed data*/
+  private int length;
+
+  public CompressedBlock(Configuration conf) {
+    this.conf = conf;
+  }
+
+  /**
+   * Reads a compressed block and decompresses it. The input should be
+   * positioned right after the marker of the block. The memory used to hold
+   * the previously read block is reused if it is large enough.
+   * @param in
+   * @return - number of bytes read from the input
+   * @throws IOException
+   */
+  public int read(DataInput in) throws IOException {
+    String codecName = in.readUTF();
+    int uncompressedLength = in.readInt();
+    int compressedLength = in.readInt();
+    if (compressed == null || compressed.length < compressedLength)
+      compressed = new byte[compressedLength];
+    in.readFully(compressed, 0, compressedLength);
+
+    CompressionCodec codec = codecs.get(codecName);
+    if (codec == null) {
+      codec = getCodec(conf, codecName);
+      codecs.put(codecName, codec);
+    }
+    if (data == null || data.length < uncompressedLength)
+      data = new byte[uncompressedLength];
+    Decompressor decompressor = CodecPool.getDecompressor(codec);
+    try {
+      InputStream decompressedIn = codec.createInputStream(
+          new ByteArrayInputStream(compressed, 0, compressedLength),
+          decompressor);
+      length = 0;
+      while (length < uncompressedLength) {
+        int n = decompressedIn.read(data, length, uncompressedLength - length);
+        if (n < 0)
+          throw new IOException("Compressed block is truncated");
+        length += n;
+      }
+      decompressedIn.close();
+    } finally {
+      CodecPool.returnDecompressor(decompressor);
+    }
+    return getHeaderSize(codecName) - 8 + compressedLength;
+  }
+
+  /**
+   * Reads the marker of the block stored in a compressed block. Only the
+   * first bytes of the compressed data are decompressed. The input should
+   * be positioned right after the marker of the compressed block.
+   * @param conf
+   * @param in
+   * @return - the first eight bytes of the decompressed data as a long
+   * @throws IOException
+   */
+  public static long readInnerMarker(Configuration conf, InputStream in)
+      throws IOException {
+    DataInputStream header = new DataInputStream(in);
+    String codecName = header.readUTF();
+    int uncompressedLength = header.readInt();
+    header.readInt(); // compressedLength
+    CompressionCodec codec = getCodec(conf, codecName);
+    Decompressor decompressor = CodecPool.getDecompressor(codec);
+    try {
+      InputStream decompressedIn = codec.createInputStream(in, decompressor);
+      long marker = 0;
+      for (int i = 0; i < 8 && i < uncompressedLength; i++) {
+        int b = decompressedIn.read();
+        if (b < 0)
+          throw new IOException("Compressed block is truncated");
+        marker = (marker << 8) | b;
+      }
+      return marker;
+    } finally {
+      CodecPool.returnDecompressor(decompressor);
+    }
+  }
+
+  /**Returns the decompressed data of the last read block*/
+  public byte[] getData() {
+    return data;
+  }
+
+  /**Returns the number of bytes of decompressed data*/
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * Creates a codec given its class name
+   * @param conf
+   * @param codecName
+   * @return
+   * @throws IOException - if the codec class cannot be found
+   */
+  public static CompressionCodec getCodec(Configuration conf, String codecName)
+      throws IOException {
+    try {
+      Class<? extends CompressionCodec> codecClass = conf.getClassByName(
+          codecName).asSubclass(CompressionCodec.class);
+      return ReflectionUtils.newInstance(codecClass, conf);
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Cannot find compression codec "+codecName, e);
+    }
+  }
+
+  /**
+   * Compresses the given data
+   * @param codec
+   * @param data
+   * @param offset
+   * @param length
+   * @return - the compressed data
+   * @throws IOException
+   */
+  public static byte[] compress(CompressionCodec codec, byte[] data,
+      int offset, int length) throws IOException {
+    ByteArrayOutputStream compressedOut = new ByteArrayOutputStream(length / 2);
+    Compressor compressor = CodecPool.getCompressor(codec);
+    try {
+      CompressionOutputStream out =
+          codec.createOutputStream(compressedOut, compressor);
+      out.write(data, offset, length);
+      out.finish();
+      out.close();
+    } finally {
+      CodecPool.returnCompressor(compressor);
+    }
+    return compressedOut.toByteArray();
+  }
+
+  /**
+   * Returns the size of the header of a block compressed with the given
+   * codec including its marker.
+   * @param codecName
+   * @return
+   */
+  public static int getHeaderSize(String codecName) {
+    try {
+      return 8 + 2 + codecName.getBytes("UTF-8").length + 4 + 4;
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Writes the header of a compressed block including its marker. The
+   * compressed data should be written right after it.
+   * @param out
+   * @param codec
+   * @param uncompressedLength
+   * @param compressedLength
+   * @throws IOException
+   */
+  public static void writeHeader(DataOutput out, CompressionCodec codec,
+      int uncompressedLength, int compressedLength) throws IOException {
+    out.writeLong(SpatialSite.CompressedFileMarker);
+    out.writeUTF(codec.getClass().getName());
+    out.writeInt(uncompressedLength);
+    out.writeInt(compressedLength);
+  }
+}
@@ -1,22 +1,40 @@
 package org.apache.hadoop.spatial;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.FSDataOutputStream;
-import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MemoryOutputStream;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.util.Progressable;
 
 /**
  * Writes a spatial file where objects are of type S.
+ * Multiple threads can write to the same writer at the same time. Each cell
+ * is guarded by its own lock so that threads writing to different cells do
+ * not block each other.
  * @author eldawy
  *
  * @param <S>
@@ -35,8 +53,17 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
   /**Paths that need to be concatenated upon writer close*/
   protected Vector<Path> pathsToConcat;
 
-  /**Background threads that close cell files*/
-  private Vector<Thread> closingThreads;
+  /**Closes cell files in background while other cells are being written*/
+  private ExecutorService closingExecutor;
+  
+  /**
+   * Limits the number of cells that are being closed or waiting to be closed.
+   * Writers block when no permits are available until some cells are closed.
+   */
+  private Semaphore closingPermits;
+  
+  /**Cells being closed in background. Checked for errors when done*/
+  private Vector<Future<?>> closingTasks = new Vector<Future<?>>();
 
   /**Path of the output file*/
   protected final Path outFile;
@@ -44,9 +71,6 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
   /**File system for output path*/
   protected final FileSystem fileSystem;
 
-  /**Temporary text to serialize one object*/
-  protected Text text;
-  
   /**Block size for grid file written*/
   protected long blockSize;
   
@@ -56,6 +80,69 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
   /**New line marker */
   protected static final byte[] NEW_LINE = {'\n'};
   
+  /**Finds the cells that overlap a shape being written*/
+  protected final CellIndex cellLookup;
+  
+  /**
+   * A lock for each cell. A thread has to hold the lock of a cell to write
+   * to it or close it.
+   */
+  protected final Object[] cellLocks;
+  
+  /**
+   * Temporary objects used by one writing thread. They are reused across
+   * records to avoid creating objects.
+   */
+  private class WriteBuffers {
+    /**Temporary text to serialize one object*/
+    final Text text = new Text();
+    /**MBR of the shape being written*/
+    final Rectangle shapeMBR = new Rectangle();
+    /**IDs of cells that overlap the shape being written*/
+    final int[] cellIds = new int[cellLookup.getCellCount()];
+    /**A copy of the stock object used to get MBRs of records for statistics*/
+    Shape statsShape;
+    /**A temporary text used to parse records for statistics*/
+    final Text statsText = new Text();
+    /**A temporary rectangle used to get MBRs of records for statistics*/
+    final Rectangle statsMBR = new Rectangle();
+  }
+  
+  /**Temporary objects of each writing thread*/
+  private final ThreadLocal<WriteBuffers> writeBuffers =
+      new ThreadLocal<WriteBuffers>() {
+    @Override
+    protected WriteBuffers initialValue() {
+      return new WriteBuffers();
+    }
+  };
+  
+  /**Statistics of the data written to the current block of each cell*/
+  protected BlockStatistics[] cellStats;
+  
+  /**Statistics of closed blocks indexed by the path of their cell files*/
+  private Hashtable<Path, BlockStatistics> blockStats;
+  
+  /**
+   * Whether the data of each cell is buffered locally until the cell is
+   * closed instead of being written directly to the file system. Used by
+   * writers that need all data of a cell to build its local index.
+   * @see CellBuffer
+   */
+  protected boolean bufferCells;
+  
+  /**Memory left for buffering data of cells of this writer*/
+  private AtomicLong cellBufferMemory;
+  
+  /**Codec used to compress each block. Null if blocks are not compressed*/
+  protected CompressionCodec blockCodec;
+  
+  /**
+   * Compression ratio expected for the next blocks. Adjusted according to
+   * the ratio achieved by blocks already written.
+   */
+  private volatile double compressionRatio;
+  
   public GridRecordWriter(FileSystem outFileSystem, Path outFile,
       CellInfo[] cells, boolean overwrite) throws IOException {
     this.fileSystem = outFileSystem;
@@ -77,17 +164,30 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
     cellStreams = new OutputStream[this.cells.length];
     cellFilePath = new Path[this.cells.length];
     pathsToConcat = new Vector<Path>();
+    cellStats = new BlockStatistics[this.cells.length];
+    blockStats = new Hashtable<Path, BlockStatistics>();
+    cellLookup = new CellIndex(this.cells);
+    cellLocks = new Object[this.cells.length];
+    for (int cellIndex = 0; cellIndex < cellLocks.length; cellIndex++)
+      cellLocks[cellIndex] = new Object();
     
-    if (fileSystem.exists(outFile)) {
-      if (!overwrite)
-        throw new RuntimeException("File already exists and -overwrite flag is not set");
-      fileSystem.delete(outFile, true);
-    }
+    if (fileSystem.exists(outFile) && !overwrite)
+      throw new RuntimeException("File already exists and -overwrite flag is not set");
+    // Delete the file and the statistics of an older file with the same name
+    fileSystem.deleteWithStatistics(outFile, true);
 
     this.blockSize = fileSystem.getConf().getLong(
         SpatialSite.LOCAL_INDEX_BLOCK_SIZE, fileSystem.getDefaultBlockSize());
     
-    text = new Text();
+    String codecName =
+        fileSystem.getConf().get(SpatialSite.BLOCK_COMPRESSION_CODEC, "");
+    if (codecName.length() > 0) {
+      blockCodec = CompressedBlock.getCodec(fileSystem.getConf(), codecName);
+      compressionRatio = fileSystem.getConf().getFloat(
+          SpatialSite.BLOCK_COMPRESSION_RATIO, 2.0f);
+      // Data of each cell is compressed as a whole when the cell is closed
+      bufferCells = true;
+    }
   }
   
   public void setBlockSize(long _block_size) {
@@ -99,7 +199,8 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
   }
 
   @Override
-  public synchronized void write(NullWritable dummy, S shape) throws IOException {
+  public void write(NullWritable dummy, S shape) throws IOException {
+    Text text = writeBuffers.get().text;
     text.clear();
     if (shape != null)
       shape.toText(text);
@@ -118,14 +219,13 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
    * @throws IOException
    */
   @Override
-  public synchronized void write(S shape, Text text) throws IOException {
-    // Write to all possible grid cells
-    Rectangle mbr = shape.getMBR();
-    for (int cellIndex = 0; cellIndex < cells.length; cellIndex++) {
-      if (mbr.isIntersected(cells[cellIndex])) {
-        writeInternal(cellIndex, text);
-      }
-    }
+  public void write(S shape, Text text) throws IOException {
+    // Write to all overlapping grid cells
+    WriteBuffers buffers = writeBuffers.get();
+    Rectangle mbr = shape.getMBR(buffers.shapeMBR);
+    int numCells = cellLookup.search(mbr, buffers.cellIds);
+    for (int i = 0; i < numCells; i++)
+      writeInternal(buffers.cellIds[i], text);
   }
   
   /**
@@ -137,18 +237,19 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
    * @throws IOException
    */
   @Override
-  public synchronized void write(CellInfo cellInfo, S shape) throws IOException {
+  public void write(CellInfo cellInfo, S shape) throws IOException {
     if (shape == null) {
       write(cellInfo, shape, null);
       return;
     }
+    Text text = writeBuffers.get().text;
     text.clear();
     shape.toText(text);
     write(cellInfo, shape, text);
   }
 
   @Override
-  public synchronized void write(CellInfo cellInfo, S shape, Text text) throws IOException {
+  public void write(CellInfo cellInfo, S shape, Text text) throws IOException {
     // Write to the cell given
     writeInternal((int)cellInfo.cellId, text);
   }
@@ -164,31 +265,137 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
    * @param shape
    * @throws IOException
    */
-  protected synchronized void writeInternal(int cellIndex, Text text) throws IOException {
-    if (text.getLength() == 0) {
-      closeCell(cellIndex, false);
-    } else {
-      FSDataOutputStream cellStream = (FSDataOutputStream) getCellStream(cellIndex);
-      // Check if this line will take the file beyond one block.
-      int new_size = (int) (cellStream.getPos() + text.getLength() + NEW_LINE.length);
-      if (new_size > blockSize) {
-        // Need to close this file first to ensure it fits one block
-        closeCell(cellIndex, false);
+  protected void writeInternal(int cellIndex, Text text) throws IOException {
+    synchronized (cellLocks[cellIndex]) {
+      if (text.getLength() == 0) {
+        closeCell(cellIndex, true);
+      } else {
+        FSDataOutputStream cellStream = (FSDataOutputStream) getCellStream(cellIndex);
+        // Check if this line will take the file beyond one block.
+        long new_size = cellStream.getPos() + text.getLength() + NEW_LINE.length;
+        if (new_size > getCellCapacity()) {
+          // Need to close this file first to ensure it fits one block.
+          // The cell is closed in background while writing continues.
+          closeCell(cellIndex, true);
+          cellStream = (FSDataOutputStream) getCellStream(cellIndex);
+        }
+        cellStream.write(text.getBytes(), 0, text.getLength());
+        cellStream.write(NEW_LINE);
+        if (stockObject != null)
+          addToStatistics(cellIndex, text);
       }
-      cellStream.write(text.getBytes(), 0, text.getLength());
-      cellStream.write(NEW_LINE);
     }
   }
   
+  /**
+   * Adds the given record to the statistics of the current block of the
+   * given cell.
+   * @param cellIndex
+   * @param text
+   */
+  private void addToStatistics(int cellIndex, Text text) {
+    if (cellStats[cellIndex] == null)
+      cellStats[cellIndex] = new BlockStatistics(cells[cellIndex].clone());
+    addToStatistics(cellStats[cellIndex], text);
+  }
+  
+  /**
+   * Adds the given record to the given statistics
+   * @param stats
+   * @param text
+   */
+  private void addToStatistics(BlockStatistics stats, Text text) {
+    WriteBuffers buffers = writeBuffers.get();
+    if (buffers.statsShape == null) {
+      // The stock object itself is used by cells closed in background
+      buffers.statsShape = stockObject.clone();
+    }
+    Rectangle mbr = null;
+    if (buffers.statsShape instanceof TextMBRParsable)
+      mbr = ((TextMBRParsable) buffers.statsShape).parseMBR(text,
+          buffers.statsMBR);
+    if (mbr == null) {
+      // Parse a copy as parsing could modify the text
+      buffers.statsText.set(text);
+      buffers.statsShape.fromText(buffers.statsText);
+      mbr = buffers.statsShape.getMBR(buffers.statsMBR);
+    }
+    stats.addRecord(mbr, text.getLength() + NEW_LINE.length);
+  }
+  
+  /**
+   * Computes the statistics of the given records
+   * @param cellInfo - the cell of the records
+   * @param data - records separated by new lines
+   * @param offset
+   * @param length
+   * @return
+   */
+  private BlockStatistics computeStatistics(CellInfo cellInfo, byte[] data,
+      int offset, int length) {
+    BlockStatistics stats = new BlockStatistics(cellInfo.clone());
+    Text line = new Text();
+    int lineStart = offset;
+    for (int i = offset; i < offset + length; i++) {
+      if (data[i] == '\n') {
+        if (i > lineStart) {
+          line.set(data, lineStart, i - lineStart);
+          addToStatistics(stats, line);
+        }
+        lineStart = i + 1;
+      }
+    }
+    return stats;
+  }
+  
+  /**
+   * Returns the maximum size of data in one cell before it is closed. This
+   * is the block size unless blocks are compressed where it is the size of
+   * data that is expected to fit in one block after compression.
+   * @return
+   */
+  protected long getCellCapacity() {
+    if (blockCodec == null)
+      return blockSize;
+    return (long) Math.min(Integer.MAX_VALUE / 2, blockSize * compressionRatio);
+  }
+  
   // Get a stream that writes to the given cell
   protected OutputStream getCellStream(int cellIndex) throws IOException {
     if (cellStreams[cellIndex] == null) {
       Path cellFilePath = getCellFilePath(cellIndex);
-      cellStreams[cellIndex] = createCellStream(cellFilePath, cells[cellIndex]);
+      if (bufferCells) {
+        // Wrap the buffer to keep track of the position of the cell
+        cellStreams[cellIndex] = new FSDataOutputStream(
+            new CellBuffer(cells[cellIndex], getCellBufferMemory()), null);
+      } else {
+        cellStreams[cellIndex] = createCellStream(cellFilePath, cells[cellIndex]);
+      }
     }
     return cellStreams[cellIndex];
   }
   
+  /**Returns the memory budget shared by buffers of all cells*/
+  private synchronized AtomicLong getCellBufferMemory() {
+    if (cellBufferMemory == null) {
+      float ratio = fileSystem.getConf().getFloat(
+          SpatialSite.CELL_BUFFER_RATIO, 0.3f);
+      cellBufferMemory = new AtomicLong(
+          (long) (Runtime.getRuntime().maxMemory() * ratio));
+    }
+    return cellBufferMemory;
+  }
+  
+  /**
+   * Returns the buffer that holds the data of a cell written while
+   * {@link #bufferCells} is set.
+   * @param cellStream - the stream returned by {@link #getCellStream(int)}
+   * @return
+   */
+  protected static CellBuffer getCellBuffer(OutputStream cellStream) {
+    return (CellBuffer) ((FSDataOutputStream) cellStream).getWrappedStream();
+  }
+  
   /**
    * Creates an output stream that will be used to write a cell file.
    * @param cellFilePath
@@ -212,7 +419,7 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
   }
   
   /**
-   * Close a cell given an ID.
+   * Close a cell given an ID. The caller must hold the lock of the cell.
    * @param cellIndex
    * @param background
    * @throws IOException 
@@ -220,9 +427,13 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
   protected void closeCell(int cellIndex, boolean background) throws IOException {
     if (cellStreams[cellIndex] == null)
       return; // No cell to close
+    // Statistics of this block are complete. Next block starts over.
+    if (cellStats[cellIndex] != null) {
+      blockStats.put(cellFilePath[cellIndex], cellStats[cellIndex]);
+      cellStats[cellIndex] = null;
+    }
     if (background) {
-      closingThreads.add(new CloseCell(cellFilePath[cellIndex], cellStreams[cellIndex]));
-      refreshClosingThreads();
+      closeCellInBackground(cellFilePath[cellIndex], cellStreams[cellIndex]);
     } else {
       closeCell(cellFilePath[cellIndex], cellStreams[cellIndex]);
     }
@@ -231,45 +442,228 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
   }
   
   /**
-   * Closes a cell file in the background
-   * @author eldawy
-   *
+   * Submits the given cell to be closed in background. If too many cells are
+   * already being closed, this method blocks until some of them are closed
+   * to limit the memory used by cells being closed.
+   * @param cellFilePath
+   * @param cellStream
+   * @throws IOException - if a cell previously closed in background failed
    */
-  private class CloseCell extends Thread {
-    /**The path of the file to close*/
-    private Path cellFilePath;
-    /**An output stream open on the cell file*/
-    private OutputStream cellStream;
-
-    public CloseCell(Path cellFilePath, OutputStream cellStream) {
-      this.cellFilePath = cellFilePath;
-      this.cellStream = cellStream;
+  private void closeCellInBackground(final Path cellFilePath,
+      final OutputStream cellStream) throws IOException {
+    ExecutorService closingExecutor = getClosingExecutor();
+    checkClosedCells();
+    try {
+      closingPermits.acquire();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while closing a cell");
     }
-    
-    @Override
-    public void run() {
+    closingTasks.add(closingExecutor.submit(new Callable<Object>() {
+      @Override
+      public Object call() throws IOException {
+        try {
+          closeCell(cellFilePath, cellStream);
+        } finally {
+          closingPermits.release();
+        }
+        return null;
+      }
+    }));
+  }
+  
+  /**
+   * Returns the executor used to close cells in background creating it if
+   * needed.
+   */
+  private synchronized ExecutorService getClosingExecutor() {
+    if (closingExecutor == null) {
+      int maxThreads = getMaxConcurrentThreads();
+      closingExecutor = Executors.newFixedThreadPool(maxThreads,
+          new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "Close cell of "+outFile.getName());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      closingPermits = new Semaphore(2 * maxThreads);
+    }
+    return closingExecutor;
+  }
+  
+  /**
+   * Removes cells that have been closed in background from the list of
+   * closing tasks. If any of them failed, its error is thrown.
+   * @throws IOException
+   */
+  private void checkClosedCells() throws IOException {
+    synchronized (closingTasks) {
+      Iterator<Future<?>> tasks = closingTasks.iterator();
+      while (tasks.hasNext()) {
+        Future<?> task = tasks.next();
+        if (task.isDone()) {
+          tasks.remove();
+          waitForCell(task, 0);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Waits for a cell closed in background for the given number of
+   * milliseconds.
+   * @param task
+   * @param millis
+   * @return - <code>true</code> if the cell is closed
+   * @throws IOException - if closing the cell failed
+   */
+  private static boolean waitForCell(Future<?> task, long millis)
+      throws IOException {
+    try {
+      task.get(millis, TimeUnit.MILLISECONDS);
+      return true;
+    } catch (TimeoutException e) {
+      return false;
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while closing a cell");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new RuntimeException("Error closing a cell", e.getCause());
+    }
+  }
+  
+  /**
+   * Closes a cell file. If data of cells is buffered, the buffered data is
+   * written to the cell file using {@link #writeBlock}. Finally, the file is
+   * stuffed with new lines to fill its last block.
+   * @param cellFilePath
+   * @param cellStream
+   * @throws IOException
+   */
+  protected void closeCell(Path cellFilePath, OutputStream cellStream) throws IOException {
+    if (bufferCells) {
+      CellBuffer cellBuffer = getCellBuffer(cellStream);
       try {
-        closeCell(cellFilePath, cellStream);
-      } catch (IOException e) {
-        e.printStackTrace();
+        writeCell(cellFilePath, cellBuffer.getCellInfo(), cellBuffer.getData(),
+            0, cellBuffer.getLength());
+      } finally {
+        cellBuffer.release();
       }
+    } else {
+      finishCell(cellStream);
     }
   }
   
   /**
-   * Close the given cell freeing all memory reserved by it.
-   * Once a cell is closed, we should not write more data to it.
+   * Writes the given records to a cell file as one block. If blocks are
+   * compressed and the compressed block does not fit in one block of the
+   * file system, records are split into two halves that are written to two
+   * cell files.
+   * @param cellFilePath
    * @param cellInfo
+   * @param data - records separated by new lines
+   * @param offset
+   * @param length
    * @throws IOException
    */
-  protected void closeCell(Path cellFilePath, OutputStream cellStream) throws IOException {
+  private void writeCell(Path cellFilePath, CellInfo cellInfo, byte[] data,
+      int offset, int length) throws IOException {
+    if (blockCodec == null) {
+      FSDataOutputStream cellStream =
+          (FSDataOutputStream) createCellStream(cellFilePath, cellInfo);
+      writeBlock(cellStream, data, offset, length, blockSize);
+      finishCell(cellStream);
+      return;
+    }
+    // Write the block in memory then compress it
+    MemoryOutputStream blockData = new MemoryOutputStream(new byte[length + 1024]);
+    writeBlock(new DataOutputStream(blockData), data, offset, length,
+        getCellCapacity());
+    byte[] compressed = CompressedBlock.compress(blockCodec,
+        blockData.getBuffer(), 0, blockData.getLength());
+    int headerSize = CompressedBlock.getHeaderSize(
+        blockCodec.getClass().getName());
+    if (headerSize + compressed.length <= blockSize) {
+      FSDataOutputStream cellStream =
+          (FSDataOutputStream) createCellStream(cellFilePath, cellInfo);
+      CompressedBlock.writeHeader(cellStream, blockCodec,
+          blockData.getLength(), compressed.length);
+      cellStream.write(compressed);
+      finishCell(cellStream);
+      // Fill next blocks a little below the ratio achieved by this block
+      compressionRatio = Math.max(1.0,
+          0.9 * blockData.getLength() / (headerSize + compressed.length));
+      return;
+    }
+    // Compressed data does not fit in one block. Split records in two halves
+    int split = findSplitPoint(data, offset, length);
+    if (split < 0)
+      throw new IOException("A record in "+cellInfo+
+          " does not fit in one compressed block");
+    LOG.info("Splitting a cell that is "+compressed.length+
+        " bytes after compression");
+    compressionRatio = Math.max(1.0, 0.9 * compressionRatio *
+        (blockSize - headerSize) / compressed.length);
+    Path secondPath = newCellFilePath();
+    if (stockObject != null) {
+      blockStats.put(cellFilePath,
+          computeStatistics(cellInfo, data, offset, split - offset));
+      blockStats.put(secondPath,
+          computeStatistics(cellInfo, data, split, offset + length - split));
+    }
+    writeCell(cellFilePath, cellInfo, data, offset, split - offset);
+    writeCell(secondPath, cellInfo, data, split, offset + length - split);
+  }
+  
+  /**
+   * Finds a position to split the given records into two parts of about the
+   * same size.
+   * @param data - records separated by new lines
+   * @param offset
+   * @param length
+   * @return - the start of the first record of the second part or -1 if
+   *   there is only one record
+   */
+  private static int findSplitPoint(byte[] data, int offset, int length) {
+    int middle = offset + length / 2;
+    for (int i = middle; i < offset + length - 1; i++)
+      if (data[i] == '\n')
+        return i + 1;
+    for (int i = middle - 1; i >= offset; i--)
+      if (data[i] == '\n')
+        return i + 1;
+    return -1;
+  }
+  
+  /**
+   * Writes the given records as one block. Subclasses override this method
+   * to write blocks in other formats.
+   * @param out - the output to write the block to
+   * @param data - records separated by new lines
+   * @param offset
+   * @param length
+   * @param capacity - maximum size of the block
+   * @throws IOException
+   */
+  protected void writeBlock(DataOutputStream out, byte[] data, int offset,
+      int length, long capacity) throws IOException {
+    out.write(data, offset, length);
+  }
+  
+  /**
+   * Stuffs the given cell stream with new lines to fill its last block and
+   * closes it.
+   * @param cellStream
+   * @throws IOException
+   */
+  protected void finishCell(OutputStream cellStream) throws IOException {
     // Get current file size
     long currSize = ((FSDataOutputStream)cellStream).getPos();
 
-    // Check if we need to write empty lines
-    FileStatus fileStatus = fileSystem.getFileStatus(cellFilePath);
-    long blockSize = fileStatus.getBlockSize();
-
+    // All cell files are created with the block size of this writer. No need
+    // to ask the file system for it.
     LOG.info("Cell current size: "+currSize);
     // Stuff the open stream with empty lines until it becomes of size blockSize
     long remainingBytes = (blockSize - currSize % blockSize) % blockSize;
@@ -287,46 +681,46 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
     }
     // Close stream
     cellStream.close();
-    // Now getFileSize should work because the file is closed
-    LOG.info("Cell actual size: "
-        + fileSystem.getFileStatus(cellFilePath).getLen());
   }
+
   
   /**
    * Close the whole writer. Finalize all cell files and concatenate them
    * into the output file.
    */
   public synchronized void close(Progressable progressable) throws IOException {
-    closingThreads = new Vector<Thread>();
-    
     // Close all output files
     for (int cellIndex = 0; cellIndex < cells.length; cellIndex++) {
-      if (cellStreams[cellIndex] != null) {
-        closeCell(cellIndex, true);
+      synchronized (cellLocks[cellIndex]) {
+        if (cellStreams[cellIndex] != null) {
+          closeCell(cellIndex, true);
+        }
       }
     }
 
-    do {
-      // Ensure that there is at least MaxConcurrentThreads running
-      refreshClosingThreads();
-      // Indicate progress
-      if (progressable != null)
-        progressable.progress();
-      if (!closingThreads.isEmpty()) {
-        try {
-          // Sleep for 10 seconds or until the first thread terminates
-          closingThreads.firstElement().join(10000);
-        } catch (InterruptedException e) {
-          e.printStackTrace();
-        }
+    // Wait until all cells are closed indicating progress every 10 seconds
+    for (Future<?> task : closingTasks) {
+      while (!waitForCell(task, 10000)) {
+        if (progressable != null)
+          progressable.progress();
       }
-    } while (!closingThreads.isEmpty());
+    }
+    closingTasks.clear();
+    if (closingExecutor != null) {
+      closingExecutor.shutdown();
+      closingExecutor = null;
+    }
 
     if (pathsToConcat.size() == 0) {
       LOG.warn("No output of the grid file: "+outFile);
       return;
     }
     LOG.info("Closing... Merging "+pathsToConcat.size());
+    // Files are concatenated with the last one first
+    Vector<Path> concatOrder = new Vector<Path>();
+    concatOrder.add(pathsToConcat.lastElement());
+    concatOrder.addAll(pathsToConcat.subList(0, pathsToConcat.size() - 1));
+    BlockStatistics[] stats = getConcatenatedStatistics(concatOrder);
     if (pathsToConcat.size() == 1) {
       fileSystem.rename(pathsToConcat.firstElement(), outFile);
     } else {
@@ -342,28 +736,34 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
       LOG.info("Concatenated files into: "+outFile);
     }
     LOG.info("Final file size: "+fileSystem.getFileStatus(outFile).getLen());
+    if (stats != null)
+      fileSystem.setBlockStatistics(outFile, stats);
   }
-
+  
   /**
-   * Refreshes the closing threads by doing: 1- Removing threads that are
-   * already terminated. 2- Start idle threads while ensuring a maximum of
-   * {@link #getMaxConcurrentThreads()} concurrent active threads
+   * Returns the statistics of all blocks in the file created by
+   * concatenating the given cell files in order. Offsets of blocks are
+   * set relative to the concatenated file.
+   * @param concatOrder
+   * @return - statistics of all blocks or <code>null</code> if statistics
+   *   are not collected
+   * @throws IOException
    */
-  protected void refreshClosingThreads() {
-    int i = 0;
-    while (i < getMaxConcurrentThreads() && i < closingThreads.size()) {
-      Thread.State state = closingThreads.elementAt(i).getState(); 
-      if (state == Thread.State.TERMINATED) {
-        // Thread already terminated, remove from the queue
-        closingThreads.remove(i);
-      } else if (state == Thread.State.NEW) {
-        // Start the thread and move to next one
-        closingThreads.elementAt(i++).start();
-      } else {
-        // Thread is still running, skip over it
-        i++;
+  private BlockStatistics[] getConcatenatedStatistics(Vector<Path> concatOrder)
+      throws IOException {
+    if (stockObject == null)
+      return null;
+    Vector<BlockStatistics> stats = new Vector<BlockStatistics>();
+    long offset = 0;
+    for (Path cellFile : concatOrder) {
+      BlockStatistics stat = blockStats.get(cellFile);
+      if (stat != null) {
+        stat.setOffset(offset);
+        stats.add(stat);
       }
+      offset += fileSystem.getFileStatus(cellFile).getLen();
     }
+    return stats.toArray(new BlockStatistics[stats.size()]);
   }
 
   /**Returns maximum number of concurrent threads when closing the file*/
@@ -386,13 +786,26 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
    * @throws IOException 
    */
   protected Path getCellFilePath(int cellIndex) throws IOException {
-    if (cellFilePath[cellIndex] == null) {
+    if (cellFilePath[cellIndex] == null)
+      cellFilePath[cellIndex] = newCellFilePath();
+    return cellFilePath[cellIndex];
+  }
+  
+  /**
+   * Returns a new path for a cell file that is not used by any other cell
+   * and adds it to the paths to concatenate.
+   * @return
+   * @throws IOException
+   */
+  private Path newCellFilePath() throws IOException {
+    Path path;
+    synchronized (pathsToConcat) {
       do {
-        cellFilePath[cellIndex] = new Path(outFile.toUri().getPath() + '_'
+        path = new Path(outFile.toUri().getPath() + '_'
             + (int)(Math.random() * 1000000));
-      } while (fileSystem.exists(cellFilePath[cellIndex]));
-      pathsToConcat.add(cellFilePath[cellIndex]);
+      } while (pathsToConcat.contains(path) || fileSystem.exists(path));
+      pathsToConcat.add(path);
     }
-    return cellFilePath[cellIndex];
+    return path;
   }
 }
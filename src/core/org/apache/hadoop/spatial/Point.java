@@ -12,7 +12,7 @@ import org.apache.hadoop.io.TextSerializerHelper;
  * @author aseldawy
  *
  */
-public class Point implements Shape {
+public class Point implements Shape, TextMBRParsable {
 	public long x;
 	public long y;
 
@@ -73,6 +73,12 @@ public class Point implements Shape {
     return new Rectangle(x, y, 1, 1);
   }
 
+  @Override
+  public Rectangle getMBR(Rectangle mbr) {
+    mbr.set(x, y, 1, 1);
+    return mbr;
+  }
+
   @Override
   public double distanceTo(long px, long py) {
     long dx = x - px;
@@ -97,6 +103,40 @@ public class Point implements Shape {
     return sparsify(x) | (sparsify(y) << 1);
   }
   
+  /**
+   * Calculates the distance of the given point along a Hilbert curve that
+   * fills a square grid of size 2<sup>bits</sup> x 2<sup>bits</sup>.
+   * Only the least significant <code>bits</code> of each coordinate are used.
+   * Unlike the Morton (Z) order, consecutive values on the Hilbert curve are
+   * always adjacent in space which makes it better for packing.
+   * @param x
+   * @param y
+   * @param bits - number of bits per coordinate. Must be at most 31
+   * @return
+   */
+  public static long hilbertOrder(long x, long y, int bits) {
+    long mask = (1L << bits) - 1;
+    x &= mask;
+    y &= mask;
+    long d = 0;
+    for (long s = 1L << (bits - 1); s > 0; s >>= 1) {
+      long rx = (x & s) != 0 ? 1 : 0;
+      long ry = (y & s) != 0 ? 1 : 0;
+      d += s * s * ((3 * rx) ^ ry);
+      // Rotate the quadrant so that the curve continues correctly
+      if (ry == 0) {
+        if (rx == 1) {
+          x = s - 1 - x;
+          y = s - 1 - y;
+        }
+        long t = x;
+        x = y;
+        y = t;
+      }
+    }
+    return d;
+  }
+  
   /**
    * Sparses a number making it ready to be interleaved with another number
    * @param x
@@ -128,5 +168,19 @@ public class Point implements Shape {
     x = TextSerializerHelper.consumeLong(text, ',');
     y = TextSerializerHelper.consumeLong(text, '\0');
   }
+  
+  @Override
+  public Rectangle parseMBR(Text text, Rectangle mbr) {
+    byte[] bytes = text.getBytes();
+    int i = TextSerializerHelper.skipLong(bytes, 0, text.getLength());
+    if (i == 0) return null;
+    long px = TextSerializerHelper.deserializeLong(bytes, 0, i);
+    int offset = i + 1;
+    i = TextSerializerHelper.skipLong(bytes, offset, text.getLength());
+    if (i == offset) return null;
+    long py = TextSerializerHelper.deserializeLong(bytes, offset, i - offset);
+    mbr.set(px, py, 1, 1);
+    return mbr;
+  }
 
 }
@@ -1,9 +1,9 @@
 package org.apache.hadoop.spatial;
 
-import java.awt.geom.Rectangle2D;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.TextSerializerHelper;
@@ -16,6 +16,18 @@ import org.apache.hadoop.io.TextSerializerHelper;
 public class Polygon extends java.awt.Polygon implements Shape {
 
   private static final long serialVersionUID = -117491486038680078L;
+  
+  /**Whether the cached MBR and edge MBRs reflect the current points*/
+  private transient boolean edgesComputed;
+  
+  /**MBR of the polygon*/
+  private transient int minX, minY, maxX, maxY;
+  
+  /**MBRs of all edges. Edge i connects point i and point (i+1) % npoints*/
+  private transient int[] edgeMinX, edgeMinY, edgeMaxX, edgeMaxY;
+  
+  /**A temporary rectangle used to retrieve the MBR of other shapes*/
+  private transient Rectangle tempMBR;
 
   public Polygon() {
     super();
@@ -37,6 +49,7 @@ public class Polygon extends java.awt.Polygon implements Shape {
     this.ypoints = new int[npoints];
     System.arraycopy(xpoints, 0, this.xpoints, 0, npoints);
     System.arraycopy(ypoints, 0, this.ypoints, 0, npoints);
+    invalidate();
   }
 
   @Override
@@ -58,6 +71,8 @@ public class Polygon extends java.awt.Polygon implements Shape {
       this.xpoints[i] = in.readInt();
       this.ypoints[i] = in.readInt();
     }
+    // Clear cached bounds of the previous polygon
+    invalidate();
   }
 
   @Override
@@ -82,13 +97,59 @@ public class Polygon extends java.awt.Polygon implements Shape {
       this.ypoints[i] = TextSerializerHelper.consumeInt(text,
           i == npoints - 1 ? '\0' : ',');
     }
+    // Clear cached bounds of the previous polygon
+    invalidate();
+  }
+
+  @Override
+  public void invalidate() {
+    super.invalidate();
+    edgesComputed = false;
+  }
+  
+  /**
+   * Computes the MBR of the polygon and the MBR of each edge. These are
+   * reused by all intersection tests until the points change.
+   */
+  private void computeEdges() {
+    if (edgesComputed)
+      return;
+    if (edgeMinX == null || edgeMinX.length < npoints) {
+      edgeMinX = new int[npoints];
+      edgeMinY = new int[npoints];
+      edgeMaxX = new int[npoints];
+      edgeMaxY = new int[npoints];
+    }
+    minX = minY = Integer.MAX_VALUE;
+    maxX = maxY = Integer.MIN_VALUE;
+    for (int i = 0; i < npoints; i++) {
+      int j = i == npoints - 1 ? 0 : i + 1;
+      if (xpoints[i] < minX) minX = xpoints[i];
+      if (xpoints[i] > maxX) maxX = xpoints[i];
+      if (ypoints[i] < minY) minY = ypoints[i];
+      if (ypoints[i] > maxY) maxY = ypoints[i];
+      edgeMinX[i] = Math.min(xpoints[i], xpoints[j]);
+      edgeMaxX[i] = Math.max(xpoints[i], xpoints[j]);
+      edgeMinY[i] = Math.min(ypoints[i], ypoints[j]);
+      edgeMaxY[i] = Math.max(ypoints[i], ypoints[j]);
+    }
+    edgesComputed = true;
   }
 
   @Override
   public Rectangle getMBR() {
-    Rectangle2D mbr = super.getBounds2D();
-    return new Rectangle((long)mbr.getMinX(), (long)mbr.getMinY(),
-        (long)mbr.getWidth(), (long)mbr.getHeight());
+    return getMBR(new Rectangle());
+  }
+
+  @Override
+  public Rectangle getMBR(Rectangle mbr) {
+    if (npoints == 0) {
+      mbr.set(0, 0, 0, 0);
+      return mbr;
+    }
+    computeEdges();
+    mbr.set(minX, minY, (long)maxX - minX, (long)maxY - minY);
+    return mbr;
   }
 
   @Override
@@ -98,11 +159,325 @@ public class Polygon extends java.awt.Polygon implements Shape {
     return Math.sqrt(dx * dx + dy * dy);
   }
 
+  /**
+   * Tests whether this polygon intersects the given shape. Polygons and
+   * circles are tested exactly while other shapes are tested using their
+   * MBRs. As in {@link Rectangle}, two shapes intersect only if their
+   * interiors overlap. Shapes that only touch along an edge or at a corner
+   * are not considered intersecting.
+   */
   @Override
   public boolean isIntersected(Shape s) {
-    Rectangle2D mbr = super.getBounds2D();
-    return super.intersects(mbr.getMinX(), mbr.getMinY(),
-        mbr.getWidth(), mbr.getHeight());
+    if (s instanceof Polygon)
+      return isIntersected((Polygon) s);
+    if (s instanceof Circle) {
+      Circle c = (Circle) s;
+      return isIntersected(c.getCenterX(), c.getCenterY(), c.getRadius());
+    }
+    if (tempMBR == null)
+      tempMBR = new Rectangle();
+    Rectangle mbr = s.getMBR(tempMBR);
+    if (mbr == null)
+      return true; // A shape with no MBR covers the whole space
+    return isIntersected(mbr.getX1(), mbr.getY1(), mbr.getX2(), mbr.getY2());
+  }
+  
+  /**
+   * Tests whether the interior of this polygon overlaps the interior of the
+   * given rectangle
+   * @param rx1
+   * @param ry1
+   * @param rx2
+   * @param ry2
+   * @return
+   */
+  public boolean isIntersected(long rx1, long ry1, long rx2, long ry2) {
+    if (npoints == 0)
+      return false;
+    computeEdges();
+    if (!(maxX > rx1 && rx2 > minX && maxY > ry1 && ry2 > minY))
+      return false;
+    for (int i = 0; i < npoints; i++) {
+      // A vertex strictly inside the rectangle is surrounded by the interior
+      // of the rectangle which covers part of the interior of the polygon
+      if (xpoints[i] > rx1 && xpoints[i] < rx2 &&
+          ypoints[i] > ry1 && ypoints[i] < ry2)
+        return true;
+    }
+    // The part of the polygon inside the rectangle has a positive area only
+    // if the two interiors overlap
+    return clippedArea(rx1, ry1, rx2, ry2) != 0;
+  }
+  
+  /**
+   * Computes twice the signed area of the part of this polygon inside the
+   * given rectangle using the Sutherland-Hodgman algorithm. Points created
+   * on a side of the rectangle take the coordinate of that side as is so
+   * that parts that only touch the rectangle have an area of exactly zero.
+   * @param rx1
+   * @param ry1
+   * @param rx2
+   * @param ry2
+   * @return
+   */
+  private double clippedArea(long rx1, long ry1, long rx2, long ry2) {
+    double[] xs = new double[npoints];
+    double[] ys = new double[npoints];
+    for (int i = 0; i < npoints; i++) {
+      xs[i] = xpoints[i];
+      ys[i] = ypoints[i];
+    }
+    int n = npoints;
+    double[] outXs = new double[2 * n];
+    double[] outYs = new double[2 * n];
+    n = clip(xs, ys, n, rx1, true, outXs, outYs);
+    xs = new double[2 * n];
+    ys = new double[2 * n];
+    n = clip(outXs, outYs, n, rx2, false, xs, ys);
+    outXs = new double[2 * n];
+    outYs = new double[2 * n];
+    n = clip(ys, xs, n, ry1, true, outYs, outXs);
+    xs = new double[2 * n];
+    ys = new double[2 * n];
+    n = clip(outYs, outXs, n, ry2, false, ys, xs);
+    return signedArea(xs, ys, n);
+  }
+  
+  /**
+   * Clips a polygon by one side of a rectangle. The polygon is given by two
+   * arrays where the side of the rectangle is a line a = bound.
+   * @param as - the coordinate that is compared to the bound
+   * @param bs - the other coordinate
+   * @param n - number of points in the polygon
+   * @param bound - the coordinate of the side of the rectangle
+   * @param keepAbove - whether the part where a >= bound is kept or the part
+   *   where a <= bound
+   * @param outAs - receives the first coordinate of the clipped polygon
+   * @param outBs - receives the second coordinate of the clipped polygon
+   * @return - number of points in the clipped polygon
+   */
+  private static int clip(double[] as, double[] bs, int n, double bound,
+      boolean keepAbove, double[] outAs, double[] outBs) {
+    int outN = 0;
+    for (int i = 0, j = n - 1; i < n; j = i++) {
+      boolean insideI = keepAbove ? as[i] >= bound : as[i] <= bound;
+      boolean insideJ = keepAbove ? as[j] >= bound : as[j] <= bound;
+      if (insideI != insideJ) {
+        // The edge crosses the side. Add the crossing point.
+        outAs[outN] = bound;
+        outBs[outN++] = bs[j] + (bound - as[j]) * (bs[i] - bs[j]) / (as[i] - as[j]);
+      }
+      if (insideI) {
+        outAs[outN] = as[i];
+        outBs[outN++] = bs[i];
+      }
+    }
+    return outN;
+  }
+  
+  /**
+   * Computes twice the signed area of a polygon. The area is positive if the
+   * points are in counter clockwise order. Coordinates are taken relative
+   * to the first point so that collinear points give an area of exactly zero.
+   */
+  private static double signedArea(double[] xs, double[] ys, int n) {
+    double area = 0;
+    for (int i = 1; i < n - 1; i++) {
+      area += (xs[i] - xs[0]) * (ys[i + 1] - ys[0]) -
+          (xs[i + 1] - xs[0]) * (ys[i] - ys[0]);
+    }
+    return area;
+  }
+  
+  /**
+   * Tests whether the interior of this polygon overlaps the interior of the
+   * given polygon
+   * @param p
+   * @return
+   */
+  public boolean isIntersected(Polygon p) {
+    if (npoints == 0 || p.npoints == 0)
+      return false;
+    computeEdges();
+    p.computeEdges();
+    if (!(maxX > p.minX && p.maxX > minX && maxY > p.minY && p.maxY > minY))
+      return false;
+    // The boundary of the overlap of the two interiors, if any, is made of
+    // parts of the boundary of each polygon inside the other one and parts
+    // shared by the two polygons with both interiors on the same side
+    return hasBoundaryInside(p) || p.hasBoundaryInside(this);
+  }
+  
+  /**
+   * Tests whether a part of the boundary of this polygon lies inside the
+   * given polygon or is shared with it such that both interiors lie on the
+   * same side of that part. Each edge is split at all points where it meets
+   * the other polygon and each piece is tested on its own.
+   * @param p
+   * @return
+   */
+  private boolean hasBoundaryInside(Polygon p) {
+    double orientation = Math.signum(signedArea());
+    double otherOrientation = Math.signum(p.signedArea());
+    double[] splits = new double[2 * p.npoints + 2];
+    // Pieces of the edge shared with edges of the other polygon
+    double[] sharedStarts = new double[p.npoints];
+    double[] sharedEnds = new double[p.npoints];
+    boolean[] sharedSameSide = new boolean[p.npoints];
+    for (int i = 0; i < npoints; i++) {
+      if (edgeMaxX[i] < p.minX || edgeMinX[i] > p.maxX ||
+          edgeMaxY[i] < p.minY || edgeMinY[i] > p.maxY)
+        continue;
+      int i2 = i == npoints - 1 ? 0 : i + 1;
+      double ax = xpoints[i], ay = ypoints[i];
+      double dx = xpoints[i2] - ax, dy = ypoints[i2] - ay;
+      double len2 = dx * dx + dy * dy;
+      if (len2 == 0)
+        continue;
+      int numSplits = 0;
+      splits[numSplits++] = 0;
+      splits[numSplits++] = 1;
+      int numShared = 0;
+      for (int j = 0; j < p.npoints; j++) {
+        if (edgeMaxX[i] < p.edgeMinX[j] || edgeMinX[i] > p.edgeMaxX[j] ||
+            edgeMaxY[i] < p.edgeMinY[j] || edgeMinY[i] > p.edgeMaxY[j])
+          continue;
+        int j2 = j == p.npoints - 1 ? 0 : j + 1;
+        double bx = p.xpoints[j], by = p.ypoints[j];
+        double ex = p.xpoints[j2] - bx, ey = p.ypoints[j2] - by;
+        int o1 = orientation(ax, ay, ax + dx, ay + dy, bx, by);
+        int o2 = orientation(ax, ay, ax + dx, ay + dy, bx + ex, by + ey);
+        if (o1 == 0 && o2 == 0) {
+          // Collinear edges with overlapping MBRs share a piece
+          double t1 = ((bx - ax) * dx + (by - ay) * dy) / len2;
+          double t2 = ((bx + ex - ax) * dx + (by + ey - ay) * dy) / len2;
+          double tMin = Math.max(0, Math.min(t1, t2));
+          double tMax = Math.min(1, Math.max(t1, t2));
+          if (tMin >= tMax)
+            continue;
+          splits[numSplits++] = tMin;
+          splits[numSplits++] = tMax;
+          // Interiors are on the same side of a shared piece if the two
+          // edges go in the same direction along it and the polygons have
+          // the same orientation or vice versa
+          double direction = Math.signum(dx * ex + dy * ey);
+          sharedStarts[numShared] = tMin;
+          sharedEnds[numShared] = tMax;
+          sharedSameSide[numShared++] =
+              orientation * otherOrientation * direction > 0;
+          continue;
+        }
+        int o3 = orientation(bx, by, bx + ex, by + ey, ax, ay);
+        int o4 = orientation(bx, by, bx + ex, by + ey, ax + dx, ay + dy);
+        if (o1 * o2 > 0 || o3 * o4 > 0)
+          continue;
+        // The edges meet at one point. Find where it is along this edge.
+        double t = ((bx - ax) * ey - (by - ay) * ex) / (dx * ey - dy * ex);
+        if (t > 0 && t < 1)
+          splits[numSplits++] = t;
+      }
+      Arrays.sort(splits, 0, numSplits);
+      for (int k = 0; k < numSplits - 1; k++) {
+        if (splits[k] == splits[k + 1])
+          continue;
+        double t = (splits[k] + splits[k + 1]) / 2;
+        boolean shared = false;
+        for (int l = 0; l < numShared && !shared; l++) {
+          if (t > sharedStarts[l] && t < sharedEnds[l]) {
+            if (sharedSameSide[l])
+              return true;
+            shared = true;
+          }
+        }
+        // A piece that is not on the boundary of the other polygon is either
+        // completely inside it or completely outside it
+        if (!shared && p.contains(ax + t * dx, ay + t * dy))
+          return true;
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * Computes twice the signed area of this polygon. The area is positive if
+   * the points are in counter clockwise order.
+   * @return
+   */
+  private double signedArea() {
+    double area = 0;
+    for (int i = 0, j = npoints - 1; i < npoints; j = i++)
+      area += (double)xpoints[j] * ypoints[i] - (double)xpoints[i] * ypoints[j];
+    return area;
+  }
+  
+  /**
+   * Tests whether the interior of this polygon overlaps the circle with the
+   * given center and radius
+   * @param cx
+   * @param cy
+   * @param r
+   * @return
+   */
+  public boolean isIntersected(double cx, double cy, double r) {
+    if (npoints == 0)
+      return false;
+    computeEdges();
+    if (!(maxX > cx - r && cx + r > minX && maxY > cy - r && cy + r > minY))
+      return false;
+    if (contains(cx, cy))
+      return true;
+    // The center is outside. The circle intersects the polygon only if one
+    // of the edges is closer than r to the center
+    double r2 = r * r;
+    for (int i = 0; i < npoints; i++) {
+      if (edgeMaxX[i] <= cx - r || edgeMinX[i] >= cx + r ||
+          edgeMaxY[i] <= cy - r || edgeMinY[i] >= cy + r)
+        continue;
+      int j = i == npoints - 1 ? 0 : i + 1;
+      double dx = xpoints[j] - xpoints[i];
+      double dy = ypoints[j] - ypoints[i];
+      double len2 = dx * dx + dy * dy;
+      // Project the center on the edge and clamp to the edge end points
+      double t = len2 == 0 ? 0 :
+        ((cx - xpoints[i]) * dx + (cy - ypoints[i]) * dy) / len2;
+      t = Math.max(0, Math.min(1, t));
+      double px = xpoints[i] + t * dx - cx;
+      double py = ypoints[i] + t * dy - cy;
+      if (px * px + py * py < r2)
+        return true;
+    }
+    return false;
+  }
+  
+  /**
+   * Tests whether the given point is inside the polygon using the even-odd
+   * rule. Unlike {@link java.awt.Polygon#contains(double, double)} this
+   * method does not create any objects.
+   */
+  @Override
+  public boolean contains(double px, double py) {
+    boolean inside = false;
+    for (int i = 0, j = npoints - 1; i < npoints; j = i++) {
+      if ((ypoints[i] > py) != (ypoints[j] > py)) {
+        double xCross = xpoints[j] + (py - ypoints[j]) *
+            ((double)xpoints[i] - xpoints[j]) / ((double)ypoints[i] - ypoints[j]);
+        if (px < xCross)
+          inside = !inside;
+      }
+    }
+    return inside;
+  }
+  
+  /**
+   * Returns the orientation of the point (cx, cy) relative to the directed
+   * line from (ax, ay) to (bx, by).
+   * @return 1 if the point is to the left, -1 if it is to the right, or 0
+   *   if the three points are collinear
+   */
+  private static int orientation(double ax, double ay, double bx, double by,
+      double cx, double cy) {
+    double v = (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+    return v > 0 ? 1 : (v < 0 ? -1 : 0);
   }
   
   public Polygon clone() {
@@ -0,0 +1,564 @@
+package org.apache.hadoop.spatial;
+
+import java.util.Stack;
+import java.util.Vector;
+
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+
+/**
+ * An in-memory R*-tree that supports insertion, deletion and search. Unlike
+ * {@link RTree} which is bulk loaded once and stored in a block, this tree
+ * can be built incrementally as shapes arrive which makes it suitable for
+ * reducers and streaming operators that cannot wait for all their input.
+ * The tree follows the original R*-tree paper, i.e., it chooses subtrees by
+ * minimum overlap enlargement at the level above leaves, uses forced
+ * reinsertion on the first overflow of each level and splits nodes along the
+ * axis with the minimum margin.
+ * @author eldawy
+ *
+ * @param <S>
+ */
+public class RStarTree<S extends Shape> {
+  /**Default maximum number of entries in one node*/
+  public static final int DefaultMaxEntries = 16;
+
+  /**Maximum number of entries in one node*/
+  private final int maxEntries;
+
+  /**Minimum number of entries in a non-root node*/
+  private final int minEntries;
+
+  /**Number of entries removed from an overflowing node to be reinserted*/
+  private final int reinsertCount;
+
+  /**Root of the tree*/
+  private Node root;
+
+  /**Number of shapes stored in the tree*/
+  private int size;
+
+  /**
+   * A node in the tree. Leaf nodes (level 0) store shapes while non-leaf
+   * nodes store other nodes. The MBR of each entry is stored in the arrays
+   * of its parent node.
+   * @author eldawy
+   *
+   */
+  private static class Node {
+    /**Level of this node where leaves are at level zero*/
+    final int level;
+    /**Number of entries currently in this node*/
+    int size;
+    /**Coordinates of MBRs of all entries*/
+    final long[] x1s, y1s, x2s, y2s;
+    /**Entries (either nodes or shapes) stored in this node*/
+    final Object[] entries;
+    /**The parent node or null for the root*/
+    Node parent;
+
+    Node(int level, int capacity) {
+      this.level = level;
+      x1s = new long[capacity];
+      y1s = new long[capacity];
+      x2s = new long[capacity];
+      y2s = new long[capacity];
+      entries = new Object[capacity];
+    }
+
+    void add(long x1, long y1, long x2, long y2, Object entry) {
+      x1s[size] = x1;
+      y1s[size] = y1;
+      x2s[size] = x2;
+      y2s[size] = y2;
+      entries[size] = entry;
+      if (level > 0)
+        ((Node)entry).parent = this;
+      size++;
+    }
+
+    void remove(int i) {
+      size--;
+      x1s[i] = x1s[size];
+      y1s[i] = y1s[size];
+      x2s[i] = x2s[size];
+      y2s[i] = y2s[size];
+      entries[i] = entries[size];
+      entries[size] = null;
+    }
+
+    void swap(int i, int j) {
+      long t = x1s[i]; x1s[i] = x1s[j]; x1s[j] = t;
+      t = y1s[i]; y1s[i] = y1s[j]; y1s[j] = t;
+      t = x2s[i]; x2s[i] = x2s[j]; x2s[j] = t;
+      t = y2s[i]; y2s[i] = y2s[j]; y2s[j] = t;
+      Object e = entries[i]; entries[i] = entries[j]; entries[j] = e;
+    }
+
+    int indexOf(Object entry) {
+      for (int i = 0; i < size; i++)
+        if (entries[i] == entry)
+          return i;
+      return -1;
+    }
+
+    /**
+     * Computes the MBR of all entries in this node.
+     * @param mbr - an array of four elements to store x1, y1, x2, y2
+     */
+    void getMBR(long[] mbr) {
+      mbr[0] = mbr[1] = Long.MAX_VALUE;
+      mbr[2] = mbr[3] = Long.MIN_VALUE;
+      for (int i = 0; i < size; i++) {
+        if (x1s[i] < mbr[0]) mbr[0] = x1s[i];
+        if (y1s[i] < mbr[1]) mbr[1] = y1s[i];
+        if (x2s[i] > mbr[2]) mbr[2] = x2s[i];
+        if (y2s[i] > mbr[3]) mbr[3] = y2s[i];
+      }
+    }
+  }
+
+  public RStarTree() {
+    this(DefaultMaxEntries);
+  }
+
+  /**
+   * Creates an empty tree where each node contains at most the given
+   * number of entries.
+   * @param maxEntries
+   */
+  public RStarTree(int maxEntries) {
+    if (maxEntries < 4)
+      throw new RuntimeException("Node capacity must be at least 4");
+    this.maxEntries = maxEntries;
+    this.minEntries = Math.max(2, maxEntries * 2 / 5);
+    this.reinsertCount = Math.max(1, maxEntries * 3 / 10);
+    clear();
+  }
+
+  /**
+   * Removes all shapes from the tree
+   */
+  public void clear() {
+    root = new Node(0, maxEntries + 1);
+    size = 0;
+  }
+
+  /**
+   * Number of shapes stored in the tree
+   * @return
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Height of the tree. A tree with only one leaf node has a height of one.
+   * @return
+   */
+  public int getHeight() {
+    return root.level + 1;
+  }
+
+  /**
+   * Inserts the given shape into the tree. The shape is stored as is and
+   * should not be modified while it is in the tree.
+   * @param shape
+   */
+  public void insert(S shape) {
+    Rectangle mbr = shape.getMBR();
+    insert(mbr.getX1(), mbr.getY1(), mbr.getX2(), mbr.getY2(), shape, 0,
+        new boolean[root.level + 2]);
+    size++;
+  }
+
+  /**
+   * Deletes the given shape from the tree. The shape is located using its MBR
+   * and then compared to stored shapes using {@link Object#equals(Object)}.
+   * @param shape
+   * @return - <code>true</code> if the shape was found and deleted
+   */
+  public boolean delete(S shape) {
+    Rectangle mbr = shape.getMBR();
+    long x1 = mbr.getX1(), y1 = mbr.getY1(), x2 = mbr.getX2(), y2 = mbr.getY2();
+    Stack<Node> toBeSearched = new Stack<Node>();
+    toBeSearched.push(root);
+    while (!toBeSearched.isEmpty()) {
+      Node node = toBeSearched.pop();
+      for (int i = 0; i < node.size; i++) {
+        if (node.x1s[i] > x1 || node.y1s[i] > y1 ||
+            node.x2s[i] < x2 || node.y2s[i] < y2)
+          continue;
+        if (node.level > 0) {
+          toBeSearched.push((Node) node.entries[i]);
+        } else if (node.entries[i] == shape || shape.equals(node.entries[i])) {
+          node.remove(i);
+          condenseTree(node);
+          size--;
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Finds all shapes that intersect the given query shape. Candidates are
+   * selected using their MBRs then tested using
+   * {@link Shape#isIntersected(Shape)}.
+   * @param query
+   * @param output
+   * @return - number of shapes found
+   */
+  @SuppressWarnings("unchecked")
+  public int search(Shape query, ResultCollector<S> output) {
+    Rectangle mbr = query.getMBR();
+    long x1 = mbr.getX1(), y1 = mbr.getY1(), x2 = mbr.getX2(), y2 = mbr.getY2();
+    int resultCount = 0;
+    Stack<Node> toBeSearched = new Stack<Node>();
+    toBeSearched.push(root);
+    while (!toBeSearched.isEmpty()) {
+      Node node = toBeSearched.pop();
+      for (int i = 0; i < node.size; i++) {
+        if (!(node.x2s[i] > x1 && x2 > node.x1s[i] &&
+            node.y2s[i] > y1 && y2 > node.y1s[i]))
+          continue;
+        if (node.level > 0) {
+          toBeSearched.push((Node) node.entries[i]);
+        } else {
+          S shape = (S) node.entries[i];
+          if (shape.isIntersected(query)) {
+            resultCount++;
+            if (output != null)
+              output.collect(shape);
+          }
+        }
+      }
+    }
+    return resultCount;
+  }
+
+  /**
+   * Inserts an entry in a node at the given level.
+   * @param x1
+   * @param y1
+   * @param x2
+   * @param y2
+   * @param entry - a shape if level is zero or a node otherwise
+   * @param level
+   * @param reinserted - levels at which a forced reinsert has been done
+   *   during the current insertion
+   */
+  private void insert(long x1, long y1, long x2, long y2, Object entry,
+      int level, boolean[] reinserted) {
+    Node node = chooseNode(x1, y1, x2, y2, level);
+    node.add(x1, y1, x2, y2, entry);
+    adjustPath(node);
+    if (node.size > maxEntries)
+      overflowTreatment(node, reinserted);
+  }
+
+  /**
+   * Chooses the node at the given level where a new entry should be added.
+   * @return
+   */
+  private Node chooseNode(long x1, long y1, long x2, long y2, int level) {
+    Node node = root;
+    while (node.level > level) {
+      int best = -1;
+      double bestOverlap = Double.MAX_VALUE;
+      double bestEnlargement = Double.MAX_VALUE;
+      double bestArea = Double.MAX_VALUE;
+      for (int i = 0; i < node.size; i++) {
+        long ux1 = Math.min(x1, node.x1s[i]);
+        long uy1 = Math.min(y1, node.y1s[i]);
+        long ux2 = Math.max(x2, node.x2s[i]);
+        long uy2 = Math.max(y2, node.y2s[i]);
+        double area = area(node.x1s[i], node.y1s[i], node.x2s[i], node.y2s[i]);
+        double enlargement = area(ux1, uy1, ux2, uy2) - area;
+        double overlap = 0;
+        if (node.level == 1) {
+          // Children are leaves. Minimize overlap enlargement
+          for (int j = 0; j < node.size; j++) {
+            if (j == i)
+              continue;
+            overlap += overlap(ux1, uy1, ux2, uy2,
+                node.x1s[j], node.y1s[j], node.x2s[j], node.y2s[j]) -
+                overlap(node.x1s[i], node.y1s[i], node.x2s[i], node.y2s[i],
+                    node.x1s[j], node.y1s[j], node.x2s[j], node.y2s[j]);
+          }
+        }
+        if (overlap < bestOverlap ||
+            (overlap == bestOverlap && (enlargement < bestEnlargement ||
+                (enlargement == bestEnlargement && area < bestArea)))) {
+          best = i;
+          bestOverlap = overlap;
+          bestEnlargement = enlargement;
+          bestArea = area;
+        }
+      }
+      node = (Node) node.entries[best];
+    }
+    return node;
+  }
+
+  /**
+   * Updates the MBRs of all nodes on the path from the given node to the root
+   * @param node
+   */
+  private void adjustPath(Node node) {
+    long[] mbr = new long[4];
+    while (node.parent != null) {
+      Node parent = node.parent;
+      int i = parent.indexOf(node);
+      node.getMBR(mbr);
+      parent.x1s[i] = mbr[0];
+      parent.y1s[i] = mbr[1];
+      parent.x2s[i] = mbr[2];
+      parent.y2s[i] = mbr[3];
+      node = parent;
+    }
+  }
+
+  private void overflowTreatment(Node node, boolean[] reinserted) {
+    if (node != root && node.level < reinserted.length &&
+        !reinserted[node.level]) {
+      reinserted[node.level] = true;
+      reinsert(node, reinserted);
+    } else {
+      split(node, reinserted);
+    }
+  }
+
+  /**
+   * Removes the entries that are farthest from the center of the node and
+   * inserts them again starting with the closest one.
+   * @param node
+   * @param reinserted
+   */
+  private void reinsert(Node node, boolean[] reinserted) {
+    long[] mbr = new long[4];
+    node.getMBR(mbr);
+    double cx = ((double)mbr[0] + mbr[2]) / 2;
+    double cy = ((double)mbr[1] + mbr[3]) / 2;
+    double[] distances = new double[node.size];
+    for (int i = 0; i < node.size; i++) {
+      double dx = ((double)node.x1s[i] + node.x2s[i]) / 2 - cx;
+      double dy = ((double)node.y1s[i] + node.y2s[i]) / 2 - cy;
+      distances[i] = dx * dx + dy * dy;
+    }
+    sortEntries(node, distances);
+
+    int keep = node.size - reinsertCount;
+    long[] x1s = new long[reinsertCount], y1s = new long[reinsertCount];
+    long[] x2s = new long[reinsertCount], y2s = new long[reinsertCount];
+    Object[] entries = new Object[reinsertCount];
+    for (int i = 0; i < reinsertCount; i++) {
+      x1s[i] = node.x1s[keep + i];
+      y1s[i] = node.y1s[keep + i];
+      x2s[i] = node.x2s[keep + i];
+      y2s[i] = node.y2s[keep + i];
+      entries[i] = node.entries[keep + i];
+      node.entries[keep + i] = null;
+    }
+    node.size = keep;
+    adjustPath(node);
+    for (int i = 0; i < reinsertCount; i++)
+      insert(x1s[i], y1s[i], x2s[i], y2s[i], entries[i], node.level, reinserted);
+  }
+
+  /**
+   * Splits an overflowing node into two nodes and propagates the split up
+   * @param node
+   * @param reinserted
+   */
+  private void split(Node node, boolean[] reinserted) {
+    int count = node.size;
+    double[] keys = new double[count];
+    long[] prefix = new long[4 * count];
+    long[] suffix = new long[4 * count];
+
+    // Choose the split axis with the minimum sum of margins
+    int bestAxis = 0;
+    double bestMarginSum = Double.MAX_VALUE;
+    for (int axis = 0; axis < 2; axis++) {
+      double marginSum = 0;
+      for (int upper = 0; upper < 2; upper++) {
+        sortByAxis(node, axis, upper == 1, keys);
+        computeGroupMBRs(node, prefix, suffix);
+        for (int k = minEntries; k <= count - minEntries; k++) {
+          marginSum += margin(prefix, k - 1) + margin(suffix, k);
+        }
+      }
+      if (marginSum < bestMarginSum) {
+        bestMarginSum = marginSum;
+        bestAxis = axis;
+      }
+    }
+
+    // Choose the distribution with minimum overlap along the chosen axis
+    boolean bestUpper = false;
+    int bestK = minEntries;
+    double bestOverlap = Double.MAX_VALUE;
+    double bestArea = Double.MAX_VALUE;
+    for (int upper = 0; upper < 2; upper++) {
+      sortByAxis(node, bestAxis, upper == 1, keys);
+      computeGroupMBRs(node, prefix, suffix);
+      for (int k = minEntries; k <= count - minEntries; k++) {
+        int p = 4 * (k - 1), s = 4 * k;
+        double overlap = overlap(prefix[p], prefix[p + 1], prefix[p + 2],
+            prefix[p + 3], suffix[s], suffix[s + 1], suffix[s + 2],
+            suffix[s + 3]);
+        double area = area(prefix[p], prefix[p + 1], prefix[p + 2],
+            prefix[p + 3]) + area(suffix[s], suffix[s + 1], suffix[s + 2],
+            suffix[s + 3]);
+        if (overlap < bestOverlap ||
+            (overlap == bestOverlap && area < bestArea)) {
+          bestOverlap = overlap;
+          bestArea = area;
+          bestK = k;
+          bestUpper = upper == 1;
+        }
+      }
+    }
+    sortByAxis(node, bestAxis, bestUpper, keys);
+
+    // Move the second group to a new node
+    Node sibling = new Node(node.level, maxEntries + 1);
+    for (int i = bestK; i < count; i++) {
+      sibling.add(node.x1s[i], node.y1s[i], node.x2s[i], node.y2s[i],
+          node.entries[i]);
+      node.entries[i] = null;
+    }
+    node.size = bestK;
+
+    long[] mbr = new long[4];
+    if (node == root) {
+      Node newRoot = new Node(node.level + 1, maxEntries + 1);
+      node.getMBR(mbr);
+      newRoot.add(mbr[0], mbr[1], mbr[2], mbr[3], node);
+      sibling.getMBR(mbr);
+      newRoot.add(mbr[0], mbr[1], mbr[2], mbr[3], sibling);
+      root = newRoot;
+    } else {
+      Node parent = node.parent;
+      adjustPath(node);
+      sibling.getMBR(mbr);
+      parent.add(mbr[0], mbr[1], mbr[2], mbr[3], sibling);
+      adjustPath(parent);
+      if (parent.size > maxEntries)
+        overflowTreatment(parent, reinserted);
+    }
+  }
+
+  /**
+   * Called after an entry is removed from the given leaf node. Removes
+   * underfull nodes on the path to the root and reinserts their entries.
+   * @param leaf
+   */
+  private void condenseTree(Node leaf) {
+    Vector<Node> eliminated = new Vector<Node>();
+    Node lowestRemaining = null;
+    Node node = leaf;
+    while (node != root) {
+      Node parent = node.parent;
+      if (node.size < minEntries) {
+        parent.remove(parent.indexOf(node));
+        eliminated.add(node);
+      } else if (lowestRemaining == null) {
+        lowestRemaining = node;
+      }
+      node = parent;
+    }
+    if (lowestRemaining != null)
+      adjustPath(lowestRemaining);
+    for (Node e : eliminated) {
+      for (int i = 0; i < e.size; i++) {
+        insert(e.x1s[i], e.y1s[i], e.x2s[i], e.y2s[i], e.entries[i], e.level,
+            new boolean[root.level + 2]);
+      }
+    }
+    // Shorten the tree if the root has only one child
+    while (root.level > 0 && root.size == 1) {
+      root = (Node) root.entries[0];
+      root.parent = null;
+    }
+  }
+
+  /**
+   * Sorts entries of the given node by their lower or upper coordinate along
+   * the given axis
+   */
+  private static void sortByAxis(Node node, int axis, boolean upper,
+      double[] keys) {
+    long[] values = axis == 0 ? (upper ? node.x2s : node.x1s) :
+      (upper ? node.y2s : node.y1s);
+    for (int i = 0; i < node.size; i++)
+      keys[i] = values[i];
+    sortEntries(node, keys);
+  }
+
+  /**
+   * Sorts entries of the given node in place according to the given keys.
+   * @param node
+   * @param keys - a key for each entry. Reordered along with the entries.
+   */
+  private static void sortEntries(final Node node, final double[] keys) {
+    new QuickSort().sort(new IndexedSortable() {
+      @Override
+      public void swap(int i, int j) {
+        double t = keys[i];
+        keys[i] = keys[j];
+        keys[j] = t;
+        node.swap(i, j);
+      }
+
+      @Override
+      public int compare(int i, int j) {
+        return keys[i] < keys[j] ? -1 : (keys[i] > keys[j] ? 1 : 0);
+      }
+    }, 0, node.size);
+  }
+
+  /**
+   * Computes the MBR of the first k+1 entries in prefix[4*k..4*k+3] and
+   * the MBR of all entries starting at k in suffix[4*k..4*k+3]
+   */
+  private static void computeGroupMBRs(Node node, long[] prefix,
+      long[] suffix) {
+    int n = node.size;
+    for (int i = 0; i < n; i++) {
+      int p = 4 * i;
+      prefix[p] = i == 0 ? node.x1s[i] : Math.min(prefix[p - 4], node.x1s[i]);
+      prefix[p + 1] = i == 0 ? node.y1s[i] : Math.min(prefix[p - 3], node.y1s[i]);
+      prefix[p + 2] = i == 0 ? node.x2s[i] : Math.max(prefix[p - 2], node.x2s[i]);
+      prefix[p + 3] = i == 0 ? node.y2s[i] : Math.max(prefix[p - 1], node.y2s[i]);
+    }
+    for (int i = n - 1; i >= 0; i--) {
+      int s = 4 * i;
+      boolean last = i == n - 1;
+      suffix[s] = last ? node.x1s[i] : Math.min(suffix[s + 4], node.x1s[i]);
+      suffix[s + 1] = last ? node.y1s[i] : Math.min(suffix[s + 5], node.y1s[i]);
+      suffix[s + 2] = last ? node.x2s[i] : Math.max(suffix[s + 6], node.x2s[i]);
+      suffix[s + 3] = last ? node.y2s[i] : Math.max(suffix[s + 7], node.y2s[i]);
+    }
+  }
+
+  private static double margin(long[] mbrs, int i) {
+    return ((double)mbrs[4 * i + 2] - mbrs[4 * i]) +
+        ((double)mbrs[4 * i + 3] - mbrs[4 * i + 1]);
+  }
+
+  private static double area(long x1, long y1, long x2, long y2) {
+    return ((double)x2 - x1) * ((double)y2 - y1);
+  }
+
+  private static double overlap(long ax1, long ay1, long ax2, long ay2,
+      long bx1, long by1, long bx2, long by2) {
+    long x1 = Math.max(ax1, bx1), y1 = Math.max(ay1, by1);
+    long x2 = Math.min(ax2, bx2), y2 = Math.min(ay2, by2);
+    if (x2 <= x1 || y2 <= y1)
+      return 0;
+    return area(x1, y1, x2, y2);
+  }
+}
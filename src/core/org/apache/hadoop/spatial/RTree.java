@@ -1,12 +1,12 @@
 package org.apache.hadoop.spatial;
 
-import java.io.ByteArrayInputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Queue;
@@ -16,6 +16,7 @@ import java.util.Vector;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.PositionedReadable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.util.IndexedSortable;
@@ -39,16 +40,28 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
   /**Size of a node. Offset of first child + dimensions (x, y, width, height)*/
   private static final int NodeSize = 4 + 8 * 4;
 
+  /**
+   * Size of a record in the binary format. Offset of the payload (text
+   * representation of the record) + MBR of the record (x, y, width, height)
+   */
+  static final int RecordSize = 4 + 8 * 4;
+
   /** An instance of T that can be used to deserialize objects from disk */
   T stockObject;
   
   /** When reading the RTree from disk, this buffer contains the serialized
-   * version of the tree as it appears on disk.
+   * version of the tree as it appears on disk. Index zero is the first byte of
+   * the tree header and the limit is the end of the tree. All accesses are
+   * done using absolute indexes so that searching the tree does not change
+   * the position of the buffer.
    */
-  byte[] serializedTree;
+  ByteBuffer serializedTree;
 
-  /**Input stream to tree data*/
-  private DataInputStream dataIn;
+  /**
+   * A temporary buffer used to parse elements when the serialized tree is
+   * not backed by an accessible array (e.g., a direct or a mapped buffer)
+   */
+  private byte[] lineBuffer;
 
   /**Height of the tree (number of levels)*/
   private int height;
@@ -68,6 +81,28 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
   /**Number of elements in the tree*/
   private int elementCount;
 
+  /**
+   * Whether the tree is stored in the binary format or not. In the binary
+   * format, the nodes are followed by an array of fixed-size records, one
+   * for each element, which store the MBR of the element and the offset of
+   * its text representation (payload). All payloads come after the records.
+   * This allows the search to test elements against the query without
+   * parsing them.
+   */
+  private boolean binary;
+
+  /**
+   * Whether to pack elements by their order on a Hilbert curve instead of
+   * using STR when building the tree in fast mode.
+   */
+  private boolean hilbertPacking;
+
+  /**Number of nodes read by queries since the last call to resetCounters*/
+  private long nodesVisited;
+
+  /**Number of elements parsed by queries since the last call to resetCounters*/
+  private long elementsVisited;
+
   public RTree() {
   }
 
@@ -84,7 +119,10 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
    *  to run faster by materializing the offset of each element in the list
    *  which speeds up the comparison. However, this requires an additional
    *  16 bytes per element. So, for each 1M elements, the method will require
-   *  an additional 16 M bytes (approximately).
+   *  an additional 16 M bytes (approximately). In this mode, the tree is
+   *  packed using Sort-Tile-Recursive (STR) where slices are sorted in
+   *  parallel, or using a Hilbert curve if {@link #setHilbertPacking(boolean)}
+   *  is set.
    */
   public void bulkLoadWrite(final byte[] element_bytes, final int offset, final int len,
       int bytesAvailable, DataOutput dataOut, final boolean fast_sort) {
@@ -102,6 +140,10 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
       }
       LOG.info("Bulk loading an RTree with "+elementCount+" elements");
       
+      if (binary) {
+        // Records of the binary format are stored with the tree structure
+        bytesAvailable -= elementCount * RecordSize;
+      }
       final int degree = findBestDegree(bytesAvailable, elementCount);
       LOG.info("Writing an RTree with degree "+degree);
       
@@ -299,16 +341,29 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
       
       // All nodes stored in level-order traversal
       Vector<SplitStruct> nodes = new Vector<SplitStruct>();
-      final Queue<SplitStruct> toBePartitioned = new LinkedList<SplitStruct>();
-      toBePartitioned.add(new SplitStruct(0, elementCount, SplitStruct.DIRECTION_X));
-      
-      while (!toBePartitioned.isEmpty()) {
-        SplitStruct split = toBePartitioned.poll();
-        if (nodes.size() < nonLeafNodeCount) {
-          // This is a non-leaf
-          split.partition(toBePartitioned);
+      if (fast_sort) {
+        // Pack elements using STR. Only the ranges of leaf nodes are needed.
+        // MBRs of all nodes are calculated below.
+        int[] leafBoundaries = hilbertPacking ?
+            packHilbert(offsets, xs, ys, degree, height) :
+            packSTR(offsets, xs, ys, degree, height);
+        for (int i_node = 0; i_node < nonLeafNodeCount; i_node++)
+          nodes.add(new SplitStruct(0, 0, SplitStruct.DIRECTION_X));
+        for (int i_leaf = 0; i_leaf < leafNodeCount; i_leaf++)
+          nodes.add(new SplitStruct(leafBoundaries[i_leaf],
+              leafBoundaries[i_leaf + 1], SplitStruct.DIRECTION_X));
+      } else {
+        final Queue<SplitStruct> toBePartitioned = new LinkedList<SplitStruct>();
+        toBePartitioned.add(new SplitStruct(0, elementCount, SplitStruct.DIRECTION_X));
+        
+        while (!toBePartitioned.isEmpty()) {
+          SplitStruct split = toBePartitioned.poll();
+          if (nodes.size() < nonLeafNodeCount) {
+            // This is a non-leaf
+            split.partition(toBePartitioned);
+          }
+          nodes.add(split);
         }
-        nodes.add(split);
       }
       
       if (nodes.size() != nodeCount) {
@@ -317,6 +372,11 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
       
       // Now we have our data sorted in the required order. Start building
       // the tree.
+      // MBRs of all elements in the order they are written. Only needed for
+      // the binary format where MBRs are stored in records
+      final long[] elementMBRs = binary? new long[elementCount * 4] : null;
+      // Offset of the first record (binary format only)
+      final int recordsOffset = TreeHeaderSize + nodes.size() * NodeSize;
       // Store the offset of each leaf node in the tree
       FSDataOutputStream fakeOut =
           new FSDataOutputStream(new java.io.OutputStream() {
@@ -335,7 +395,11 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
             }
           }, null, TreeHeaderSize + nodes.size() * NodeSize);
       for (int i_leaf = nonLeafNodeCount, i=0; i_leaf < nodes.size(); i_leaf++) {
-        nodes.elementAt(i_leaf).offsetOfFirstElement = (int)fakeOut.getPos();
+        // In the binary format, leaf nodes point to records rather than
+        // to the text of the elements
+        nodes.elementAt(i_leaf).offsetOfFirstElement = binary ?
+            recordsOffset + nodes.elementAt(i_leaf).index1 * RecordSize :
+            (int)fakeOut.getPos();
         if (i != nodes.elementAt(i_leaf).index1) throw new RuntimeException();
         long x1 = Long.MAX_VALUE;
         long y1 = Long.MAX_VALUE;
@@ -352,6 +416,12 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
           if (mbr.getY1() < y1) y1 = mbr.getY1();
           if (mbr.getX2() > x2) x2 = mbr.getX2();
           if (mbr.getY2() > y2) y2 = mbr.getY2();
+          if (elementMBRs != null) {
+            elementMBRs[i * 4 + 0] = mbr.x;
+            elementMBRs[i * 4 + 1] = mbr.y;
+            elementMBRs[i * 4 + 2] = mbr.width;
+            elementMBRs[i * 4 + 3] = mbr.height;
+          }
           i++;
         }
         nodes.elementAt(i_leaf).set(x1, y1, x2-x1, y2-y1);
@@ -380,7 +450,8 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
       // Start writing the tree
       // write tree header (including size)
       // Total tree size. (== Total bytes written - 8 bytes for the size itself)
-      dataOut.writeInt(TreeHeaderSize + NodeSize * nodeCount + len);
+      dataOut.writeInt(TreeHeaderSize + NodeSize * nodeCount +
+          (binary ? RecordSize * elementCount : 0) + len);
       // Tree height
       dataOut.writeInt(height);
       // Degree
@@ -391,6 +462,19 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
       for (SplitStruct node : nodes) {
         node.write(dataOut);
       }
+      if (binary) {
+        // write records. Each record points to the payload of its element
+        int payloadOffset = recordsOffset + RecordSize * elementCount;
+        for (int element_i = 0; element_i < elementCount; element_i++) {
+          dataOut.writeInt(payloadOffset);
+          dataOut.writeLong(elementMBRs[element_i * 4 + 0]);
+          dataOut.writeLong(elementMBRs[element_i * 4 + 1]);
+          dataOut.writeLong(elementMBRs[element_i * 4 + 2]);
+          dataOut.writeLong(elementMBRs[element_i * 4 + 3]);
+          payloadOffset += skipToEOL(element_bytes, offsets[element_i]) -
+              offsets[element_i];
+        }
+      }
       // write elements
       for (int element_i = 0; element_i < elementCount; element_i++) {
         int eol = skipToEOL(element_bytes, offsets[element_i]);
@@ -403,24 +487,535 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
     }
   }
   
+  /**
+   * Sorts the given range of elements according to the given coordinate
+   * (xs or ys). All three arrays are swapped together.
+   * @param offsets
+   * @param xs
+   * @param ys
+   * @param keys - either xs or ys
+   * @param start
+   * @param end
+   */
+  private static void sortElements(final int[] offsets, final long[] xs,
+      final long[] ys, final long[] keys, int start, int end) {
+    new QuickSort().sort(new IndexedSortable() {
+      @Override
+      public void swap(int i, int j) {
+        long tempx = xs[i];
+        xs[i] = xs[j];
+        xs[j] = tempx;
+        long tempY = ys[i];
+        ys[i] = ys[j];
+        ys[j] = tempY;
+        int tempid = offsets[i];
+        offsets[i] = offsets[j];
+        offsets[j] = tempid;
+      }
+      
+      @Override
+      public int compare(int i, int j) {
+        if (keys[i] < keys[j])
+          return -1;
+        if (keys[i] > keys[j])
+          return 1;
+        return 0;
+      }
+    }, start, end);
+  }
+  
+  /**
+   * Sorts many disjoint ranges of elements by the y coordinate in parallel.
+   * Slice s covers the elements [sliceStarts[s], sliceStarts[s+1]).
+   * @param offsets
+   * @param xs
+   * @param ys
+   * @param sliceStarts
+   */
+  private static void sortSlicesInParallel(final int[] offsets,
+      final long[] xs, final long[] ys, final int[] sliceStarts) {
+    final int numSlices = sliceStarts.length - 1;
+    int numThreads = Math.min(numSlices,
+        Runtime.getRuntime().availableProcessors());
+    if (numThreads <= 1) {
+      for (int s = 0; s < numSlices; s++)
+        sortElements(offsets, xs, ys, ys, sliceStarts[s], sliceStarts[s + 1]);
+      return;
+    }
+    Vector<Thread> sortThreads = new Vector<Thread>();
+    for (int i_thread = 0; i_thread < numThreads; i_thread++) {
+      final int firstSlice = i_thread;
+      final int sliceStep = numThreads;
+      Thread sortThread = new Thread() {
+        @Override
+        public void run() {
+          // Slices are disjoint so threads never touch the same element
+          for (int s = firstSlice; s < numSlices; s += sliceStep)
+            sortElements(offsets, xs, ys, ys, sliceStarts[s], sliceStarts[s + 1]);
+        }
+      };
+      sortThreads.add(sortThread);
+      sortThread.start();
+    }
+    for (Thread sortThread : sortThreads) {
+      try {
+        sortThread.join();
+      } catch (InterruptedException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+  
+  /**
+   * Packs the given elements in a tree with the given degree and height
+   * using Sort-Tile-Recursive (STR). Leaves are created first by sorting
+   * elements by x, cutting them into vertical slices and sorting each slice
+   * by y. Upper levels are then built bottom-up by packing the centers of
+   * the nodes in the level below in the same way. Finally, the elements are
+   * reordered such that leaves appear in level-order of the tree.
+   * @param offsets - offsets of the elements. Reordered in place
+   * @param xs - x coordinates of element centers. Reordered in place
+   * @param ys - y coordinates of element centers. Reordered in place
+   * @param degree
+   * @param height
+   * @return - the boundaries of leaf nodes in level order. Leaf i contains
+   *   elements in the range [boundaries[i], boundaries[i+1])
+   */
+  static int[] packSTR(int[] offsets, long[] xs, long[] ys, int degree,
+      int height) {
+    final int elementCount = offsets.length;
+    final int leafNodeCount = powInt(degree, height - 1);
+    
+    // Create leaves. Leaf with ID i contains elements in the range
+    // [i * elementCount / leafNodeCount, (i+1) * elementCount / leafNodeCount)
+    sortElements(offsets, xs, ys, xs, 0, elementCount);
+    int numSlices = (int) Math.ceil(Math.sqrt(leafNodeCount));
+    int[] sliceStarts = new int[numSlices + 1];
+    for (int s = 0; s <= numSlices; s++) {
+      long firstLeaf = (long) leafNodeCount * s / numSlices;
+      sliceStarts[s] = (int) (elementCount * firstLeaf / leafNodeCount);
+    }
+    sortSlicesInParallel(offsets, xs, ys, sliceStarts);
+    
+    // Bounding boxes of the centers of the elements in each node at the
+    // current level. Used to pack the level above
+    long[] x1s = new long[leafNodeCount];
+    long[] y1s = new long[leafNodeCount];
+    long[] x2s = new long[leafNodeCount];
+    long[] y2s = new long[leafNodeCount];
+    for (int i_leaf = 0; i_leaf < leafNodeCount; i_leaf++) {
+      int start = (int) ((long) elementCount * i_leaf / leafNodeCount);
+      int end = (int) ((long) elementCount * (i_leaf + 1) / leafNodeCount);
+      x1s[i_leaf] = y1s[i_leaf] = Long.MAX_VALUE;
+      x2s[i_leaf] = y2s[i_leaf] = Long.MIN_VALUE;
+      for (int i = start; i < end; i++) {
+        if (xs[i] < x1s[i_leaf]) x1s[i_leaf] = xs[i];
+        if (xs[i] > x2s[i_leaf]) x2s[i_leaf] = xs[i];
+        if (ys[i] < y1s[i_leaf]) y1s[i_leaf] = ys[i];
+        if (ys[i] > y2s[i_leaf]) y2s[i_leaf] = ys[i];
+      }
+    }
+    
+    // Build upper levels bottom up. levelOrders[l] stores the IDs of nodes
+    // in level l such that the children of the node with ID g in level l-1
+    // are in positions [g * degree, (g+1) * degree)
+    int[][] levelOrders = new int[height][];
+    for (int level = height - 1; level > 0; level--) {
+      final int count = x1s.length;
+      final int parentCount = count / degree;
+      final int[] ids = new int[count];
+      final long[] cxs = new long[count];
+      final long[] cys = new long[count];
+      for (int i = 0; i < count; i++) {
+        ids[i] = i;
+        cxs[i] = x1s[i] + (x2s[i] - x1s[i]) / 2;
+        cys[i] = y1s[i] + (y2s[i] - y1s[i]) / 2;
+      }
+      // ids are stored as ints and use the same sort as elements
+      sortElements(ids, cxs, cys, cxs, 0, count);
+      numSlices = (int) Math.ceil(Math.sqrt(parentCount));
+      for (int s = 0; s < numSlices; s++) {
+        int start = (int) ((long) parentCount * s / numSlices) * degree;
+        int end = (int) ((long) parentCount * (s + 1) / numSlices) * degree;
+        sortElements(ids, cxs, cys, cys, start, end);
+      }
+      levelOrders[level] = ids;
+      
+      // Calculate bounding boxes of parents
+      long[] parentX1s = new long[parentCount];
+      long[] parentY1s = new long[parentCount];
+      long[] parentX2s = new long[parentCount];
+      long[] parentY2s = new long[parentCount];
+      for (int g = 0; g < parentCount; g++) {
+        parentX1s[g] = parentY1s[g] = Long.MAX_VALUE;
+        parentX2s[g] = parentY2s[g] = Long.MIN_VALUE;
+        for (int i = g * degree; i < (g + 1) * degree; i++) {
+          int child = ids[i];
+          if (x1s[child] < parentX1s[g]) parentX1s[g] = x1s[child];
+          if (y1s[child] < parentY1s[g]) parentY1s[g] = y1s[child];
+          if (x2s[child] > parentX2s[g]) parentX2s[g] = x2s[child];
+          if (y2s[child] > parentY2s[g]) parentY2s[g] = y2s[child];
+        }
+      }
+      x1s = parentX1s; y1s = parentY1s; x2s = parentX2s; y2s = parentY2s;
+    }
+    
+    // Map level-order positions to node IDs going down from the root
+    int[] positionToId = new int[] {0};
+    for (int level = 1; level < height; level++) {
+      int[] childPositionToId = new int[positionToId.length * degree];
+      for (int q = 0; q < positionToId.length; q++) {
+        for (int c = 0; c < degree; c++) {
+          childPositionToId[q * degree + c] =
+              levelOrders[level][positionToId[q] * degree + c];
+        }
+      }
+      positionToId = childPositionToId;
+    }
+    
+    // Reorder elements such that leaves appear in level order
+    int[] newOffsets = new int[elementCount];
+    long[] newXs = new long[elementCount];
+    long[] newYs = new long[elementCount];
+    int[] leafBoundaries = new int[leafNodeCount + 1];
+    int i_new = 0;
+    for (int p = 0; p < leafNodeCount; p++) {
+      int id = positionToId[p];
+      int start = (int) ((long) elementCount * id / leafNodeCount);
+      int end = (int) ((long) elementCount * (id + 1) / leafNodeCount);
+      leafBoundaries[p] = i_new;
+      System.arraycopy(offsets, start, newOffsets, i_new, end - start);
+      System.arraycopy(xs, start, newXs, i_new, end - start);
+      System.arraycopy(ys, start, newYs, i_new, end - start);
+      i_new += end - start;
+    }
+    leafBoundaries[leafNodeCount] = i_new;
+    System.arraycopy(newOffsets, 0, offsets, 0, elementCount);
+    System.arraycopy(newXs, 0, xs, 0, elementCount);
+    System.arraycopy(newYs, 0, ys, 0, elementCount);
+    return leafBoundaries;
+  }
+  
+  /**
+   * Packs the given elements in a tree with the given degree and height by
+   * sorting them according to the Hilbert value of their centers and
+   * assigning them sequentially to leaves. Upper levels group consecutive
+   * leaves which are close to each other on the curve. The Hilbert curve is
+   * scaled to the bounding box of all centers.
+   * @param offsets - offsets of the elements. Reordered in place
+   * @param xs - x coordinates of element centers. Reordered in place
+   * @param ys - y coordinates of element centers. Reordered in place
+   * @param degree
+   * @param height
+   * @return - the boundaries of leaf nodes in level order. Leaf i contains
+   *   elements in the range [boundaries[i], boundaries[i+1])
+   */
+  static int[] packHilbert(final int[] offsets, final long[] xs,
+      final long[] ys, int degree, int height) {
+    final int elementCount = offsets.length;
+    final int leafNodeCount = powInt(degree, height - 1);
+    final int bits = 31;
+    
+    long minX = Long.MAX_VALUE, minY = Long.MAX_VALUE;
+    long maxX = Long.MIN_VALUE, maxY = Long.MIN_VALUE;
+    for (int i = 0; i < elementCount; i++) {
+      if (xs[i] < minX) minX = xs[i];
+      if (xs[i] > maxX) maxX = xs[i];
+      if (ys[i] < minY) minY = ys[i];
+      if (ys[i] > maxY) maxY = ys[i];
+    }
+    // Scale the bounding box of all centers to the grid of the curve
+    double maxCoordinate = (1L << bits) - 1;
+    double scaleX = maxX > minX ? maxCoordinate / ((double)maxX - minX) : 0;
+    double scaleY = maxY > minY ? maxCoordinate / ((double)maxY - minY) : 0;
+    final long[] hilbertValues = new long[elementCount];
+    for (int i = 0; i < elementCount; i++) {
+      long hx = (long) ((xs[i] - minX) * scaleX);
+      long hy = (long) ((ys[i] - minY) * scaleY);
+      hilbertValues[i] = Point.hilbertOrder(hx, hy, bits);
+    }
+    
+    new QuickSort().sort(new IndexedSortable() {
+      @Override
+      public void swap(int i, int j) {
+        long tempx = xs[i];
+        xs[i] = xs[j];
+        xs[j] = tempx;
+        long tempY = ys[i];
+        ys[i] = ys[j];
+        ys[j] = tempY;
+        long tempH = hilbertValues[i];
+        hilbertValues[i] = hilbertValues[j];
+        hilbertValues[j] = tempH;
+        int tempid = offsets[i];
+        offsets[i] = offsets[j];
+        offsets[j] = tempid;
+      }
+      
+      @Override
+      public int compare(int i, int j) {
+        if (hilbertValues[i] < hilbertValues[j])
+          return -1;
+        if (hilbertValues[i] > hilbertValues[j])
+          return 1;
+        return 0;
+      }
+    }, 0, elementCount);
+    
+    int[] leafBoundaries = new int[leafNodeCount + 1];
+    for (int i_leaf = 0; i_leaf <= leafNodeCount; i_leaf++)
+      leafBoundaries[i_leaf] = (int) ((long) elementCount * i_leaf / leafNodeCount);
+    return leafBoundaries;
+  }
+  
   @Override
   public void write(DataOutput out) throws IOException {
     throw new RuntimeException("write is no longer supported. " +
     		"Please use bulkLoadWrite to write the RTree.");
   }
 
+  /**
+   * Reads the tree from the given input. The memory used to hold the
+   * previously read tree is reused if it is large enough which avoids
+   * allocating a new buffer for each block read by the same record reader.
+   * Hence, the previous contents of this tree are overwritten and any
+   * shapes or buffers obtained from it should not be used afterwards.
+   */
   @Override
   public void readFields(DataInput in) throws IOException {
     int treeSize = in.readInt();
     if (treeSize == 0) {
-      serializedTree = null;
+      // Keep the buffer to be reused for next trees
+      if (serializedTree != null)
+        serializedTree.limit(0);
     } else {
-      serializedTree = new byte[treeSize];
-      in.readFully(serializedTree);
+      byte[] treeBytes = serializedTree != null && serializedTree.hasArray()
+          && serializedTree.arrayOffset() == 0
+          && serializedTree.capacity() >= treeSize ?
+          serializedTree.array() : new byte[treeSize];
+      in.readFully(treeBytes, 0, treeSize);
+      serializedTree = ByteBuffer.wrap(treeBytes, 0, treeSize);
     }
     readHeader();
   }
   
+  /**
+   * Reads the tree from the given buffer without copying it. The buffer
+   * should be positioned at the tree size as written by bulkLoadWrite
+   * (right after the block marker). The buffer could be a heap buffer, a
+   * direct buffer or a buffer mapped from a local file using
+   * {@link java.nio.channels.FileChannel#map}. The position of the given
+   * buffer is advanced to the end of the tree.
+   * @param buffer
+   * @throws IOException
+   */
+  public void readFields(ByteBuffer buffer) throws IOException {
+    int treeSize = buffer.getInt();
+    ByteBuffer tree = buffer.slice();
+    tree.limit(treeSize);
+    buffer.position(buffer.position() + treeSize);
+    serializedTree = tree;
+    readHeader();
+  }
+
+  /**
+   * Reads only the parts of the tree that are needed to answer a range query
+   * with the given query range. The header and all nodes of the tree are
+   * read first. The nodes are then traversed in the same way
+   * {@link #search(Shape, ResultCollector)} does to find the data that could
+   * match the query, and only this data is read using positioned reads.
+   * Adjacent parts are merged so that each of them is fetched in one read.
+   * For the binary format, payloads are read only for records whose MBRs
+   * overlap the query range.
+   * Parts of the tree that are not read are left unfilled. Hence, the tree
+   * can only be used to run a range query with the same query range. Iterating
+   * over it or running any other query gives wrong results.
+   * @param in - the input to read from
+   * @param treePos - the position of the tree size in the input (right after
+   *   the block marker)
+   * @param query_mbr - the MBR of the query to be run against the tree
+   * @return - total size of the tree in bytes including its size. This is
+   *   the number of bytes that {@link #readFields(DataInput)} would read.
+   * @throws IOException
+   */
+  public int readFields(PositionedReadable in, long treePos,
+      Rectangle query_mbr) throws IOException {
+    byte[] header = new byte[TreeHeaderSize];
+    in.readFully(treePos, header, 0, 4);
+    int treeSize = ByteBuffer.wrap(header).getInt();
+    if (treeSize == 0) {
+      if (serializedTree != null)
+        serializedTree.limit(0);
+      readHeader();
+      return 4;
+    }
+    byte[] treeBytes = serializedTree != null && serializedTree.hasArray()
+        && serializedTree.arrayOffset() == 0
+        && serializedTree.capacity() >= treeSize ?
+        serializedTree.array() : new byte[treeSize];
+    serializedTree = ByteBuffer.wrap(treeBytes, 0, treeSize);
+    // Offsets in the tree are relative to the byte right after the tree size
+    long dataPos = treePos + 4;
+    in.readFully(dataPos, treeBytes, 0, Math.min(TreeHeaderSize, treeSize));
+    readHeader();
+    long bytesRead = 4 + Math.min(TreeHeaderSize, treeSize);
+    if (height == 0)
+      return 4 + treeSize;
+
+    // Read all nodes
+    int nodesEnd = TreeHeaderSize + NodeSize * nodeCount;
+    in.readFully(dataPos + TreeHeaderSize, treeBytes, TreeHeaderSize,
+        nodesEnd - TreeHeaderSize);
+    bytesRead += nodesEnd - TreeHeaderSize;
+
+    // Read the data (or records) under nodes that overlap the query
+    long[] ranges = findDataRanges(query_mbr);
+    bytesRead += readRanges(in, dataPos, treeBytes, ranges);
+    if (binary) {
+      // Read the payloads of records that overlap the query
+      ranges = findPayloadRanges(query_mbr, ranges);
+      bytesRead += readRanges(in, dataPos, treeBytes, ranges);
+    }
+    LOG.info("Read "+bytesRead+" bytes out of "+(4 + treeSize)+
+        " bytes of the tree in "+ranges.length+" ranges");
+    return 4 + treeSize;
+  }
+
+  /**
+   * Finds the ranges of data that are scanned by a range query with the given
+   * query MBR. This follows exactly the same traversal of
+   * {@link #search(Shape, ResultCollector, int, int)}. Each range is encoded
+   * in one long as (start << 32 | end).
+   * For the binary format, each range is extended by one record as the
+   * payload end of a record is determined by the record next to it.
+   * @param query_mbr
+   * @return - a sorted list of non-overlapping ranges
+   */
+  private long[] findDataRanges(Rectangle query_mbr) {
+    long[] ranges = new long[16];
+    int rangeCount = 0;
+    int[] toBeSearched = new int[16];
+    int stackSize = 0;
+    toBeSearched[stackSize++] = 0;
+    Rectangle node_mbr = new Rectangle();
+    final int dataEnd = getDataEnd();
+
+    while (stackSize > 0) {
+      int searchNumber = toBeSearched[--stackSize];
+      int mbrsToTest = searchNumber == 0 ? 1 : degree;
+      int dataOffset = getNodeDataOffset(searchNumber);
+      for (int i = 0; i < mbrsToTest; i++) {
+        readNodeMBR(searchNumber + i, node_mbr);
+        int lastOffset = (searchNumber+i) == nodeCount - 1 ?
+            dataEnd : getNodeDataOffset(searchNumber + i + 1);
+        boolean contained = query_mbr.contains(node_mbr);
+        if (!contained && query_mbr.isIntersected(node_mbr) &&
+            searchNumber < nonLeafNodeCount) {
+          // Search child nodes
+          if (stackSize == toBeSearched.length)
+            toBeSearched = Arrays.copyOf(toBeSearched, stackSize * 2);
+          toBeSearched[stackSize++] = (searchNumber + i) * degree + 1;
+        } else if (contained || query_mbr.isIntersected(node_mbr)) {
+          // All data under this node is scanned
+          int rangeEnd = lastOffset <= dataOffset ? dataEnd : lastOffset;
+          if (binary && rangeEnd < dataEnd)
+            rangeEnd += RecordSize;
+          if (rangeCount == ranges.length)
+            ranges = Arrays.copyOf(ranges, rangeCount * 2);
+          ranges[rangeCount++] = (long) dataOffset << 32 | rangeEnd;
+        }
+        dataOffset = lastOffset;
+      }
+    }
+    return mergeRanges(ranges, rangeCount);
+  }
+
+  /**
+   * Finds the ranges of payloads of records that overlap the given query MBR
+   * in a binary tree. All records in the given ranges must have already been
+   * read.
+   * @param query_mbr
+   * @param recordRanges - ranges of records as returned by
+   *   {@link #findDataRanges(Rectangle)}
+   * @return - a sorted list of non-overlapping ranges of payloads
+   */
+  private long[] findPayloadRanges(Rectangle query_mbr, long[] recordRanges) {
+    long[] ranges = new long[16];
+    int rangeCount = 0;
+    final long qx1 = query_mbr.getX1(), qy1 = query_mbr.getY1();
+    final long qx2 = query_mbr.getX2(), qy2 = query_mbr.getY2();
+    final int recordsEnd = getDataEnd();
+    for (long range : recordRanges) {
+      int firstOffset = (int) (range >>> 32);
+      int lastOffset = (int) range;
+      // The last record in a range, if not the last one in the tree, was
+      // only read to get the payload end of the record before it
+      if (lastOffset < recordsEnd)
+        lastOffset -= RecordSize;
+      for (int recordOffset = firstOffset; recordOffset < lastOffset;
+          recordOffset += RecordSize) {
+        long x1 = serializedTree.getLong(recordOffset + 4);
+        long y1 = serializedTree.getLong(recordOffset + 12);
+        long x2 = x1 + serializedTree.getLong(recordOffset + 20);
+        long y2 = y1 + serializedTree.getLong(recordOffset + 28);
+        if (x2 > qx1 && qx2 > x1 && y2 > qy1 && qy2 > y1) {
+          int payloadStart = serializedTree.getInt(recordOffset);
+          int payloadEnd = recordOffset + RecordSize < recordsEnd ?
+              serializedTree.getInt(recordOffset + RecordSize) :
+              serializedTree.limit();
+          if (rangeCount == ranges.length)
+            ranges = Arrays.copyOf(ranges, rangeCount * 2);
+          ranges[rangeCount++] = (long) payloadStart << 32 | payloadEnd;
+        }
+      }
+    }
+    return mergeRanges(ranges, rangeCount);
+  }
+
+  /**
+   * Sorts the given ranges and merges the overlapping and adjacent ones.
+   * @param ranges - ranges encoded as (start << 32 | end)
+   * @param rangeCount - number of ranges to use from the given array
+   * @return - an array that contains exactly the merged ranges
+   */
+  private static long[] mergeRanges(long[] ranges, int rangeCount) {
+    Arrays.sort(ranges, 0, rangeCount);
+    int mergedCount = 0;
+    for (int i = 0; i < rangeCount; i++) {
+      if (mergedCount > 0 &&
+          (int) (ranges[i] >>> 32) <= (int) ranges[mergedCount - 1]) {
+        // Overlaps with or adjacent to the previous range
+        int end = Math.max((int) ranges[mergedCount - 1], (int) ranges[i]);
+        ranges[mergedCount - 1] = (ranges[mergedCount - 1] & 0xffffffff00000000L)
+            | end;
+      } else {
+        ranges[mergedCount++] = ranges[i];
+      }
+    }
+    return Arrays.copyOf(ranges, mergedCount);
+  }
+
+  /**
+   * Reads the given ranges from the input into the given tree bytes.
+   * @param in
+   * @param dataPos - the position in the input of the first byte in the tree
+   * @param treeBytes
+   * @param ranges
+   * @return - total number of bytes read
+   * @throws IOException
+   */
+  private static long readRanges(PositionedReadable in, long dataPos,
+      byte[] treeBytes, long[] ranges) throws IOException {
+    long bytesRead = 0;
+    for (long range : ranges) {
+      int start = (int) (range >>> 32);
+      int end = (int) range;
+      in.readFully(dataPos + start, treeBytes, start, end - start);
+      bytesRead += end - start;
+    }
+    return bytesRead;
+  }
+
   /**
    * Reads and skips the header of the tree returning the total number of
    * bytes skipped from the stream. This is used as a preparatory function to
@@ -430,6 +1025,19 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
    * @throws IOException
    */
   public static int skipHeader(InputStream in) throws IOException {
+    return skipHeader(in, false);
+  }
+  
+  /**
+   * Reads and skips the header of the tree stored in the given format.
+   * For the binary format, the records are skipped as well so that the
+   * stream is positioned at the text of the first element.
+   * @param in
+   * @param binary - whether the tree is stored in the binary format
+   * @return - Total number of bytes read and skipped
+   * @throws IOException
+   */
+  public static int skipHeader(InputStream in, boolean binary) throws IOException {
     DataInput dataIn = in instanceof DataInput ? (DataInput) in
         : new DataInputStream(in);
     int skippedBytes = 0;
@@ -441,9 +1049,14 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
     }
     int degree = dataIn.readInt(); skippedBytes += 4;
     int nodeCount = (int) ((Math.pow(degree, height) - 1) / (degree - 1));
-    /*int elementCount = */dataIn.readInt(); skippedBytes += 4;
+    int elementCount = dataIn.readInt(); skippedBytes += 4;
     // Skip all nodes
     dataIn.skipBytes(nodeCount * NodeSize); skippedBytes += nodeCount * NodeSize;
+    if (binary) {
+      // Skip all records
+      dataIn.skipBytes(elementCount * RecordSize);
+      skippedBytes += elementCount * RecordSize;
+    }
     return skippedBytes;
   }
   
@@ -457,6 +1070,19 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
    * @throws IOException
    */
   public static int getHeaderSize(DataInput in) throws IOException {
+    return getHeaderSize(in, false);
+  }
+
+  /**
+   * Returns the total size of the header of a tree stored in the given
+   * format. For the binary format, this includes the records as well, i.e.,
+   * the returned size points to the text of the first element.
+   * @param in
+   * @param binary - whether the tree is stored in the binary format
+   * @return
+   * @throws IOException
+   */
+  public static int getHeaderSize(DataInput in, boolean binary) throws IOException {
     int header_size = 0;
     /*int treeSize = */in.readInt(); header_size += 4;
     int height = in.readInt(); header_size += 4;
@@ -466,9 +1092,11 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
     }
     int degree = in.readInt(); header_size += 4;
     int nodeCount = (int) ((Math.pow(degree, height) - 1) / (degree - 1));
-    /*int elementCount = */in.readInt(); header_size += 4;
+    int elementCount = in.readInt(); header_size += 4;
     // Add the size of all nodes
     header_size += nodeCount * NodeSize;
+    if (binary)
+      header_size += elementCount * RecordSize;
     return header_size;
   }
 
@@ -477,6 +1105,14 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
     endQuery();
   }
 
+  /**
+   * Whether this tree is empty (contains no data) or not
+   * @return
+   */
+  private boolean isEmpty() {
+    return serializedTree == null || serializedTree.limit() == 0;
+  }
+
   /**
    * Returns total number of elements
    * @return
@@ -493,10 +1129,8 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
     Rectangle mbr = null;
     try {
       startQuery();
-      dataIn.reset(); dataIn.skip(TreeHeaderSize);
       mbr = new Rectangle();
-      /*int offset = */dataIn.readInt();
-      mbr.readFields(dataIn);
+      readNodeMBR(0, mbr);
       endQuery();
     } catch (IOException e) {
       e.printStackTrace();
@@ -521,6 +1155,28 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
   public void setStockObject(T stockObject) {
     this.stockObject = stockObject;
   }
+
+  /**
+   * Sets the storage format of this tree. This has to be set before writing
+   * the tree using bulkLoadWrite or reading it using readFields.
+   * @param binary - <code>true</code> to use the binary format
+   */
+  public void setBinary(boolean binary) {
+    this.binary = binary;
+  }
+
+  public boolean isBinary() {
+    return binary;
+  }
+  
+  /**
+   * Sets whether to pack the tree using a Hilbert curve or STR. Only
+   * applicable when the tree is built with bulkLoadWrite in fast mode.
+   * @param hilbertPacking
+   */
+  public void setHilbertPacking(boolean hilbertPacking) {
+    this.hilbertPacking = hilbertPacking;
+  }
   
   /**
    * Create rectangles that together pack all points in sample such that
@@ -625,24 +1281,28 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
     
     RTreeIterator() throws IOException {
       if (RTree.this.height == 0) {
-        offset = RTree.this.serializedTree.length;
+        offset = RTree.this.serializedTree.limit();
         return;
       }
       offset = TreeHeaderSize + NodeSize * RTree.this.nodeCount;
+      if (RTree.this.binary) {
+        // Skip the records and iterate directly over the payloads
+        offset += RecordSize * RTree.this.elementCount;
+      }
       _stockObject = (T) RTree.this.stockObject.clone();
       line = new Text();
     }
 
     @Override
     public boolean hasNext() {
-      return offset < RTree.this.serializedTree.length;
+      return offset < RTree.this.serializedTree.limit();
     }
 
     @Override
     public T next() {
       // get the end of current line and deserialize stock object
       int eol = skipToEOL(serializedTree, offset);
-      line.set(serializedTree, offset, eol - offset);
+      readLine(offset, eol, line);
       _stockObject.fromText(line);
       offset = eol; // Advance to next item
       return _stockObject;
@@ -669,6 +1329,65 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
     return eol;
   }
 
+  /**
+   * Skip bytes until the end of line
+   * @param buffer
+   * @param startOffset - absolute index in the buffer to start from
+   * @return
+   */
+  public static int skipToEOL(ByteBuffer buffer, int startOffset) {
+    int eol = startOffset;
+    int limit = buffer.limit();
+    while (eol < limit && (buffer.get(eol) != '\n' && buffer.get(eol) != '\r'))
+      eol++;
+    while (eol < limit && (buffer.get(eol) == '\n' || buffer.get(eol) == '\r'))
+      eol++;
+    return eol;
+  }
+  
+  /**
+   * Sets the given line to the bytes between the two given offsets in the
+   * serialized tree. If the tree is backed by an array, no bytes are copied.
+   * @param start
+   * @param end
+   * @param line
+   */
+  private void readLine(int start, int end, Text line) {
+    if (serializedTree.hasArray()) {
+      line.set(serializedTree.array(), serializedTree.arrayOffset() + start,
+          end - start);
+    } else {
+      if (lineBuffer == null || lineBuffer.length < end - start)
+        lineBuffer = new byte[Math.max(end - start, 1024)];
+      for (int i = start; i < end; i++)
+        lineBuffer[i - start] = serializedTree.get(i);
+      line.set(lineBuffer, 0, end - start);
+    }
+  }
+  
+  /**
+   * Reads the MBR of the node with the given index into the given rectangle
+   * @param nodeIndex
+   * @param mbr
+   */
+  private void readNodeMBR(int nodeIndex, Rectangle mbr) {
+    int nodeOffset = TreeHeaderSize + NodeSize * nodeIndex;
+    mbr.x = serializedTree.getLong(nodeOffset + 4);
+    mbr.y = serializedTree.getLong(nodeOffset + 12);
+    mbr.width = serializedTree.getLong(nodeOffset + 20);
+    mbr.height = serializedTree.getLong(nodeOffset + 28);
+  }
+  
+  /**
+   * Returns the offset of the first element (or record in the binary format)
+   * under the node with the given index
+   * @param nodeIndex
+   * @return
+   */
+  private int getNodeDataOffset(int nodeIndex) {
+    return serializedTree.getInt(TreeHeaderSize + NodeSize * nodeIndex);
+  }
+
   @Override
   public Iterator<T> iterator() {
     try {
@@ -700,32 +1419,34 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
   }
   
   /**
-   * Prepares a tree for running a query. This method creates an input stream
-   * that reads from the stored buffer.
+   * Prepares a tree for running a query. This method reads the tree header
+   * from the stored buffer.
    * @throws IOException 
    */
   protected void startQuery() throws IOException {
-    dataIn = new DataInputStream(new ByteArrayInputStream(serializedTree));
-    height = dataIn.readInt();
+    if (isEmpty()) {
+      height = 0;
+      elementCount = 0;
+      return;
+    }
+    height = serializedTree.getInt(0);
     if (height == 0) {
       // Empty tree. No results
       return;
     }
-    degree = dataIn.readInt();
+    degree = serializedTree.getInt(4);
     nodeCount = (int) ((Math.pow(degree, height) - 1) / (degree - 1));
     leafNodeCount = (int) Math.pow(degree, height - 1);
     nonLeafNodeCount = nodeCount - leafNodeCount;
-    elementCount = dataIn.readInt();
+    elementCount = serializedTree.getInt(8);
   }
   
   /**
-   * This method is called after the query ends to close the in-memory input
-   * stream opened
+   * This method is called after the query ends. Since all accesses are done
+   * directly on the buffer, there is nothing to release.
    * @throws IOException
    */
   protected void endQuery() throws IOException {
-    dataIn.close();
-    dataIn = null;
   }
   
   /**
@@ -768,14 +1489,13 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
       int mbrsToTest = searchNumber == 0 ? 1 : degree;
 
       if (searchNumber < nodeCount) {
-        long nodeOffset = TreeHeaderSize + NodeSize * searchNumber;
-        dataIn.reset(); dataIn.skip(nodeOffset);
-        int dataOffset = dataIn.readInt();
+        int dataOffset = getNodeDataOffset(searchNumber);
 
         for (int i = 0; i < mbrsToTest; i++) {
-          node_mbr.readFields(dataIn);
+          readNodeMBR(searchNumber + i, node_mbr);
+          nodesVisited++;
           int lastOffset = (searchNumber+i) == nodeCount - 1 ?
-              serializedTree.length : dataIn.readInt();
+              getDataEnd() : getNodeDataOffset(searchNumber + i + 1);
           if (query_mbr.contains(node_mbr)) {
             // The node is full contained in the query range.
             // Save the time and do full scan for this node
@@ -785,7 +1505,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
             // order traversal will be the first node in the next level
             // which means it will have an offset less than this node
             if (lastOffset <= dataOffset)
-              lastOffset = serializedTree.length;
+              lastOffset = getDataEnd();
             toBeSearched.push(lastOffset);
           } else if (query_mbr.isIntersected(node_mbr)) {
             // Node partially overlaps with query. Go deep under this node
@@ -800,7 +1520,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
               // order traversal will be the first node in the next level
               // which means it will have an offset less than this node
               if (lastOffset <= dataOffset)
-                lastOffset = serializedTree.length;
+                lastOffset = getDataEnd();
               toBeSearched.push(lastOffset);
             }
           }
@@ -812,13 +1532,19 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
         lastOffset = searchNumber;
         firstOffset = toBeSearched.pop();
         
+        if (binary) {
+          resultSize += searchRecords(query_shape, query_mbr, output,
+              firstOffset, lastOffset, line);
+          continue;
+        }
         // while (bytes read so far < total bytes that need to be read)
         while (firstOffset < lastOffset) {
           // Read one line
           int eol = skipToEOL(serializedTree, firstOffset);
-          line.set(serializedTree, firstOffset, eol - firstOffset);
+          readLine(firstOffset, eol, line);
 
           stockObject.fromText(line);
+          elementsVisited++;
           if (stockObject.isIntersected(query_shape)) {
             resultSize++;
             if (output != null)
@@ -831,6 +1557,85 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
     return resultSize;
   }
   
+  /**
+   * Returns the offset right after the last entry that leaf nodes point to.
+   * For the text format, this is the end of the tree. For the binary format,
+   * it is the end of the records array.
+   * @return
+   */
+  private int getDataEnd() {
+    return binary ? TreeHeaderSize + NodeSize * nodeCount + RecordSize
+        * elementCount : serializedTree.limit();
+  }
+
+  /**
+   * Parses the element stored at the given offset into the stock object.
+   * For the binary format, the offset points to the record of the element.
+   * @param offset
+   * @param line - a temporary text used to parse the element
+   * @return - the offset of the next element
+   */
+  private int parseElement(int offset, Text line) {
+    int next;
+    if (binary) {
+      next = offset + RecordSize;
+      int payloadStart = serializedTree.getInt(offset);
+      int payloadEnd = next < getDataEnd() ? serializedTree.getInt(next) :
+        serializedTree.limit();
+      readLine(payloadStart, payloadEnd, line);
+    } else {
+      next = skipToEOL(serializedTree, offset);
+      readLine(offset, next, line);
+    }
+    stockObject.fromText(line);
+    elementsVisited++;
+    return next;
+  }
+
+  /**
+   * Searches the records in the given range of offsets in a binary tree.
+   * The MBR of each record is tested directly on the serialized bytes and
+   * only records that pass this test are parsed and tested against the
+   * query shape.
+   * @param query_shape
+   * @param query_mbr
+   * @param output
+   * @param firstOffset - offset of the first record to test
+   * @param lastOffset - offset right after the last record to test
+   * @param line - a temporary text used to parse records
+   * @return - number of records matching the query
+   */
+  private int searchRecords(Shape query_shape, Rectangle query_mbr,
+      ResultCollector<T> output, int firstOffset, int lastOffset, Text line) {
+    int resultSize = 0;
+    final long qx1 = query_mbr.getX1(), qy1 = query_mbr.getY1();
+    final long qx2 = query_mbr.getX2(), qy2 = query_mbr.getY2();
+    final int recordsEnd = getDataEnd();
+    for (int recordOffset = firstOffset; recordOffset < lastOffset;
+        recordOffset += RecordSize) {
+      long x1 = serializedTree.getLong(recordOffset + 4);
+      long y1 = serializedTree.getLong(recordOffset + 12);
+      long x2 = x1 + serializedTree.getLong(recordOffset + 20);
+      long y2 = y1 + serializedTree.getLong(recordOffset + 28);
+      if (x2 > qx1 && qx2 > x1 && y2 > qy1 && qy2 > y1) {
+        // MBR matches the query. Parse the payload to do the exact test
+        int payloadStart = serializedTree.getInt(recordOffset);
+        int payloadEnd = recordOffset + RecordSize < recordsEnd ?
+            serializedTree.getInt(recordOffset + RecordSize) :
+            serializedTree.limit();
+        readLine(payloadStart, payloadEnd, line);
+        stockObject.fromText(line);
+        elementsVisited++;
+        if (stockObject.isIntersected(query_shape)) {
+          resultSize++;
+          if (output != null)
+            output.collect(stockObject);
+        }
+      }
+    }
+    return resultSize;
+  }
+  
   /**
    * Performs a range query over this tree using the given query range.
    * @param query - The query rectangle to use (TODO make it any shape not just rectangle)
@@ -839,7 +1644,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
    */
   public int search(Shape query, ResultCollector<T> output) {
     // Check for an empty tree
-    if (serializedTree == null)
+    if (isEmpty())
       return 0;
     
     int resultCount = 0;
@@ -854,16 +1659,191 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
     return resultCount;
   }
   
+  /**
+   * A binary min-heap of (key, value) pairs stored in primitive arrays.
+   * Used to order nodes and elements by their distance to a query point.
+   * @author eldawy
+   *
+   */
+  static class MinHeap {
+    /**Keys of the entries in heap order*/
+    double[] keys;
+    /**Values of the entries in heap order*/
+    int[] values;
+    /**Number of entries in the heap*/
+    int size;
+    
+    MinHeap(int capacity) {
+      keys = new double[Math.max(capacity, 16)];
+      values = new int[keys.length];
+    }
+    
+    boolean isEmpty() {
+      return size == 0;
+    }
+    
+    void push(double key, int value) {
+      if (size == keys.length) {
+        double[] newKeys = new double[size * 2];
+        System.arraycopy(keys, 0, newKeys, 0, size);
+        keys = newKeys;
+        int[] newValues = new int[size * 2];
+        System.arraycopy(values, 0, newValues, 0, size);
+        values = newValues;
+      }
+      // Sift up
+      int i = size++;
+      while (i > 0) {
+        int parent = (i - 1) / 2;
+        if (keys[parent] <= key)
+          break;
+        keys[i] = keys[parent];
+        values[i] = values[parent];
+        i = parent;
+      }
+      keys[i] = key;
+      values[i] = value;
+    }
+    
+    double topKey() {
+      return keys[0];
+    }
+    
+    int topValue() {
+      return values[0];
+    }
+    
+    void pop() {
+      size--;
+      double key = keys[size];
+      int value = values[size];
+      // Sift down
+      int i = 0;
+      while (2 * i + 1 < size) {
+        int child = 2 * i + 1;
+        if (child + 1 < size && keys[child + 1] < keys[child])
+          child++;
+        if (key <= keys[child])
+          break;
+        keys[i] = keys[child];
+        values[i] = values[child];
+        i = child;
+      }
+      keys[i] = key;
+      values[i] = value;
+    }
+  }
+
+  /**
+   * Exact k nearest neighbor query. Performs a best-first traversal of the
+   * tree where nodes and elements are kept in one priority queue ordered by
+   * their distance to the query point. Nodes are ordered by the minimum
+   * distance of their MBRs which is a lower bound of the distance of any
+   * element under them. Each node is read at most once and the traversal
+   * stops as soon as k elements are retrieved from the queue.
+   * Results are reported in ascending order of distance.
+   * @param qx
+   * @param qy
+   * @param k
+   * @param output - results are reported to this output along with their
+   *   distances. If null, results are not reported.
+   * @return - number of results found which is min(k, element count)
+   */
+  public int knn(final long qx, final long qy, int k, final ResultCollector2<T, Long> output) {
+    if (isEmpty() || k <= 0)
+      return 0;
+    int resultSize = 0;
+    try {
+      startQuery();
+      if (height == 0)
+        return 0;
+      MinHeap heap = new MinHeap(k + degree);
+      Rectangle node_mbr = new Rectangle();
+      Text line = new Text();
+      // Start with the root node
+      readNodeMBR(0, node_mbr);
+      nodesVisited++;
+      heap.push(node_mbr.getMinDistanceTo(qx, qy), 0);
+      
+      while (resultSize < k && !heap.isEmpty()) {
+        double distance = heap.topKey();
+        int entry = heap.topValue();
+        heap.pop();
+        if (entry < nodeCount) {
+          if (entry < nonLeafNodeCount) {
+            // Internal node. Add all children to the queue
+            int firstChild = entry * degree + 1;
+            for (int i_child = 0; i_child < degree; i_child++) {
+              readNodeMBR(firstChild + i_child, node_mbr);
+              nodesVisited++;
+              heap.push(node_mbr.getMinDistanceTo(qx, qy), firstChild + i_child);
+            }
+          } else {
+            // Leaf node. Add all its elements to the queue
+            int firstOffset = getNodeDataOffset(entry);
+            int lastOffset = entry == nodeCount - 1 ? getDataEnd() :
+              getNodeDataOffset(entry + 1);
+            // Last node in its level
+            if (lastOffset <= firstOffset)
+              lastOffset = getDataEnd();
+            while (firstOffset < lastOffset) {
+              int nextOffset = parseElement(firstOffset, line);
+              heap.push(stockObject.distanceTo(qx, qy), firstOffset);
+              firstOffset = nextOffset;
+            }
+          }
+        } else {
+          // An element. No other entry in the queue can be closer.
+          resultSize++;
+          if (output != null) {
+            parseElement(entry, line);
+            output.collect(stockObject, (long) distance);
+          }
+        }
+      }
+      endQuery();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    return resultSize;
+  }
+
+  /**
+   * Number of tree nodes read by queries (search and knn) since the last call
+   * to {@link #resetCounters()}
+   * @return
+   */
+  public long getNodesVisited() {
+    return nodesVisited;
+  }
+  
+  /**
+   * Number of elements parsed by queries (search and knn) since the last
+   * call to {@link #resetCounters()}
+   * @return
+   */
+  public long getElementsVisited() {
+    return elementsVisited;
+  }
+  
+  /**
+   * Resets the counters of visited nodes and elements
+   */
+  public void resetCounters() {
+    nodesVisited = elementsVisited = 0;
+  }
+
   /**
    * k nearest neighbor query
-   * Note: Current algorithm is approximate just for simplicity. Writing an exact
-   * algorithm is on our TODO list
+   * Note: This algorithm is approximate as it runs range queries with an
+   * increasing range until k elements are found.
+   * It is kept only to compare it with {@link #knn(long, long, int, ResultCollector2)}
    * @param qx
    * @param qy
    * @param k
    * @param output
    */
-  public int knn(final long qx, final long qy, int k, final ResultCollector2<T, Long> output) {
+  public int knnApproximate(final long qx, final long qy, int k, final ResultCollector2<T, Long> output) {
     double query_area = ((double) getMBR().width * getMBR().height) * k / getElementCount();
     double query_radius = Math.sqrt(query_area / Math.PI);
 
@@ -939,22 +1919,134 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
     return result_size;
   }
 
+  /**
+   * Reads all elements under the given leaf node that overlap the given
+   * rectangle. The elements are cloned and added to the given vector.
+   * For the binary format, only elements with an overlapping MBR are parsed.
+   * @param leafIndex
+   * @param filter
+   * @param elements
+   * @param line - a temporary text used to parse elements
+   */
+  @SuppressWarnings("unchecked")
+  private void readLeafElements(int leafIndex, Rectangle filter,
+      Vector<T> elements, Text line) {
+    int firstOffset = getNodeDataOffset(leafIndex);
+    int lastOffset = leafIndex == nodeCount - 1 ? getDataEnd() :
+      getNodeDataOffset(leafIndex + 1);
+    // Last node in its level
+    if (lastOffset <= firstOffset)
+      lastOffset = getDataEnd();
+    final long fx1 = filter.getX1(), fy1 = filter.getY1();
+    final long fx2 = filter.getX2(), fy2 = filter.getY2();
+    while (firstOffset < lastOffset) {
+      if (binary) {
+        long x1 = serializedTree.getLong(firstOffset + 4);
+        long y1 = serializedTree.getLong(firstOffset + 12);
+        long x2 = x1 + serializedTree.getLong(firstOffset + 20);
+        long y2 = y1 + serializedTree.getLong(firstOffset + 28);
+        if (x2 > fx1 && fx2 > x1 && y2 > fy1 && fy2 > y1) {
+          parseElement(firstOffset, line);
+          elements.add((T) stockObject.clone());
+        }
+        firstOffset += RecordSize;
+      } else {
+        firstOffset = parseElement(firstOffset, line);
+        if (filter.isIntersected(stockObject.getMBR()))
+          elements.add((T) stockObject.clone());
+      }
+    }
+  }
+
+  /**
+   * Spatially joins two RTrees using a synchronized traversal of both trees.
+   * Pairs of nodes are descended together only if their MBRs overlap. When
+   * two overlapping leaves are reached, only their elements that overlap the
+   * intersection of the two leaves are decoded and joined.
+   * @param R
+   * @param S
+   * @param output - results are reported to this output. If null, results
+   *   are only counted.
+   * @return - number of pairs found
+   * @throws IOException
+   */
   public static<S1 extends Shape, S2 extends Shape> int spatialJoin(
       final RTree<S1> R,
       final RTree<S2> S,
       final ResultCollector2<S1, S2> output)
       throws IOException {
-    S1[] rs = (S1[]) Array.newInstance(R.stockObject.getClass(), R.getElementCount());
-    int i = 0;
-    for (S1 r : R) {
-      rs[i++] = r;
-    }
-    S2[] ss = (S2[]) Array.newInstance(S.stockObject.getClass(), S.getElementCount());
-    i = 0;
-    for (S2 s : S) {
-      ss[i++] = s;
+    if (R.isEmpty() || S.isEmpty())
+      return 0;
+    R.startQuery();
+    S.startQuery();
+    if (R.height == 0 || S.height == 0)
+      return 0;
+    int resultCount = 0;
+    Rectangle r_mbr = new Rectangle();
+    Rectangle s_mbr = new Rectangle();
+    Rectangle intersection = new Rectangle();
+    Text line = new Text();
+    Vector<S1> r_elements = new Vector<S1>();
+    Vector<S2> s_elements = new Vector<S2>();
+    
+    // Pairs of nodes to be joined. Start with the two roots
+    Stack<Long> toBeJoined = new Stack<Long>();
+    R.readNodeMBR(0, r_mbr); R.nodesVisited++;
+    S.readNodeMBR(0, s_mbr); S.nodesVisited++;
+    if (r_mbr.isIntersected(s_mbr))
+      toBeJoined.push(0L);
+    
+    while (!toBeJoined.isEmpty()) {
+      long pair = toBeJoined.pop();
+      int r_node = (int) (pair >>> 32);
+      int s_node = (int) pair;
+      boolean r_leaf = r_node >= R.nonLeafNodeCount;
+      boolean s_leaf = s_node >= S.nonLeafNodeCount;
+      if (r_leaf && s_leaf) {
+        // Join the elements of the two leaves that lie in their intersection
+        R.readNodeMBR(r_node, r_mbr);
+        S.readNodeMBR(s_node, s_mbr);
+        long x1 = Math.max(r_mbr.getX1(), s_mbr.getX1());
+        long y1 = Math.max(r_mbr.getY1(), s_mbr.getY1());
+        long x2 = Math.min(r_mbr.getX2(), s_mbr.getX2());
+        long y2 = Math.min(r_mbr.getY2(), s_mbr.getY2());
+        intersection.set(x1, y1, x2 - x1, y2 - y1);
+        r_elements.clear();
+        s_elements.clear();
+        R.readLeafElements(r_node, intersection, r_elements, line);
+        if (r_elements.isEmpty())
+          continue;
+        S.readLeafElements(s_node, intersection, s_elements, line);
+        for (S1 r : r_elements) {
+          for (S2 s : s_elements) {
+            if (r.isIntersected(s)) {
+              resultCount++;
+              if (output != null)
+                output.collect(r, s);
+            }
+          }
+        }
+      } else {
+        // Descend the non-leaf nodes and pair children with overlapping MBRs
+        int r_first = r_leaf ? r_node : r_node * R.degree + 1;
+        int r_count = r_leaf ? 1 : R.degree;
+        int s_first = s_leaf ? s_node : s_node * S.degree + 1;
+        int s_count = s_leaf ? 1 : S.degree;
+        for (int i = r_first; i < r_first + r_count; i++) {
+          R.readNodeMBR(i, r_mbr);
+          R.nodesVisited++;
+          for (int j = s_first; j < s_first + s_count; j++) {
+            S.readNodeMBR(j, s_mbr);
+            S.nodesVisited++;
+            if (r_mbr.isIntersected(s_mbr))
+              toBeJoined.push(((long)i << 32) | j);
+          }
+        }
+      }
     }
-    return SpatialAlgorithms.SpatialJoin_planeSweep(rs, ss, output);
+    R.endQuery();
+    S.endQuery();
+    return resultCount;
   }
   
   /**
@@ -1,14 +1,12 @@
 package org.apache.hadoop.spatial;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataOutputStream;
-import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
@@ -34,9 +32,21 @@ public class RTreeGridRecordWriter<S extends Shape> extends GridRecordWriter<S>
    */
   protected boolean fastRTree;
   
+  /**
+   * Whether to pack the RTree using a Hilbert curve or not.
+   * @see RTree#setHilbertPacking(boolean)
+   */
+  protected boolean hilbertRTree;
+  
   /**The maximum storage (in bytes) that can be accepted by the user*/
   protected int maximumStorageOverhead;
 
+  /**
+   * Whether to write RTrees in the binary format or not.
+   * @see RTree#setBinary(boolean)
+   */
+  protected boolean binaryRTree;
+
   /**
    * Initializes a new RTreeGridRecordWriter.
    * @param fileSystem - of output file
@@ -56,45 +66,62 @@ public class RTreeGridRecordWriter<S extends Shape> extends GridRecordWriter<S>
     // Determine the size of each RTree to decide when to flush a cell
     Configuration conf = fileSystem.getConf();
     this.preferredRtreeDegree = conf.getInt(SpatialSite.RTREE_DEGREE, 25);
-    this.fastRTree = conf.get(SpatialSite.RTREE_BUILD_MODE, "fast").equals("fast");
+    String buildMode = conf.get(SpatialSite.RTREE_BUILD_MODE, "fast");
+    // Hilbert packing needs the materialized centers of the fast mode
+    this.hilbertRTree = buildMode.equals("hilbert");
+    this.fastRTree = buildMode.equals("fast") || hilbertRTree;
     this.maximumStorageOverhead =
         (int) (conf.getFloat(SpatialSite.INDEXING_OVERHEAD, 0.1f) * blockSize);
+    this.binaryRTree = conf.getBoolean(SpatialSite.RTREE_BINARY, false);
+    // Keep data of cells locally until the RTree is built
+    this.bufferCells = true;
   }
   
   @Override
-  protected synchronized void writeInternal(int cellIndex, Text text)
+  protected void writeInternal(int cellIndex, Text text)
       throws IOException {
-    if (text.getLength() == 0) {
-      // Write to parent cell which will close the index
-      super.writeInternal(cellIndex, text);
-      return;
-    }
-    FSDataOutputStream cellOutput = (FSDataOutputStream) getCellStream(cellIndex);
+    synchronized (cellLocks[cellIndex]) {
+      if (text.getLength() == 0) {
+        // Write to parent cell which will close the index
+        super.writeInternal(cellIndex, text);
+        return;
+      }
+      FSDataOutputStream cellOutput = (FSDataOutputStream) getCellStream(cellIndex);
 
-    // Check if inserting this object will increase the degree of the R-tree
-    // above the threshold
-    int new_data_size =
-        (int) (cellOutput.getPos() + text.getLength() + NEW_LINE.length);
-    int bytes_available = (int) (blockSize - 8 - new_data_size);
-    if (bytes_available < maximumStorageOverhead) {
-      // Check if we need to flush current data
-      int degree = RTree.findBestDegree(bytes_available, cellCount[cellIndex] + 1);
-      if (degree > preferredRtreeDegree) {
-        LOG.info("Early flushing an RTree with data "+cellOutput.getPos());
-        // Writing this element will get the degree above the threshold
-        // Flush current file and start a new file
-        super.writeInternal(cellIndex, new Text());
+      // Check if inserting this object will increase the degree of the R-tree
+      // above the threshold
+      int new_data_size =
+          (int) (cellOutput.getPos() + text.getLength() + NEW_LINE.length);
+      int bytes_available = (int) (getCellCapacity() - 8 - new_data_size);
+      if (binaryRTree) {
+        // Binary records are part of the overhead of the tree
+        bytes_available -= (cellCount[cellIndex] + 1) * RTree.RecordSize;
+      }
+      if (bytes_available < maximumStorageOverhead) {
+        // Check if we need to flush current data
+        int degree = RTree.findBestDegree(bytes_available, cellCount[cellIndex] + 1);
+        if (degree > preferredRtreeDegree) {
+          LOG.info("Early flushing an RTree with data "+cellOutput.getPos());
+          // Writing this element will get the degree above the threshold
+          // Flush current file and start a new file
+          super.writeInternal(cellIndex, new Text());
+        }
       }
-    }
     
-    super.writeInternal(cellIndex, text);
-    cellCount[cellIndex]++;
+      super.writeInternal(cellIndex, text);
+      cellCount[cellIndex]++;
+    }
   }
   
   @Override
   protected int getMaxConcurrentThreads() {
-    // Since the closing cell is memory intensive, limit it to one
-    return 1;
+    // Closing a cell keeps the whole cell in memory along with the arrays
+    // used to pack the tree. Allow as many concurrent closes as memory can
+    // hold with a safe margin.
+    long maxMemory = Runtime.getRuntime().maxMemory();
+    long memoryPerClose = 3 * getCellCapacity();
+    return (int) Math.max(1, Math.min(super.getMaxConcurrentThreads(),
+        maxMemory / memoryPerClose));
   }
 
 
@@ -106,42 +133,23 @@ public class RTreeGridRecordWriter<S extends Shape> extends GridRecordWriter<S>
   }
   
   /**
-   * Closes a cell by writing all outstanding objects and closing current file.
-   * Then, the file is read again, an RTree is built on top of it and, finally,
-   * the file is written again with the RTree built.
+   * Writes a block by building an RTree over its records. The data is written
+   * to the file system only once after the RTree is built.
    */
+  @SuppressWarnings("unchecked")
   @Override
-  protected void closeCell(Path cellFilePath, OutputStream tempCellStream) throws IOException {
-    // close stream to current file.
-    // PS: No need to stuff it with new lines as it is only a temporary file
-    tempCellStream.close();
-    
-    // Read all data of the written file in memory
-    
-    FileStatus fileStatus = fileSystem.getFileStatus(cellFilePath);
-    long length = fileStatus.getLen();
-    byte[] cellData = new byte[(int) length];
-    InputStream cellIn = fileSystem.open(cellFilePath);
-    cellIn.read(cellData);
-    cellIn.close();
-    // Get cell info of the file to use it when writing the RTree file
-    CellInfo cellInfo = fileSystem.getFileBlockLocations(fileStatus, 0, 1)[0]
-        .getCellInfo();
-    // Delete the file to be able recreate it when written as an RTree
-    fileSystem.delete(cellFilePath, true);
-    
-    // Build an RTree over the elements read from file
+  protected void writeBlock(DataOutputStream out, byte[] data, int offset,
+      int length, long capacity) throws IOException {
+    // Build an RTree over the elements in the buffer
     RTree<S> rtree = new RTree<S>();
-    rtree.setStockObject(stockObject);
-    // It should create a new stream
-    FSDataOutputStream cellStream =
-      (FSDataOutputStream) createCellStream(cellFilePath, cellInfo);
-    cellStream.writeLong(SpatialSite.RTreeFileMarker);
-    rtree.bulkLoadWrite(cellData, 0, (int) length,
-        (int) (blockSize - length - 8), cellStream, fastRTree);
-    cellData = null; // To allow GC to collect it
-    // Call the parent implementation which will stuff it with new lines
-    super.closeCell(cellFilePath, cellStream);
+    // Use a separate stock object as multiple cells can be closed in parallel
+    rtree.setStockObject((S) stockObject.clone());
+    rtree.setBinary(binaryRTree);
+    rtree.setHilbertPacking(hilbertRTree);
+    out.writeLong(binaryRTree ? SpatialSite.RTreeBinaryFileMarker
+        : SpatialSite.RTreeFileMarker);
+    rtree.bulkLoadWrite(data, offset, length,
+        (int) (capacity - length - 8), out, fastRTree);
   }
   
 }
@@ -14,7 +14,7 @@ import org.apache.hadoop.io.TextSerializerHelper;
  * @author aseldawy
  *
  */
-public class Rectangle implements Shape {
+public class Rectangle implements Shape, TextMBRParsable {
   public long x;
   public long y;
   public long width;
@@ -145,6 +145,12 @@ public class Rectangle implements Shape {
     return this;
   }
   
+  @Override
+  public Rectangle getMBR(Rectangle mbr) {
+    mbr.set(x, y, width, height);
+    return mbr;
+  }
+  
   /** All next functions are copied with slight modifications from java.awt.Rectangle */
   /**
    * Determines whether or not this <code>Rectangle</code> and the specified 
@@ -161,6 +167,10 @@ public class Rectangle implements Shape {
       Point pt = (Point)s;
       return pt.x >= x && pt.x < x + width && pt.y >= y && pt.y < y + height;
     }
+    if (s instanceof Polygon || s instanceof Circle) {
+      // Use the exact test of the other shape
+      return s.isIntersected(this);
+    }
     Rectangle r = s.getMBR();
     return (this.getX2() > r.getX1() && r.getX2() > this.getX1() &&
         this.getY2() > r.getY1() && r.getY2() > this.getY1());
@@ -264,6 +274,21 @@ public class Rectangle implements Shape {
         (h < y || h > Y));
   }
 
+  /**
+   * Checks whether the reference point of the intersection of the two given
+   * rectangles lies inside this rectangle. This is used to avoid reporting
+   * duplicate answers when records are replicated to more than one cell.
+   * It is the same as calling {@link #contains(long, long)} with the top
+   * left corner of <code>r1.getIntersection(r2)</code> without creating
+   * the intersection rectangle.
+   * @param r1
+   * @param r2
+   * @return
+   */
+  public boolean containsReferencePoint(Rectangle r1, Rectangle r2) {
+    return contains(Math.max(r1.x, r2.x), Math.max(r1.y, r2.y));
+  }
+
   /**
    * Checks whether or not this <code>Rectangle</code> entirely contains 
    * the specified <code>Rectangle</code>.
@@ -413,6 +438,41 @@ public class Rectangle implements Shape {
     width = TextSerializerHelper.consumeLong(text, ',');
     height = TextSerializerHelper.consumeLong(text, '\0');
   }
+  
+  @Override
+  public Rectangle parseMBR(Text text, Rectangle mbr) {
+    return parseMBR(text.getBytes(), 0, text.getLength(), mbr);
+  }
+  
+  /**
+   * Parses a rectangle written by {@link #toText(Text)} starting at the
+   * given offset without modifying the given bytes.
+   * @param bytes
+   * @param offset - position of the first character of the rectangle
+   * @param end - position right after the last character of the record
+   * @param mbr - the rectangle to store the parsed values in
+   * @return - the given rectangle or <code>null</code> if it cannot be parsed
+   */
+  protected static Rectangle parseMBR(byte[] bytes, int offset, int end,
+      Rectangle mbr) {
+    int i = TextSerializerHelper.skipLong(bytes, offset, end);
+    if (i == offset) return null;
+    long x = TextSerializerHelper.deserializeLong(bytes, offset, i - offset);
+    offset = i + 1;
+    i = TextSerializerHelper.skipLong(bytes, offset, end);
+    if (i == offset) return null;
+    long y = TextSerializerHelper.deserializeLong(bytes, offset, i - offset);
+    offset = i + 1;
+    i = TextSerializerHelper.skipLong(bytes, offset, end);
+    if (i == offset) return null;
+    long width = TextSerializerHelper.deserializeLong(bytes, offset, i - offset);
+    offset = i + 1;
+    i = TextSerializerHelper.skipLong(bytes, offset, end);
+    if (i == offset) return null;
+    long height = TextSerializerHelper.deserializeLong(bytes, offset, i - offset);
+    mbr.set(x, y, width, height);
+    return mbr;
+  }
 
   @Override
   public String toString() {
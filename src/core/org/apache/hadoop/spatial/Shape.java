@@ -15,6 +15,15 @@ public interface Shape extends Writable, Cloneable, TextSerializable {
    */
   public Rectangle getMBR();
   
+  /**
+   * Stores the minimum bounding rectangle of this shape in the given
+   * rectangle. Unlike {@link #getMBR()}, this method does not create any
+   * new objects which makes it suitable for code that runs for every record.
+   * @param mbr - the rectangle to store the MBR in
+   * @return - the given rectangle or <code>null</code> if the shape has no MBR
+   */
+  public Rectangle getMBR(Rectangle mbr);
+  
   /**
    * Gets the distance of this shape to the given point.
    * @param x
@@ -0,0 +1,261 @@
+package org.apache.hadoop.spatial;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+
+/**
+ * A reusable batch of records where the MBR of each record is stored in
+ * parallel arrays of primitive longs and the text of all records is stored
+ * in one byte array. This allows processing a large number of records
+ * without creating an object for each record. A record is parsed into a
+ * shape only when it is needed using a stock shape.
+ * @author eldawy
+ *
+ */
+public class ShapeBatch implements Writable {
+  /**Default number of records in one batch*/
+  public static final int DefaultCapacity = 4096;
+
+  /**Number of records in this batch*/
+  private int size;
+
+  /**Coordinates of the MBRs of all records*/
+  private long[] x1s, y1s, x2s, y2s;
+
+  /**Offset and length of the text of each record in data*/
+  private int[] starts, lengths;
+
+  /**Text of all records*/
+  private byte[] data;
+
+  /**Number of bytes used in data*/
+  private int dataLength;
+
+  /**A temporary text used to parse records*/
+  private Text tempText = new Text();
+
+  public ShapeBatch() {
+    this(DefaultCapacity);
+  }
+
+  public ShapeBatch(int capacity) {
+    setCapacity(capacity);
+    data = new byte[capacity * 16];
+  }
+
+  private void setCapacity(int capacity) {
+    x1s = new long[capacity];
+    y1s = new long[capacity];
+    x2s = new long[capacity];
+    y2s = new long[capacity];
+    starts = new int[capacity];
+    lengths = new int[capacity];
+  }
+
+  /**
+   * Increases the capacity of this batch to hold at least the given number
+   * of records keeping all records currently in the batch
+   * @param capacity
+   */
+  private void ensureCapacity(int capacity) {
+    if (capacity <= x1s.length)
+      return;
+    capacity = Math.max(capacity, x1s.length * 2);
+    x1s = Arrays.copyOf(x1s, capacity);
+    y1s = Arrays.copyOf(y1s, capacity);
+    x2s = Arrays.copyOf(x2s, capacity);
+    y2s = Arrays.copyOf(y2s, capacity);
+    starts = Arrays.copyOf(starts, capacity);
+    lengths = Arrays.copyOf(lengths, capacity);
+  }
+
+  /**
+   * Removes all records from this batch. Allocated memory is kept to be
+   * reused by subsequent records.
+   */
+  public void clear() {
+    size = 0;
+    dataLength = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int capacity() {
+    return x1s.length;
+  }
+
+  public boolean isFull() {
+    return size == x1s.length;
+  }
+
+  /**
+   * Adds a record to this batch
+   * @param mbr - the MBR of the record
+   * @param text - the text representation of the record
+   */
+  public void add(Rectangle mbr, Text text) {
+    add(mbr.getX1(), mbr.getY1(), mbr.getX2(), mbr.getY2(),
+        text.getBytes(), 0, text.getLength());
+  }
+
+  /**
+   * Adds a record to this batch
+   * @param x1
+   * @param y1
+   * @param x2
+   * @param y2
+   * @param bytes - holds the text representation of the record
+   * @param offset - offset of the record in bytes
+   * @param length - length of the record in bytes
+   */
+  public void add(long x1, long y1, long x2, long y2, byte[] bytes,
+      int offset, int length) {
+    if (isFull())
+      throw new RuntimeException("Batch is full");
+    ensureDataCapacity(dataLength + length);
+    System.arraycopy(bytes, offset, data, dataLength, length);
+    x1s[size] = x1;
+    y1s[size] = y1;
+    x2s[size] = x2;
+    y2s[size] = y2;
+    starts[size] = dataLength;
+    lengths[size] = length;
+    dataLength += length;
+    size++;
+  }
+
+  /**
+   * Appends all records of the given batch to this batch. The capacity of
+   * this batch is increased as needed to hold all of them.
+   * @param other
+   */
+  public void addAll(ShapeBatch other) {
+    ensureCapacity(size + other.size);
+    for (int i = 0; i < other.size; i++)
+      add(other.x1s[i], other.y1s[i], other.x2s[i], other.y2s[i],
+          other.data, other.starts[i], other.lengths[i]);
+  }
+
+  private void ensureDataCapacity(int capacity) {
+    if (data.length < capacity) {
+      byte[] newData = new byte[Math.max(capacity, data.length * 2)];
+      System.arraycopy(data, 0, newData, 0, dataLength);
+      data = newData;
+    }
+  }
+
+  public long getX1(int i) {
+    return x1s[i];
+  }
+
+  public long getY1(int i) {
+    return y1s[i];
+  }
+
+  public long getX2(int i) {
+    return x2s[i];
+  }
+
+  public long getY2(int i) {
+    return y2s[i];
+  }
+
+  /**
+   * Retrieves the MBR of the record at the given index
+   * @param i
+   * @param mbr - the rectangle to store the MBR in
+   * @return - the given rectangle
+   */
+  public Rectangle getMBR(int i, Rectangle mbr) {
+    mbr.set(x1s[i], y1s[i], x2s[i] - x1s[i], y2s[i] - y1s[i]);
+    return mbr;
+  }
+
+  /**
+   * Retrieves the text of the record at the given index
+   * @param i
+   * @param text - the text to store the record in
+   * @return - the given text
+   */
+  public Text getText(int i, Text text) {
+    text.set(data, starts[i], lengths[i]);
+    return text;
+  }
+
+  /**
+   * Parses the record at the given index into the given shape
+   * @param i
+   * @param stockShape - the shape to parse the record into
+   * @return - the given shape
+   */
+  public <S extends Shape> S getShape(int i, S stockShape) {
+    stockShape.fromText(getText(i, tempText));
+    return stockShape;
+  }
+
+  /**
+   * Sorts records of this batch by the left edge of their MBRs
+   */
+  public void sortX() {
+    if (size < 2)
+      return;
+    new QuickSort().sort(new IndexedSortable() {
+      @Override
+      public void swap(int i, int j) {
+        long l = x1s[i]; x1s[i] = x1s[j]; x1s[j] = l;
+        l = y1s[i]; y1s[i] = y1s[j]; y1s[j] = l;
+        l = x2s[i]; x2s[i] = x2s[j]; x2s[j] = l;
+        l = y2s[i]; y2s[i] = y2s[j]; y2s[j] = l;
+        int t = starts[i]; starts[i] = starts[j]; starts[j] = t;
+        t = lengths[i]; lengths[i] = lengths[j]; lengths[j] = t;
+      }
+
+      @Override
+      public int compare(int i, int j) {
+        return x1s[i] < x1s[j] ? -1 : (x1s[i] > x1s[j] ? 1 : 0);
+      }
+    }, 0, size);
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(size);
+    for (int i = 0; i < size; i++) {
+      out.writeLong(x1s[i]);
+      out.writeLong(y1s[i]);
+      out.writeLong(x2s[i]);
+      out.writeLong(y2s[i]);
+      out.writeInt(lengths[i]);
+      out.write(data, starts[i], lengths[i]);
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    clear();
+    int newSize = in.readInt();
+    if (newSize > x1s.length)
+      setCapacity(newSize);
+    for (int i = 0; i < newSize; i++) {
+      x1s[i] = in.readLong();
+      y1s[i] = in.readLong();
+      x2s[i] = in.readLong();
+      y2s[i] = in.readLong();
+      lengths[i] = in.readInt();
+      ensureDataCapacity(dataLength + lengths[i]);
+      in.readFully(data, dataLength, lengths[i]);
+      starts[i] = dataLength;
+      dataLength += lengths[i];
+    }
+    size = newSize;
+  }
+}
@@ -9,19 +9,44 @@ import org.apache.hadoop.io.Writable;
 
 /**
  * A very simple spatial index that provides some spatial operations based
- * on an array storage.
+ * on an array storage. The MBRs of all shapes are kept in parallel arrays of
+ * primitive longs and a packed R-tree is built on top of them so that range
+ * queries do not need to go over all shapes. Shapes with no MBR (e.g., blocks
+ * of a heap file) are treated as if they cover the whole space.
  * @author eldawy
  *
  * @param <S>
  */
 public class SimpleSpatialIndex<S extends Shape> implements Writable,
     Iterable<S> {
+  /**Maximum number of entries in one node of the packed R-tree*/
+  private static final int NodeDegree = 16;
+  
   /**A stock instance of S used to deserialize objects from disk*/
   protected S stockShape;
   
-  /**All underlying shapes in no specific order*/
+  /**All underlying shapes in the order they were added*/
   protected S[] shapes;
   
+  /**
+   * Indexes in shapes of all shapes sorted by the Hilbert value of their
+   * centers. This is the order of shapes in the leaves of the packed R-tree.
+   */
+  private int[] order;
+  
+  /**Coordinates of the MBRs of all shapes in the same order of order*/
+  private long[] x1s, y1s, x2s, y2s;
+  
+  /**
+   * MBRs of the nodes of the packed R-tree stored level by level starting
+   * with the lowest level. Children of node i in level l are nodes
+   * [i*NodeDegree, (i+1)*NodeDegree) in level l-1 or shapes if l = 0.
+   */
+  private long[] nodeX1s, nodeY1s, nodeX2s, nodeY2s;
+  
+  /**Index of first node in each level in the node arrays*/
+  private int[] levelStarts;
+  
   public SimpleSpatialIndex() {
   }
   
@@ -33,6 +58,94 @@ public class SimpleSpatialIndex<S extends Shape> implements Writable,
     for (int i = 0; i < this.shapes.length; i++) {
       this.shapes[i] = (S) this.shapes[i].clone();
     }
+    buildIndex();
+  }
+  
+  /**
+   * Sorts shapes by the Hilbert value of their centers, extracts their MBRs
+   * into primitive arrays and packs a tree on top of them. The array of
+   * shapes itself is not reordered.
+   */
+  private void buildIndex() {
+    final int n = shapes.length;
+    order = new int[n];
+    long[] xs = new long[n];
+    long[] ys = new long[n];
+    Rectangle[] mbrs = new Rectangle[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+      mbrs[i] = shapes[i].getMBR();
+      if (mbrs[i] != null) {
+        xs[i] = mbrs[i].x + mbrs[i].width / 2;
+        ys[i] = mbrs[i].y + mbrs[i].height / 2;
+      }
+    }
+    if (n > 0)
+      RTree.packHilbert(order, xs, ys, NodeDegree, 1);
+    
+    x1s = new long[n];
+    y1s = new long[n];
+    x2s = new long[n];
+    y2s = new long[n];
+    for (int i = 0; i < n; i++) {
+      Rectangle mbr = mbrs[order[i]];
+      if (mbr == null) {
+        x1s[i] = y1s[i] = Long.MIN_VALUE;
+        x2s[i] = y2s[i] = Long.MAX_VALUE;
+      } else {
+        x1s[i] = mbr.getX1();
+        y1s[i] = mbr.getY1();
+        x2s[i] = mbr.getX2();
+        y2s[i] = mbr.getY2();
+      }
+    }
+    
+    // Count nodes in all levels
+    int levelCount = 0;
+    int totalNodeCount = 0;
+    int count = n;
+    do {
+      count = (count + NodeDegree - 1) / NodeDegree;
+      totalNodeCount += count;
+      levelCount++;
+    } while (count > 1);
+    
+    levelStarts = new int[levelCount + 1];
+    nodeX1s = new long[totalNodeCount];
+    nodeY1s = new long[totalNodeCount];
+    nodeX2s = new long[totalNodeCount];
+    nodeY2s = new long[totalNodeCount];
+    
+    // Build the tree bottom up
+    long[] childX1s = x1s, childY1s = y1s, childX2s = x2s, childY2s = y2s;
+    int childStart = 0, childCount = n;
+    int nodeStart = 0;
+    for (int level = 0; level < levelCount; level++) {
+      levelStarts[level] = nodeStart;
+      int nodeCount = (childCount + NodeDegree - 1) / NodeDegree;
+      for (int i_node = 0; i_node < nodeCount; i_node++) {
+        int node = nodeStart + i_node;
+        nodeX1s[node] = nodeY1s[node] = Long.MAX_VALUE;
+        nodeX2s[node] = nodeY2s[node] = Long.MIN_VALUE;
+        int firstChild = i_node * NodeDegree;
+        int lastChild = Math.min(childCount, firstChild + NodeDegree);
+        for (int child = childStart + firstChild;
+            child < childStart + lastChild; child++) {
+          if (childX1s[child] < nodeX1s[node]) nodeX1s[node] = childX1s[child];
+          if (childY1s[child] < nodeY1s[node]) nodeY1s[node] = childY1s[child];
+          if (childX2s[child] > nodeX2s[node]) nodeX2s[node] = childX2s[child];
+          if (childY2s[child] > nodeY2s[node]) nodeY2s[node] = childY2s[child];
+        }
+      }
+      childX1s = nodeX1s;
+      childY1s = nodeY1s;
+      childX2s = nodeX2s;
+      childY2s = nodeY2s;
+      childStart = nodeStart;
+      childCount = nodeCount;
+      nodeStart += nodeCount;
+    }
+    levelStarts[levelCount] = nodeStart;
   }
 
   @Override
@@ -52,15 +165,64 @@ public class SimpleSpatialIndex<S extends Shape> implements Writable,
       this.shapes[i] = (S) stockShape.clone();
       this.shapes[i].readFields(in);
     }
+    buildIndex();
   }
   
   public int rangeQuery(Shape queryRange, ResultCollector<S> output) {
+    Rectangle mbr = queryRange.getMBR();
+    return search(mbr.getX1(), mbr.getY1(), mbr.getX2(), mbr.getY2(),
+        queryRange, output);
+  }
+  
+  /**
+   * Searches the packed tree for all shapes with an MBR that overlaps the
+   * given rectangle. Each candidate is then tested against the query shape
+   * to report only the shapes that really intersect it.
+   * @param qx1
+   * @param qy1
+   * @param qx2
+   * @param qy2
+   * @param queryShape
+   * @param output
+   * @return - number of shapes found
+   */
+  private int search(long qx1, long qy1, long qx2, long qy2,
+      Shape queryShape, ResultCollector<S> output) {
+    if (shapes.length == 0)
+      return 0;
     int result_count = 0;
-    for (S shape : shapes) {
-      if (shape.isIntersected(queryRange)) {
-        result_count++;
-        if (output != null) {
-          output.collect(shape);
+    int topLevel = levelStarts.length - 2;
+    // A stack of (level, node) pairs where node is relative to its level
+    int[] stackLevels = new int[(topLevel + 1) * NodeDegree];
+    int[] stackNodes = new int[stackLevels.length];
+    int stackSize = 0;
+    stackLevels[stackSize] = topLevel;
+    stackNodes[stackSize++] = 0;
+    while (stackSize > 0) {
+      stackSize--;
+      int level = stackLevels[stackSize];
+      int node = stackNodes[stackSize];
+      int absNode = levelStarts[level] + node;
+      if (!(nodeX2s[absNode] > qx1 && qx2 > nodeX1s[absNode] &&
+          nodeY2s[absNode] > qy1 && qy2 > nodeY1s[absNode]))
+        continue;
+      int firstChild = node * NodeDegree;
+      if (level == 0) {
+        int lastChild = Math.min(shapes.length, firstChild + NodeDegree);
+        for (int i = firstChild; i < lastChild; i++) {
+          if (x2s[i] > qx1 && qx2 > x1s[i] && y2s[i] > qy1 && qy2 > y1s[i]
+              && shapes[order[i]].isIntersected(queryShape)) {
+            result_count++;
+            if (output != null)
+              output.collect(shapes[order[i]]);
+          }
+        }
+      } else {
+        int childLevelSize = levelStarts[level] - levelStarts[level - 1];
+        int lastChild = Math.min(childLevelSize, firstChild + NodeDegree);
+        for (int child = firstChild; child < lastChild; child++) {
+          stackLevels[stackSize] = level - 1;
+          stackNodes[stackSize++] = child;
         }
       }
     }
@@ -70,7 +232,19 @@ public class SimpleSpatialIndex<S extends Shape> implements Writable,
   public static<S1 extends Shape, S2 extends Shape>
       int spatialJoin(SimpleSpatialIndex<S1> s1, SimpleSpatialIndex<S2> s2,
           final ResultCollector2<S1, S2> output) {
-    return SpatialAlgorithms.SpatialJoin_planeSweep(s1.shapes, s2.shapes, output);
+    int result_count = 0;
+    // Probe the tree of s2 with the MBR of each shape in s1
+    for (int i = 0; i < s1.shapes.length; i++) {
+      final S1 r = s1.shapes[s1.order[i]];
+      result_count += s2.search(s1.x1s[i], s1.y1s[i], s1.x2s[i], s1.y2s[i],
+          r, output == null ? null : new ResultCollector<S2>() {
+        @Override
+        public void collect(S2 s) {
+          output.collect(r, s);
+        }
+      });
+    }
+    return result_count;
   }
   
   /**
@@ -177,4 +177,72 @@ public class SpatialAlgorithms {
     LOG.info("Finished plane sweep and found "+count+" pairs");
     return count;
   }
+  
+  /**
+   * Performs a plane sweep join between two batches of records. The sweep
+   * runs over the primitive MBRs of the records and only records with
+   * overlapping MBRs are parsed into the given stock shapes to test them
+   * for intersection. The shapes reported to the output are the stock
+   * shapes which are reused for all pairs.
+   * @param R
+   * @param S
+   * @param r - stock shape used to parse records of R
+   * @param s - stock shape used to parse records of S
+   * @param output
+   * @return - number of pairs found
+   */
+  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweep(
+      ShapeBatch R, ShapeBatch S, S1 r, S2 s, ResultCollector2<S1, S2> output) {
+    int count = 0;
+    
+    LOG.info("Joining "+ R.size()+" with "+S.size());
+    R.sortX();
+    S.sortX();
+
+    int i = 0, j = 0;
+
+    while (i < R.size() && j < S.size()) {
+      if (R.getX1(i) < S.getX1(j)) {
+        boolean r_parsed = false;
+        int jj = j;
+
+        while (jj < S.size() && S.getX1(jj) <= R.getX2(i)) {
+          if (S.getY1(jj) <= R.getY2(i) && R.getY1(i) <= S.getY2(jj)) {
+            if (!r_parsed) {
+              R.getShape(i, r);
+              r_parsed = true;
+            }
+            if (r.isIntersected(S.getShape(jj, s))) {
+              if (output != null)
+                output.collect(r, s);
+              count++;
+            }
+          }
+          jj++;
+        }
+        i++;
+      } else {
+        boolean s_parsed = false;
+        int ii = i;
+
+        while (ii < R.size() && R.getX1(ii) <= S.getX2(j)) {
+          if (R.getY1(ii) <= S.getY2(j) && S.getY1(j) <= R.getY2(ii)) {
+            if (!s_parsed) {
+              S.getShape(j, s);
+              s_parsed = true;
+            }
+            if (R.getShape(ii, r).isIntersected(s)) {
+              if (output != null)
+                output.collect(r, s);
+              count++;
+            }
+          }
+          ii++;
+        }
+        j++;
+      }
+    }
+    LOG.info("Finished plane sweep and found "+count+" pairs");
+    return count;
+  }
 }
@@ -5,6 +5,9 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 
 /**
  * Combines all the configuration needed for SpatialHadoop.
@@ -26,7 +29,10 @@ public class SpatialSite {
   public static final String LOCAL_INDEX_BLOCK_SIZE =
       "spatialHadoop.storage.LocalIndexBlockSize";
   
-  /**Whether to build the RTree in fast mode or slow (memory saving) mode.*/
+  /**
+   * How to build the RTree. Either "fast" (STR packing), "light" (slow but
+   * memory saving) or "hilbert" (packing along a Hilbert curve).
+   */
   public static final String RTREE_BUILD_MODE =
       "spatialHadoop.storage.RTreeBuildMode";
   
@@ -46,6 +52,13 @@ public class SpatialSite {
   public static final String SAMPLE_RATIO =
       "spatialHadoop.storage.SampleRatio";
   
+  /**
+   * Ratio of the heap used to buffer data of cells before building their
+   * local indexes. Cells beyond this limit are spilled to local disk.
+   */
+  public static final String CELL_BUFFER_RATIO =
+      "spatialHadoop.storage.CellBufferRatio";
+  
   /**
    * A marker put in the beginning of each block to indicate that this block
    * is stored as an RTree. It might be better to store this in the BlockInfo
@@ -53,6 +66,50 @@ public class SpatialSite {
    */
   public static final long RTreeFileMarker = -0x00012345678910L;
 
+  /**
+   * A marker put in the beginning of each block to indicate that this block
+   * is stored as an RTree in the binary format where records are stored as
+   * fixed-size MBRs in addition to their text representation.
+   * @see RTree#setBinary(boolean)
+   */
+  public static final long RTreeBinaryFileMarker = -0x00012345678911L;
+
+  /**Whether to store RTree blocks in the binary format or not*/
+  public static final String RTREE_BINARY =
+      "spatialHadoop.storage.RTreeBinary";
+
+  /**
+   * A marker put in the beginning of each block to indicate that this block
+   * is stored in the binary columnar format.
+   * @see ColumnarBlock
+   */
+  public static final long ColumnarFileMarker = -0x00012345678912L;
+
+  /**Whether to compress the attribute column of columnar blocks or not*/
+  public static final String COLUMNAR_COMPRESS =
+      "spatialHadoop.storage.ColumnarCompress";
+
+  /**
+   * A marker put in the beginning of each block to indicate that this block
+   * is compressed independently of other blocks.
+   * @see CompressedBlock
+   */
+  public static final long CompressedFileMarker = -0x00012345678913L;
+
+  /**
+   * Class name of the codec used to compress each block of grid files.
+   * Blocks are not compressed if not set.
+   */
+  public static final String BLOCK_COMPRESSION_CODEC =
+      "spatialHadoop.storage.BlockCompressionCodec";
+
+  /**
+   * The compression ratio expected when compressing blocks. Used to decide
+   * how much data to put in one block before the actual ratio is known.
+   */
+  public static final String BLOCK_COMPRESSION_RATIO =
+      "spatialHadoop.storage.BlockCompressionRatio";
+
   /**
    * Maximum number of shapes to read in one read operation and return when
    * reading a file as array
@@ -60,7 +117,36 @@ public class SpatialSite {
   public static final String MaxShapesInOneRead =
       "spatialHadoop.mapred.MaxShapesPerRead";
 
+  /**Maximum number of records to read in one batch*/
+  public static final String BATCH_SIZE = "spatialHadoop.mapred.BatchSize";
+
+  /**
+   * Whether batches hold only the MBRs of records without their text. This
+   * avoids reading the attributes of columnar blocks.
+   */
+  public static final String BATCH_MBR_ONLY = "spatialHadoop.mapred.BatchMBROnly";
+
+  /**
+   * Maximum total size (in bytes) of the blocks selected by a query for it
+   * to run in the local process instead of submitting a job
+   */
+  public static final String LOCAL_EXECUTION_MAX_SIZE =
+      "spatialHadoop.query.LocalExecutionMaxSize";
+
+  /**
+   * Maximum number of blocks selected by a query for it to run in the local
+   * process instead of submitting a job
+   */
+  public static final String LOCAL_EXECUTION_MAX_BLOCKS =
+      "spatialHadoop.query.LocalExecutionMaxBlocks";
+
   public static byte[] RTreeFileMarkerB;
+
+  public static byte[] RTreeBinaryFileMarkerB;
+
+  public static byte[] ColumnarFileMarkerB;
+
+  public static byte[] CompressedFileMarkerB;
   
   static {
     // Load configuration from files
@@ -74,6 +160,27 @@ public class SpatialSite {
       dout.close();
       bout.close();
       RTreeFileMarkerB = bout.toByteArray();
+      
+      bout = new ByteArrayOutputStream();
+      dout = new DataOutputStream(bout);
+      dout.writeLong(RTreeBinaryFileMarker);
+      dout.close();
+      bout.close();
+      RTreeBinaryFileMarkerB = bout.toByteArray();
+      
+      bout = new ByteArrayOutputStream();
+      dout = new DataOutputStream(bout);
+      dout.writeLong(ColumnarFileMarker);
+      dout.close();
+      bout.close();
+      ColumnarFileMarkerB = bout.toByteArray();
+      
+      bout = new ByteArrayOutputStream();
+      dout = new DataOutputStream(bout);
+      dout.writeLong(CompressedFileMarker);
+      dout.close();
+      bout.close();
+      CompressedFileMarkerB = bout.toByteArray();
     } catch (IOException e) {
       e.printStackTrace();
     }
@@ -101,4 +208,26 @@ public class SpatialSite {
     return stockShape;
   }
   
+  /**
+   * Reads the marker in the beginning of the first block of the given file.
+   * If the block is compressed, the marker of the block stored in it is
+   * returned.
+   * @param fs
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static long readBlockMarker(FileSystem fs, Path file)
+      throws IOException {
+    FSDataInputStream in = fs.open(file);
+    try {
+      long marker = in.readLong();
+      if (marker == CompressedFileMarker)
+        marker = CompressedBlock.readInnerMarker(fs.getConf(), in);
+      return marker;
+    } finally {
+      in.close();
+    }
+  }
+  
 }
@@ -0,0 +1,22 @@
+package org.apache.hadoop.spatial;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Implementing this interface allows retrieving the MBR of a shape from its
+ * text representation without fully parsing it. This is used to quickly
+ * skip records that do not match a query before paying the cost of parsing.
+ * @author eldawy
+ *
+ */
+public interface TextMBRParsable {
+  /**
+   * Parses the MBR of the shape represented by the given text. Unlike
+   * {@link Shape#fromText(Text)}, the given text is not modified.
+   * @param text - the text representation of a shape
+   * @param mbr - the rectangle to store the MBR in
+   * @return - the given rectangle or <code>null</code> if the MBR could not
+   *   be parsed
+   */
+  public Rectangle parseMBR(Text text, Rectangle mbr);
+}
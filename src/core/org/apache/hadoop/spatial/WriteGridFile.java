@@ -54,6 +54,7 @@ public class WriteGridFile {
     ShapeRecordWriter<S> rrw = rtree ?
         new RTreeGridRecordWriter<S>(outFileSystem, outputPath, cells, overwrite):
         new GridRecordWriter<S>(outFileSystem, outputPath, cells, overwrite);
+    rrw.setStockObject(shape);
 
     // Open input file
     LineReader reader = new LineReader(inFileSystem.open(inputPath));
@@ -11,6 +11,7 @@ import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.RecordWriter;
 import org.apache.hadoop.spatial.CellInfo;
 import org.apache.hadoop.spatial.Shape;
+import org.apache.hadoop.spatial.SpatialSite;
 import org.apache.hadoop.util.Progressable;
 
 public class GridOutputFormat<S extends Shape> extends FileOutputFormat<IntWritable, Text> {
@@ -35,6 +36,7 @@ public class GridOutputFormat<S extends Shape> extends FileOutputFormat<IntWrita
     boolean overwrite = job.getBoolean(OVERWRITE, false);
     GridRecordWriter writer =
         new GridRecordWriter(fileSystem, outFile, cellsInfo, overwrite);
+    writer.setStockObject(SpatialSite.createStockShape(job));
     return writer;
   }
   
@@ -0,0 +1,110 @@
+package org.apache.hadoop.mapred.spatial;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.spatial.BlockStatistics;
+import org.apache.hadoop.spatial.ResultCollector;
+import org.apache.hadoop.spatial.Shape;
+import org.apache.hadoop.spatial.SimpleSpatialIndex;
+
+/**
+ * A block filter that selects the blocks needed by any of a batch of range
+ * queries. Each block is selected at most once even if it overlaps many
+ * queries so that the whole batch is answered in one scan.
+ * @author eldawy
+ *
+ */
+public class MultiRangeFilter extends DefaultBlockFilter {
+
+  /**Name of the config line that stores the class name of query shapes*/
+  private static final String QUERY_SHAPE_CLASS =
+      "edu.umn.cs.spatialHadoop.mapReduce.MultiRangeFilter.QueryShapeClass";
+
+  /**Name of the config line that stores all query shapes*/
+  private static final String QUERY_SHAPES =
+      "edu.umn.cs.spatialHadoop.mapReduce.MultiRangeFilter.QueryShapes";
+
+  /**Separates query shapes in the config line*/
+  private static final char Separator = ';';
+
+  /**Shapes used to filter input*/
+  private Shape[] queryRanges;
+
+  /**
+   * Sets the query ranges in the given job. All query ranges must be of the
+   * same class. The ID of each query is its index in the given array.
+   * @param job
+   * @param shapes
+   */
+  public static void setQueryRanges(JobConf job, Shape[] shapes) {
+    job.setClass(QUERY_SHAPE_CLASS, shapes[0].getClass(), Shape.class);
+    Text text = new Text();
+    for (int i = 0; i < shapes.length; i++) {
+      if (i > 0)
+        text.append(new byte[] {Separator}, 0, 1);
+      shapes[i].toText(text);
+    }
+    job.set(QUERY_SHAPES, text.toString());
+  }
+
+  /**
+   * Retrieves the query ranges stored in the given job
+   * @param job
+   * @return
+   */
+  public static Shape[] getQueryRanges(Configuration job) {
+    try {
+      String queryShapeClassName = job.get(QUERY_SHAPE_CLASS);
+      Class<? extends Shape> queryShapeClass =
+          Class.forName(queryShapeClassName).asSubclass(Shape.class);
+      String[] parts = job.get(QUERY_SHAPES).split(String.valueOf(Separator));
+      Shape[] queryRanges = new Shape[parts.length];
+      for (int i = 0; i < parts.length; i++) {
+        queryRanges[i] = queryShapeClass.newInstance();
+        queryRanges[i].fromText(new Text(parts[i]));
+      }
+      return queryRanges;
+    } catch (ClassNotFoundException e) {
+      e.printStackTrace();
+    } catch (InstantiationException e) {
+      e.printStackTrace();
+    } catch (IllegalAccessException e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  @Override
+  public void configure(JobConf job) {
+    super.configure(job);
+    queryRanges = getQueryRanges(job);
+  }
+
+  @Override
+  public void selectBlocks(SimpleSpatialIndex<BlockLocation> gIndex,
+      final ResultCollector<BlockLocation> output) {
+    // Offsets of blocks already selected by previous queries
+    final Set<Long> selectedBlocks = new HashSet<Long>();
+    for (final Shape queryRange : queryRanges) {
+      gIndex.rangeQuery(queryRange, new ResultCollector<BlockLocation>() {
+        @Override
+        public void collect(BlockLocation block) {
+          if (selectedBlocks.contains(block.getOffset()))
+            return;
+          // Skip blocks where the actual data does not overlap the query
+          // even though their cells do
+          BlockStatistics stats = block.getStatistics();
+          if (stats == null || stats.isIntersected(queryRange)) {
+            selectedBlocks.add(block.getOffset());
+            output.collect(block);
+          }
+        }
+      });
+    }
+  }
+}
@@ -57,6 +57,12 @@ public class RTreeRecordReader<S extends Shape> extends SpatialRecordReader<Cell
     super(is, offset, endOffset);
   }
 
+  /**
+   * Reads the tree of the next block into the given tree. The memory of the
+   * tree previously read into the same object is reused, which overwrites
+   * that tree. A caller that keeps a tree after the next call of this method
+   * should pass a new value from {@link #createValue()} to each call.
+   */
   @Override
   public boolean next(CellInfo key, RTree<S> rtree) throws IOException {
     boolean read_line = nextRTree(rtree);
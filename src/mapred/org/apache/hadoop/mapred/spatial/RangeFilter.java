@@ -1,8 +1,10 @@
 package org.apache.hadoop.mapred.spatial;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.spatial.BlockStatistics;
 import org.apache.hadoop.spatial.ResultCollector;
 import org.apache.hadoop.spatial.Shape;
 import org.apache.hadoop.spatial.SimpleSpatialIndex;
@@ -18,6 +20,13 @@ public class RangeFilter extends DefaultBlockFilter {
   private static final String QUERY_SHAPE =
       "edu.umn.cs.spatialHadoop.mapReduce.RangeFilter.QueryShape";
 
+  /**
+   * Name of the config line that tells record readers to skip records that
+   * do not overlap the query range
+   */
+  private static final String PUSH_DOWN =
+      "edu.umn.cs.spatialHadoop.mapReduce.RangeFilter.PushDown";
+
   /**A shape that is used to filter input*/
   private Shape queryRange;
   
@@ -31,15 +40,42 @@ public class RangeFilter extends DefaultBlockFilter {
     job.set(QUERY_SHAPE, shape.toText(new Text()).toString());
   }
   
-  @Override
-  public void configure(JobConf job) {
-    super.configure(job);
+  /**
+   * Sets whether record readers should skip records that do not overlap the
+   * query range or not. This should be set only if the job is not
+   * interested in records outside the query range.
+   * @param job
+   * @param pushDown
+   */
+  public static void setPushDown(JobConf job, boolean pushDown) {
+    job.setBoolean(PUSH_DOWN, pushDown);
+  }
+  
+  /**
+   * Returns the query range that record readers should use to skip records
+   * or <code>null</code> if no query range is pushed down to record readers.
+   * @param job
+   * @return
+   */
+  public static Shape getPushedDownQuery(Configuration job) {
+    if (!job.getBoolean(PUSH_DOWN, false) || job.get(QUERY_SHAPE) == null)
+      return null;
+    return getQueryRange(job);
+  }
+  
+  /**
+   * Retrieves the query range stored in the given job
+   * @param job
+   * @return
+   */
+  private static Shape getQueryRange(Configuration job) {
     try {
       String queryShapeClassName = job.get(QUERY_SHAPE_CLASS);
       Class<? extends Shape> queryShapeClass =
           Class.forName(queryShapeClassName).asSubclass(Shape.class);
-      queryRange = queryShapeClass.newInstance();
+      Shape queryRange = queryShapeClass.newInstance();
       queryRange.fromText(new Text(job.get(QUERY_SHAPE)));
+      return queryRange;
     } catch (ClassNotFoundException e) {
       e.printStackTrace();
     } catch (InstantiationException e) {
@@ -47,11 +83,27 @@ public class RangeFilter extends DefaultBlockFilter {
     } catch (IllegalAccessException e) {
       e.printStackTrace();
     }
+    return null;
+  }
+  
+  @Override
+  public void configure(JobConf job) {
+    super.configure(job);
+    queryRange = getQueryRange(job);
   }
   
   @Override
   public void selectBlocks(SimpleSpatialIndex<BlockLocation> gIndex,
-      ResultCollector<BlockLocation> output) {
-    gIndex.rangeQuery(queryRange, output);
+      final ResultCollector<BlockLocation> output) {
+    gIndex.rangeQuery(queryRange, new ResultCollector<BlockLocation>() {
+      @Override
+      public void collect(BlockLocation block) {
+        // Skip blocks where the actual data does not overlap the query even
+        // though their cells do
+        BlockStatistics stats = block.getStatistics();
+        if (stats == null || stats.isIntersected(queryRange))
+          output.collect(block);
+      }
+    });
   }
 }
\ No newline at end of file
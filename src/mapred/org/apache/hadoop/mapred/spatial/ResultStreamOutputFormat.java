@@ -0,0 +1,185 @@
+package org.apache.hadoop.mapred.spatial;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.TextSerializable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobContext;
+import org.apache.hadoop.mapred.OutputCommitter;
+import org.apache.hadoop.mapred.OutputFormat;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.TaskAttemptContext;
+import org.apache.hadoop.util.Progressable;
+
+/**
+ * An output format that streams the output values of a job back to the
+ * client that submitted it instead of writing them to files. Values are sent
+ * as text to a {@link ResultStreamServer} running on the client. Keys that
+ * are not null are sent before their values separated by a tab as in
+ * {@link org.apache.hadoop.mapred.TextOutputFormat}.
+ * Each task attempt sends its values followed by an end marker and waits
+ * until the client acknowledges them. Hadoop closes the output of an attempt
+ * even if the attempt fails, so the end marker does not mean that the
+ * attempt succeeded. The {@link Committer} of the job sends a separate
+ * commit message once Hadoop commits the attempt and the client passes on
+ * only the output of committed attempts. This way, once the job completes,
+ * the client has received the output of all tasks exactly once.
+ * @author eldawy
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class ResultStreamOutputFormat<K, V> implements OutputFormat<K, V> {
+  /**Configuration line name for the address of the server on the client*/
+  public static final String SERVER_ADDRESS =
+      "spatialHadoop.mapred.ResultStreamServer";
+
+  /**Marks the end of the output of one task*/
+  static final int EndMarker = -1;
+
+  /**Sent instead of values to commit the output of an attempt*/
+  static final int CommitMarker = -2;
+
+  /**Separates keys from values*/
+  private static final byte[] Tab = {'\t'};
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  @Override
+  public RecordWriter<K, V> getRecordWriter(FileSystem ignored, JobConf job,
+      String name, Progressable progress) throws IOException {
+    final Socket socket = connect(job, job.get("mapred.task.id", name));
+    final DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(socket.getOutputStream()));
+
+    return new RecordWriter<K, V>() {
+      private final Text line = new Text();
+
+      @Override
+      public void write(K key, V value) throws IOException {
+        line.clear();
+        if (key != null && !(key instanceof NullWritable)) {
+          appendText(line, key);
+          line.append(Tab, 0, Tab.length);
+        }
+        appendText(line, value);
+        out.writeInt(line.getLength());
+        out.write(line.getBytes(), 0, line.getLength());
+      }
+
+      @Override
+      public void close(Reporter reporter) throws IOException {
+        try {
+          out.writeInt(EndMarker);
+          out.flush();
+          // Wait until the client receives all values
+          waitForAck(socket);
+        } finally {
+          socket.close();
+        }
+      }
+    };
+  }
+
+  /**
+   * Connects to the server on the client and identifies the given attempt
+   * @param job
+   * @param attemptId
+   * @return
+   * @throws IOException
+   */
+  private static Socket connect(JobConf job, String attemptId)
+      throws IOException {
+    String address = job.get(SERVER_ADDRESS);
+    if (address == null)
+      throw new IOException("Address of the result server is not set");
+    int colon = address.lastIndexOf(':');
+    Socket socket = new Socket(address.substring(0, colon),
+        Integer.parseInt(address.substring(colon + 1)));
+    new DataOutputStream(socket.getOutputStream()).writeUTF(attemptId);
+    return socket;
+  }
+
+  /**
+   * Waits until the server acknowledges the last message
+   * @param socket
+   * @throws IOException - if the server could not process the message
+   */
+  private static void waitForAck(Socket socket) throws IOException {
+    if (new DataInputStream(socket.getInputStream()).readByte() != 0)
+      throw new IOException("Result server rejected the output of the task");
+  }
+
+  /**
+   * Commits the output of an attempt on the client once Hadoop commits the
+   * attempt. Hadoop commits at most one attempt of each task and never
+   * commits failed attempts.
+   * @author eldawy
+   *
+   */
+  public static class Committer extends OutputCommitter {
+    @Override
+    public void setupJob(JobContext jobContext) throws IOException {
+      // Nothing to set up
+    }
+
+    @Override
+    public void setupTask(TaskAttemptContext taskContext) throws IOException {
+      // Nothing to set up
+    }
+
+    @Override
+    public boolean needsTaskCommit(TaskAttemptContext taskContext)
+        throws IOException {
+      // Map tasks of jobs with reducers do not write to the output format
+      return !taskContext.getTaskAttemptID().isMap() ||
+          taskContext.getJobConf().getNumReduceTasks() == 0;
+    }
+
+    @Override
+    public void commitTask(TaskAttemptContext taskContext) throws IOException {
+      Socket socket = connect(taskContext.getJobConf(),
+          taskContext.getTaskAttemptID().toString());
+      try {
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeInt(CommitMarker);
+        out.flush();
+        // Wait until the client passes on the output of this attempt
+        waitForAck(socket);
+      } finally {
+        socket.close();
+      }
+    }
+
+    @Override
+    public void abortTask(TaskAttemptContext taskContext) throws IOException {
+      // Output of attempts that are not committed is discarded by the client
+    }
+  }
+
+  /**Appends the text representation of the given object to a line*/
+  private static void appendText(Text line, Object o) {
+    if (o instanceof TextSerializable) {
+      ((TextSerializable) o).toText(line);
+    } else {
+      byte[] bytes = o.toString().getBytes(UTF8);
+      line.append(bytes, 0, bytes.length);
+    }
+  }
+
+  @Override
+  public void checkOutputSpecs(FileSystem ignored, JobConf job)
+      throws IOException {
+    if (job.get(SERVER_ADDRESS) == null)
+      throw new IOException("Address of the result server is not set");
+  }
+}
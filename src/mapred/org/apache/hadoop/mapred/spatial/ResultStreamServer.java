@@ -0,0 +1,344 @@
+package org.apache.hadoop.mapred.spatial;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.TaskAttemptID;
+import org.apache.hadoop.spatial.ResultCollector;
+
+/**
+ * Receives the output of jobs that use {@link ResultStreamOutputFormat} on
+ * the client that submits them. The output of each task attempt is kept
+ * until Hadoop commits the attempt and is then passed to a collector.
+ * Hadoop closes the output of an attempt even if the attempt fails, so
+ * receiving all the output of an attempt does not mean that the attempt
+ * succeeded. Only committed attempts are passed to the collector so that
+ * failed or duplicate attempts do not lose or duplicate results.
+ * The output of an attempt is kept in memory up to a limit after which it
+ * is spilled to a local temporary file.
+ * @author eldawy
+ *
+ */
+public class ResultStreamServer {
+  private static final Log LOG = LogFactory.getLog(ResultStreamServer.class);
+
+  /**Configuration line name for the address of the client as seen by tasks*/
+  public static final String CLIENT_ADDRESS =
+      "spatialHadoop.mapred.ResultStreamServer.ClientAddress";
+
+  /**
+   * Configuration line name for the maximum number of bytes of output of
+   * one attempt kept in memory before it is spilled to disk
+   */
+  public static final String MAX_BUFFER_SIZE =
+      "spatialHadoop.mapred.ResultStreamServer.MaxBufferSize";
+
+  /**Receives the output of all tasks*/
+  private final ResultCollector<Text> output;
+
+  /**Accepts connections from tasks*/
+  private final ServerSocket serverSocket;
+
+  /**Threads that read the output of tasks*/
+  private final ExecutorService handlers;
+
+  /**Maximum bytes of output of one attempt kept in memory*/
+  private volatile long maxBufferSize = 16 * 1024 * 1024;
+
+  /**
+   * Output of attempts that sent all of their output and are not committed
+   * yet indexed by attempt ID. Also used to synchronize all state of
+   * attempts.
+   */
+  private final Map<String, AttemptOutput> receivedOutputs =
+      new HashMap<String, AttemptOutput>();
+
+  /**IDs of attempts that failed to send their output*/
+  private final Set<String> failedAttempts = new HashSet<String>();
+
+  /**IDs of tasks with a committed attempt*/
+  private final Set<String> committedTasks = new HashSet<String>();
+
+  /**
+   * Output of one attempt. Values are kept in memory until they exceed the
+   * maximum buffer size. Subsequent values are written to a temporary file.
+   */
+  private class AttemptOutput {
+    private final Vector<Text> values = new Vector<Text>();
+    private long bufferedBytes;
+    private File spillFile;
+    private DataOutputStream spillOut;
+
+    void add(byte[] bytes) throws IOException {
+      if (spillOut == null && bufferedBytes + bytes.length > maxBufferSize) {
+        spillFile = File.createTempFile("result-stream", ".spill");
+        spillOut = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(spillFile)));
+      }
+      if (spillOut != null) {
+        spillOut.writeInt(bytes.length);
+        spillOut.write(bytes);
+      } else {
+        Text value = new Text();
+        value.set(bytes);
+        values.add(value);
+        bufferedBytes += bytes.length;
+      }
+    }
+
+    /**Called after the last value is added*/
+    void finish() throws IOException {
+      if (spillOut != null) {
+        spillOut.close();
+        spillOut = null;
+      }
+    }
+
+    /**Passes all values in the order they were added to the collector*/
+    void deliver() throws IOException {
+      for (Text value : values)
+        output.collect(value);
+      if (spillFile != null) {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(spillFile)));
+        try {
+          long spilledBytes = spillFile.length();
+          long readBytes = 0;
+          while (readBytes < spilledBytes) {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            Text value = new Text();
+            value.set(bytes);
+            output.collect(value);
+            readBytes += 4 + bytes.length;
+          }
+        } finally {
+          in.close();
+        }
+      }
+      discard();
+    }
+
+    /**Releases memory and disk space used by this output*/
+    void discard() {
+      values.clear();
+      if (spillOut != null) {
+        try {
+          spillOut.close();
+        } catch (IOException e) {
+          LOG.warn("Error closing spill file "+spillFile, e);
+        }
+        spillOut = null;
+      }
+      if (spillFile != null && !spillFile.delete())
+        LOG.warn("Could not delete spill file "+spillFile);
+      spillFile = null;
+    }
+  }
+
+  /**
+   * Starts a new server on an arbitrary free port.
+   * @param output - receives the output values of each task when the task
+   *   is committed. Calls to this collector are never concurrent.
+   * @throws IOException
+   */
+  public ResultStreamServer(ResultCollector<Text> output) throws IOException {
+    this.output = output;
+    this.serverSocket = new ServerSocket(0);
+    this.handlers = Executors.newCachedThreadPool();
+    Thread acceptor = new Thread("ResultStreamServer") {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            final Socket socket = serverSocket.accept();
+            handlers.submit(new Runnable() {
+              @Override
+              public void run() {
+                receive(socket);
+              }
+            });
+          }
+        } catch (IOException e) {
+          // Server socket closed
+        }
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /**
+   * Configures the given job to stream its output to this server
+   * @param job
+   * @throws IOException
+   */
+  public void configure(JobConf job) throws IOException {
+    job.setOutputFormat(ResultStreamOutputFormat.class);
+    job.setOutputCommitter(ResultStreamOutputFormat.Committer.class);
+    String clientAddress = job.get(CLIENT_ADDRESS);
+    if (clientAddress == null || clientAddress.length() == 0)
+      clientAddress = getClientAddress();
+    job.set(ResultStreamOutputFormat.SERVER_ADDRESS,
+        clientAddress+":"+serverSocket.getLocalPort());
+    maxBufferSize = job.getLong(MAX_BUFFER_SIZE, maxBufferSize);
+    // Speculative attempts would only send output that is discarded
+    job.setMapSpeculativeExecution(false);
+    job.setReduceSpeculativeExecution(false);
+  }
+
+  /**
+   * Handles one connection from a task attempt. The connection either sends
+   * the output of the attempt or commits it.
+   * @param socket
+   */
+  private void receive(Socket socket) {
+    String attemptId = null;
+    AttemptOutput attemptOutput = null;
+    try {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(socket.getInputStream()));
+      attemptId = in.readUTF();
+      int length = in.readInt();
+      boolean success;
+      if (length == ResultStreamOutputFormat.CommitMarker) {
+        success = commit(attemptId);
+      } else {
+        attemptOutput = new AttemptOutput();
+        while (length != ResultStreamOutputFormat.EndMarker) {
+          byte[] bytes = new byte[length];
+          in.readFully(bytes);
+          attemptOutput.add(bytes);
+          length = in.readInt();
+        }
+        attemptOutput.finish();
+        synchronized (receivedOutputs) {
+          AttemptOutput oldOutput = receivedOutputs.put(attemptId, attemptOutput);
+          if (oldOutput != null)
+            oldOutput.discard();
+        }
+        attemptOutput = null;
+        success = true;
+      }
+      // Let the task continue
+      OutputStream out = socket.getOutputStream();
+      out.write(success ? 0 : 1);
+      out.flush();
+    } catch (IOException e) {
+      LOG.warn("Failed to receive output of attempt "+attemptId, e);
+      if (attemptOutput != null)
+        attemptOutput.discard();
+      if (attemptId != null) {
+        synchronized (receivedOutputs) {
+          failedAttempts.add(attemptId);
+          AttemptOutput oldOutput = receivedOutputs.remove(attemptId);
+          if (oldOutput != null)
+            oldOutput.discard();
+        }
+      }
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        LOG.warn("Error closing connection of attempt "+attemptId, e);
+      }
+    }
+  }
+
+  /**
+   * Passes the output of the given attempt to the collector. The output of
+   * other attempts of the same task is discarded.
+   * @param attemptId
+   * @return - <code>false</code> if the output of the attempt was not
+   *   received correctly and the attempt should fail
+   * @throws IOException
+   */
+  private boolean commit(String attemptId) throws IOException {
+    synchronized (receivedOutputs) {
+      if (failedAttempts.contains(attemptId)) {
+        LOG.warn("Rejecting commit of failed attempt "+attemptId);
+        return false;
+      }
+      AttemptOutput attemptOutput = receivedOutputs.remove(attemptId);
+      if (!committedTasks.add(getTaskId(attemptId))) {
+        LOG.info("Ignoring duplicate output of "+attemptId);
+        if (attemptOutput != null)
+          attemptOutput.discard();
+        return true;
+      }
+      if (attemptOutput != null)
+        attemptOutput.deliver();
+      return true;
+    }
+  }
+
+  /**Returns the ID of the task of the given attempt*/
+  private static String getTaskId(String attemptId) {
+    try {
+      return TaskAttemptID.forName(attemptId).getTaskID().toString();
+    } catch (IllegalArgumentException e) {
+      return attemptId;
+    }
+  }
+
+  /**
+   * Returns an address of this machine that other machines can reach. The
+   * host name might resolve to a loopback address on some machines so the
+   * first address of a network interface that is not a loopback is used.
+   * @return
+   * @throws IOException
+   */
+  private static String getClientAddress() throws IOException {
+    Enumeration<NetworkInterface> interfaces =
+        NetworkInterface.getNetworkInterfaces();
+    while (interfaces != null && interfaces.hasMoreElements()) {
+      NetworkInterface networkInterface = interfaces.nextElement();
+      if (!networkInterface.isUp() || networkInterface.isLoopback())
+        continue;
+      Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
+      while (addresses.hasMoreElements()) {
+        InetAddress address = addresses.nextElement();
+        if (address instanceof Inet4Address && !address.isLoopbackAddress())
+          return address.getHostAddress();
+      }
+    }
+    return InetAddress.getLocalHost().getHostAddress();
+  }
+
+  /**
+   * Stops the server. Output received after this call is lost.
+   */
+  public void close() throws IOException {
+    serverSocket.close();
+    handlers.shutdownNow();
+    synchronized (receivedOutputs) {
+      for (AttemptOutput attemptOutput : receivedOutputs.values())
+        attemptOutput.discard();
+      receivedOutputs.clear();
+    }
+  }
+}
@@ -0,0 +1,26 @@
+package org.apache.hadoop.mapred.spatial;
+import java.io.IOException;
+
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.spatial.CellInfo;
+import org.apache.hadoop.spatial.ShapeBatch;
+
+/**
+ * Reads a file as batches of records
+ * @see ShapeBatch
+ * @author eldawy
+ *
+ */
+public class ShapeBatchInputFormat extends SpatialInputFormat<CellInfo, ShapeBatch> {
+
+  @Override
+  public RecordReader<CellInfo, ShapeBatch> getRecordReader(InputSplit split,
+      JobConf job, Reporter reporter) throws IOException {
+    reporter.setStatus(split.toString());
+    this.rrClass = ShapeBatchRecordReader.class;
+    return super.getRecordReader(split, job, reporter);
+  }
+}
@@ -0,0 +1,131 @@
+package org.apache.hadoop.mapred.spatial;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.lib.CombineFileSplit;
+import org.apache.hadoop.spatial.CellInfo;
+import org.apache.hadoop.spatial.Rectangle;
+import org.apache.hadoop.spatial.Shape;
+import org.apache.hadoop.spatial.ShapeBatch;
+import org.apache.hadoop.spatial.SpatialSite;
+
+/**
+ * Reads a file as batches of records where each batch holds the MBRs of its
+ * records as primitive arrays along with their text.
+ * @see ShapeBatch
+ * @author eldawy
+ *
+ */
+public class ShapeBatchRecordReader extends SpatialRecordReader<CellInfo, ShapeBatch> {
+  @SuppressWarnings("unused")
+  private static final Log LOG = LogFactory.getLog(ShapeBatchRecordReader.class);
+  
+  /**Object used to parse records to get their MBRs*/
+  private Shape stockShape;
+  
+  /**Maximum number of records in one batch*/
+  private int batchSize;
+
+  /**
+   * Whether each batch holds all the records of the split or not. Used by
+   * readers that need to read the split as one value.
+   */
+  private boolean wholeSplit;
+
+  /**Holds records read from the split while filling a whole split batch*/
+  private ShapeBatch partialBatch;
+
+  /**
+   * Whether batches hold only the MBRs of records or not. Such batches
+   * might span more than one block.
+   */
+  private boolean mbrOnly;
+
+  /**MBR of the current record when reading MBRs only*/
+  private final Rectangle mbr = new Rectangle();
+
+  /**Empty text stored for records when reading MBRs only*/
+  private static final byte[] NoText = new byte[0];
+
+  public ShapeBatchRecordReader(Configuration job, FileSplit split)
+      throws IOException {
+    super(job, split);
+    stockShape = SpatialSite.createStockShape(job);
+    batchSize = job.getInt(SpatialSite.BATCH_SIZE, ShapeBatch.DefaultCapacity);
+    mbrOnly = job.getBoolean(SpatialSite.BATCH_MBR_ONLY, false);
+  }
+
+  public ShapeBatchRecordReader(CombineFileSplit split, Configuration conf,
+      Reporter reporter, Integer index) throws IOException {
+    super(split, conf, reporter, index);
+    stockShape = SpatialSite.createStockShape(conf);
+    batchSize = conf.getInt(SpatialSite.BATCH_SIZE, ShapeBatch.DefaultCapacity);
+    mbrOnly = conf.getBoolean(SpatialSite.BATCH_MBR_ONLY, false);
+  }
+  
+  public ShapeBatchRecordReader(InputStream in, long offset, long endOffset,
+      Shape stockShape) throws IOException {
+    super(in, offset, endOffset);
+    this.stockShape = stockShape;
+    this.batchSize = ShapeBatch.DefaultCapacity;
+  }
+
+  /**
+   * Makes each batch returned by this reader hold all the remaining records
+   * of the split instead of at most a fixed number of records. Batches grow
+   * as needed to hold all records.
+   * @param wholeSplit
+   */
+  public void setWholeSplit(boolean wholeSplit) {
+    this.wholeSplit = wholeSplit;
+  }
+
+  /**
+   * Makes batches returned by this reader hold only the MBRs of records
+   * with an empty text for each record. MBRs of columnar blocks are read
+   * from their columns without reading their attributes.
+   * @param mbrOnly
+   */
+  public void setMBROnly(boolean mbrOnly) {
+    this.mbrOnly = mbrOnly;
+  }
+
+  @Override
+  public boolean next(CellInfo key, ShapeBatch batch) throws IOException {
+    boolean batch_read;
+    if (mbrOnly) {
+      batch.clear();
+      while (!batch.isFull() && nextMBR(mbr, stockShape))
+        batch.add(mbr.getX1(), mbr.getY1(), mbr.getX2(), mbr.getY2(),
+            NoText, 0, 0);
+      batch_read = batch.size() > 0;
+    } else if (wholeSplit) {
+      if (partialBatch == null)
+        partialBatch = new ShapeBatch(batchSize);
+      batch.clear();
+      while (nextBatch(partialBatch, stockShape))
+        batch.addAll(partialBatch);
+      batch_read = batch.size() > 0;
+    } else {
+      batch_read = nextBatch(batch, stockShape);
+    }
+    key.set(cellInfo);
+    return batch_read;
+  }
+
+  @Override
+  public CellInfo createKey() {
+    return new CellInfo();
+  }
+
+  @Override
+  public ShapeBatch createValue() {
+    return new ShapeBatch(batchSize);
+  }
+}
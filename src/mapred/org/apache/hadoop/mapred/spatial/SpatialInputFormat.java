@@ -55,7 +55,11 @@ public abstract class SpatialInputFormat<K, V> extends FileInputFormat<K, V> {
         Constructor<? extends RecordReader> rrConstructor;
         rrConstructor = rrClass.getDeclaredConstructor(constructorSignature);
         rrConstructor.setAccessible(true);
-        return rrConstructor.newInstance(new Object [] {job, (FileSplit)split});
+        RecordReader<K, V> reader =
+            rrConstructor.newInstance(new Object [] {job, (FileSplit)split});
+        if (reader instanceof SpatialRecordReader)
+          ((SpatialRecordReader<K, V>)reader).setReporter(reporter);
+        return reader;
       } catch (SecurityException e) {
         e.printStackTrace();
       } catch (NoSuchMethodException e) {
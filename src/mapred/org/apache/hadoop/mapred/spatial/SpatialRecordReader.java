@@ -1,5 +1,6 @@
 package org.apache.hadoop.mapred.spatial;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.IOException;
@@ -14,6 +15,7 @@ import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PositionedReadable;
 import org.apache.hadoop.fs.Seekable;
 import org.apache.hadoop.io.ArrayWritable;
 import org.apache.hadoop.io.Text;
@@ -24,9 +26,14 @@ import org.apache.hadoop.mapred.RecordReader;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.lib.CombineFileSplit;
 import org.apache.hadoop.spatial.CellInfo;
+import org.apache.hadoop.spatial.ColumnarBlock;
+import org.apache.hadoop.spatial.CompressedBlock;
 import org.apache.hadoop.spatial.RTree;
+import org.apache.hadoop.spatial.Rectangle;
 import org.apache.hadoop.spatial.Shape;
+import org.apache.hadoop.spatial.ShapeBatch;
 import org.apache.hadoop.spatial.SpatialSite;
+import org.apache.hadoop.spatial.TextMBRParsable;
 import org.apache.hadoop.util.LineReader;
 
 /**
@@ -42,7 +49,10 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
   /**Maximum number of shapes to read in one operation to return as array*/
   private int maxShapesInRead;
   
-  enum BlockType { HEAP, RTREE};
+  enum BlockType { HEAP, RTREE, RTREE_BINARY, COLUMNAR};
+  
+  /**Counters of records scanned and emitted when a query is pushed down*/
+  public static enum Counter { RECORDS_SCANNED, RECORDS_EMITTED };
   
   /** First offset that is read from the input */
   protected long start;
@@ -56,6 +66,12 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
   protected LineReader lineReader;
   /** A temporary text to read lines from lineReader */
   protected Text tempLine = new Text();
+  /** A temporary text to read the part of a line that is in the stream */
+  private Text streamLine = new Text();
+  /** A copy of a line that is parsed while the original line is kept */
+  private Text parseLine = new Text();
+  /** A temporary rectangle used to retrieve MBRs of shapes */
+  private Rectangle tempMBR = new Rectangle();
   /** Some bytes that were read from the stream but not parsed yet */
   protected byte[] buffer;
 
@@ -74,6 +90,49 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
   /**The type of the currently parsed block*/
   protected BlockType blockType;
   
+  /**Columns of the current block if it is stored in the columnar format*/
+  protected ColumnarBlock columnarBlock;
+  
+  /**Index of the next record to return from columns of current block*/
+  protected int columnarRecord;
+  
+  /**
+   * MBR of a query pushed down to this reader. Records with MBRs that do not
+   * overlap it are skipped. <code>null</code> if no query is pushed down.
+   */
+  protected Rectangle pushedDownMBR;
+  
+  /**Number of records scanned in current block with a pushed down query*/
+  private long blockRecordsScanned;
+  
+  /**Number of records emitted from current block with a pushed down query*/
+  private long blockRecordsEmitted;
+  
+  /**Used to report counters. Might be null*/
+  private Reporter reporter;
+  
+  /**Configuration of the job. Null if constructed from an input stream*/
+  private Configuration conf;
+  
+  /**Decompresses blocks that are compressed independently*/
+  private CompressedBlock compressedBlock;
+  
+  /**
+   * The stream of the file while the current block is read from its
+   * decompressed data in memory
+   */
+  private InputStream fileIn;
+  
+  /**Position in the file right after the current compressed block*/
+  private long fileInPos;
+  
+  /**
+   * Start of the current block in the file if it is compressed or -1 if not.
+   * While reading a compressed block, {@link #pos} is relative to the
+   * decompressed data.
+   */
+  private long compressedBlockStart = -1;
+  
   /**
    * Initialize from an input split
    * @param split
@@ -86,6 +145,7 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
       Reporter reporter, Integer index) throws IOException {
     this(conf, split.getStartOffsets()[index], split.getLength(index),
         split.getPath(index));
+    this.reporter = reporter;
   }
   
   /**
@@ -110,6 +170,7 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
     this.start = s;
     this.end = s + l;
     this.path = p;
+    this.conf = job;
     this.fs = this.path.getFileSystem(job);
     this.in = fs.open(this.path);
     this.blockSize = fs.getFileStatus(this.path).getBlockSize();
@@ -126,6 +187,9 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
     }
     this.pos = start;
     this.maxShapesInRead = job.getInt(SpatialSite.MaxShapesInOneRead, 1000000);
+    Shape pushedDownQuery = RangeFilter.getPushedDownQuery(job);
+    if (pushedDownQuery != null)
+      setPushedDownQuery(pushedDownQuery);
   }
   
   /**
@@ -144,20 +208,48 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
     this.pos = offset;
   }
 
+  /**
+   * Pushes down a query to this reader. Records with MBRs that do not overlap
+   * the MBR of the query are skipped without fully parsing them if possible.
+   * Callers still need to test returned records against the query as only
+   * their MBRs are checked.
+   * For RTree blocks, only the parts of the tree that are needed to search
+   * it with the MBR of the query are read. The returned trees must then be
+   * searched only with the same query MBR.
+   * @param query
+   */
+  public void setPushedDownQuery(Shape query) {
+    this.pushedDownMBR = query == null ? null : query.getMBR();
+  }
+  
+  /**
+   * Sets the reporter used to report counters of records scanned and
+   * emitted.
+   * @param reporter
+   */
+  public void setReporter(Reporter reporter) {
+    this.reporter = reporter;
+  }
+
   @Override
   public long getPos() throws IOException {
-    return pos;
+    // Positions inside a compressed block do not map to the file
+    return compressedBlockStart >= 0 ? compressedBlockStart : pos;
   }
 
   @Override
   public void close() throws IOException {
+    reportBlockSelectivity();
     if (lineReader != null) {
       lineReader.close();
     } else if (in != null) {
       in.close();
     }
+    if (fileIn != null)
+      fileIn.close();
     lineReader = null;
     in = null;
+    fileIn = null;
   }
 
   @Override
@@ -165,7 +257,7 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
     if (start == end) {
       return 0.0f;
     } else {
-      return Math.min(1.0f, (pos - start) / (float)(end - start));
+      return Math.min(1.0f, (getPos() - start) / (float)(end - start));
     }
   }
   
@@ -175,8 +267,16 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
   protected boolean moveToNextBlock() throws IOException {
     // Caution this method is called at the very beginning with pos points
     // to the start position but the file was never read
+    reportBlockSelectivity();
     long new_pos = getPos();
-    if (blockSize != 0 && getPos() % blockSize > 0) {
+    if (compressedBlockStart >= 0) {
+      // Done with the decompressed data. Go back to reading the file
+      in = fileIn;
+      pos = fileInPos;
+      new_pos = blockSize != 0 ? compressedBlockStart + blockSize : fileInPos;
+      fileIn = null;
+      compressedBlockStart = -1;
+    } else if (blockSize != 0 && getPos() % blockSize > 0) {
       // Currently in the middle of a block, move to the beginning of next block
       new_pos = getPos() + blockSize - (getPos() % blockSize);
     }
@@ -201,10 +301,41 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
     // Read the first part of the block to determine its type
     buffer = new byte[8];
     in.read(buffer);
+    if (Arrays.equals(buffer, SpatialSite.CompressedFileMarkerB)) {
+      pos += 8;
+      if (compressedBlock == null)
+        compressedBlock = new CompressedBlock(
+            conf != null ? conf : new Configuration());
+      pos += compressedBlock.read(getDataInput());
+      LOG.info("Block is compressed at position "+new_pos+" with "+
+          compressedBlock.getLength()+" bytes of data");
+      // Read the decompressed block from memory as any other block
+      fileIn = in;
+      fileInPos = pos;
+      compressedBlockStart = new_pos;
+      in = new DataInputStream(new ByteArrayInputStream(
+          compressedBlock.getData(), 0, compressedBlock.getLength()));
+      pos = 0;
+      in.read(buffer);
+    }
     if (Arrays.equals(buffer, SpatialSite.RTreeFileMarkerB)) {
       blockType = BlockType.RTREE;
       pos += 8;
       LOG.info("Block is RTree indexed at position "+pos);
+    } else if (Arrays.equals(buffer, SpatialSite.RTreeBinaryFileMarkerB)) {
+      blockType = BlockType.RTREE_BINARY;
+      pos += 8;
+      LOG.info("Block is binary RTree indexed at position "+pos);
+    } else if (Arrays.equals(buffer, SpatialSite.ColumnarFileMarkerB)) {
+      blockType = BlockType.COLUMNAR;
+      pos += 8;
+      buffer = null;
+      LOG.info("Block is columnar at position "+pos);
+      // Read the MBR columns only. Attributes are read when needed
+      if (columnarBlock == null)
+        columnarBlock = new ColumnarBlock();
+      pos += columnarBlock.readColumns(getDataInput());
+      columnarRecord = 0;
     } else {
       LOG.info("Found a heap block at position "+pos);
       blockType = BlockType.HEAP;
@@ -214,7 +345,8 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
   
       // Skip the first line unless we are reading the first block in file
       // For globally indexed blocks, never skip the first line in the block
-      boolean skipFirstLine = getPos() != 0 && cellInfo == null;
+      boolean skipFirstLine = getPos() != 0 && cellInfo == null &&
+          compressedBlockStart < 0;
       if (skipFirstLine) {
         // Search for the first occurrence of a new line
         int eol = RTree.skipToEOL(buffer, 0);
@@ -262,52 +394,172 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
       return false;
     while (getPos() <= end) {
       value.clear();
-      if (buffer != null) {
-        // Read the first line encountered in buffer
-        int eol = RTree.skipToEOL(buffer, 0);
-        value.append(buffer, 0, eol);
-        if (eol < buffer.length) {
-          // There are still some bytes remaining in buffer
-          byte[] tmp = new byte[buffer.length - eol];
-          System.arraycopy(buffer, eol, tmp, 0, tmp.length);
-        } else {
-          buffer = null;
+      if (blockType == BlockType.COLUMNAR) {
+        if (!columnarBlock.isAttributesRead())
+          pos += columnarBlock.readAttributes(getDataInput());
+        if (columnarBlock.nextLine(value)) {
+          // Keep track of the record to match it with its MBR
+          columnarRecord++;
+          return true;
         }
-        // Check if a complete line has been read from the buffer
-        byte last_byte = value.getBytes()[value.getLength()-1];
-        if (last_byte == '\n' || last_byte == '\r')
+      } else {
+        if (buffer != null) {
+          // Read the first line encountered in buffer
+          int eol = RTree.skipToEOL(buffer, 0);
+          value.append(buffer, 0, eol);
+          if (eol < buffer.length) {
+            // There are still some bytes remaining in buffer
+            byte[] tmp = new byte[buffer.length - eol];
+            System.arraycopy(buffer, eol, tmp, 0, tmp.length);
+            buffer = tmp;
+          } else {
+            buffer = null;
+          }
+          // Check if a complete line has been read from the buffer
+          byte last_byte = value.getBytes()[value.getLength()-1];
+          if (last_byte == '\n' || last_byte == '\r')
+            return true;
+        }
+        
+        // Read the first line from stream
+        int b = lineReader.readLine(streamLine);
+        pos += b;
+        
+        // Append the part read from stream to the part extracted from buffer
+        value.append(streamLine.getBytes(), 0, streamLine.getLength());
+        
+        if (value.getLength() > 1)
+          // Read a non-empty line. Note that end-of-line character is included
           return true;
       }
       
-      // Read the first line from stream
-      Text temp = new Text();
-      int b = lineReader.readLine(temp);
-      pos += b;
-      
-      // Append the part read from stream to the part extracted from buffer
-      value.append(temp.getBytes(), 0, temp.getLength());
-      
-      if (value.getLength() > 1)
-        // Read a non-empty line. Note that end-of-line character is included
-        return true;
-      
       // Line read is empty or contains only the new line character
       if (!moveAcrossBlocks)
         return false;
       
       // Reached end of block, move to next block and check for end of file
-      if (!moveToNextBlock())
+      if (!moveToNextDataBlock())
         return false;
-      
-      // Skip the header of the tree as we are concerned in data lines
-      if (blockType == BlockType.RTREE)
-        pos += RTree.skipHeader(in);
-      // Reinitialize record reader at the new position
-      lineReader = new LineReader(in);
     }
     // Reached end of file
     return false;
   }
+  
+  /**
+   * Moves to the next block and prepares it for reading data lines by
+   * skipping the header of the tree if the block is RTree indexed.
+   * @return - <code>false</code> if there are no more blocks in the split
+   * @throws IOException
+   */
+  private boolean moveToNextDataBlock() throws IOException {
+    if (!moveToNextBlock())
+      return false;
+    
+    // Skip the header of the tree as we are concerned in data lines
+    if (blockType == BlockType.RTREE)
+      pos += RTree.skipHeader(in);
+    else if (blockType == BlockType.RTREE_BINARY)
+      pos += RTree.skipHeader(in, true);
+    // Reinitialize record reader at the new position
+    if (blockType != BlockType.COLUMNAR)
+      lineReader = new LineReader(in);
+    return true;
+  }
+
+  /**
+   * Reads the MBR of the next shape in input. For blocks stored in the
+   * columnar format, the MBR is retrieved from the columns without reading
+   * or parsing the attributes. For other blocks, the next shape is parsed
+   * into the given stock shape and its MBR is returned.
+   * This method should not be mixed with other methods that read lines or
+   * shapes from the same reader.
+   * @param mbr - the rectangle to store the MBR in
+   * @param stockShape - used to parse shapes in non-columnar blocks
+   * @return - <code>true</code> if an MBR was read
+   * @throws IOException
+   */
+  protected boolean nextMBR(Rectangle mbr, Shape stockShape) throws IOException {
+    if (blockType == null && !moveToNextBlock())
+      return false;
+    while (true) {
+      if (blockType == BlockType.COLUMNAR) {
+        if (columnarRecord < columnarBlock.getRecordCount()) {
+          blockRecordsScanned++;
+          blockRecordsEmitted++;
+          columnarBlock.getMBR(columnarRecord++, mbr);
+          return true;
+        }
+      } else if (nextLine(tempLine, false)) {
+        blockRecordsScanned++;
+        blockRecordsEmitted++;
+        if (!(stockShape instanceof TextMBRParsable) ||
+            ((TextMBRParsable)stockShape).parseMBR(tempLine, mbr) == null) {
+          // Parse a copy of the line as parsing consumes it
+          parseLine.set(tempLine);
+          stockShape.fromText(parseLine);
+          stockShape.getMBR(mbr);
+        }
+        return true;
+      }
+      // Current block is exhausted. Attributes of a columnar block are
+      // skipped by seeking directly to the next block
+      if (!moveToNextDataBlock())
+        return false;
+    }
+  }
+
+  /**
+   * Fills the given batch with the MBRs and text of the next records in
+   * input. A batch never spans two blocks so that all records in a batch
+   * belong to the cell of the current block. No objects are created per
+   * record as the text of each record is copied into the batch and its MBR
+   * is either retrieved from the columns of a columnar block or parsed into
+   * the given stock shape.
+   * @param batch - the batch to fill. Any records in it are discarded
+   * @param stockShape - used to parse records to retrieve their MBRs
+   * @return - <code>true</code> if at least one record was read
+   * @throws IOException
+   */
+  protected boolean nextBatch(ShapeBatch batch, Shape stockShape)
+      throws IOException {
+    batch.clear();
+    if (blockType == null && !moveToNextBlock())
+      return false;
+    while (true) {
+      while (!batch.isFull() && nextLine(tempLine, false)) {
+        blockRecordsScanned++;
+        Rectangle mbr;
+        if (blockType == BlockType.COLUMNAR) {
+          mbr = columnarBlock.getMBR(columnarRecord - 1, tempMBR);
+        } else if (stockShape instanceof TextMBRParsable &&
+            ((TextMBRParsable)stockShape).parseMBR(tempLine, tempMBR) != null) {
+          mbr = tempMBR;
+        } else {
+          // Parse a copy of the line as parsing consumes it
+          parseLine.set(tempLine);
+          stockShape.fromText(parseLine);
+          mbr = stockShape.getMBR(tempMBR);
+        }
+        if (!matchesPushedDownQuery(mbr))
+          continue;
+        blockRecordsEmitted++;
+        batch.add(mbr, tempLine);
+      }
+      if (batch.size() > 0)
+        return true;
+      // Current block is exhausted without reading any records
+      if (!moveToNextDataBlock())
+        return false;
+    }
+  }
+
+  /**
+   * Returns the input stream as a DataInput
+   * @return
+   */
+  private DataInput getDataInput() {
+    return in instanceof DataInput ? (DataInput) in : new DataInputStream(in);
+  }
 
   /**
    * Reads next shape from input and returns true. If no more shapes are left
@@ -317,10 +569,58 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
    * @throws IOException 
    */
   protected boolean nextShape(Shape s, boolean moveAcrossBlocks) throws IOException {
-    if (!nextLine(tempLine, moveAcrossBlocks))
-      return false;
-    s.fromText(tempLine);
-    return true;
+    while (nextLine(tempLine, moveAcrossBlocks)) {
+      if (pushedDownMBR == null) {
+        s.fromText(tempLine);
+        return true;
+      }
+      blockRecordsScanned++;
+      if (s instanceof TextMBRParsable &&
+          ((TextMBRParsable)s).parseMBR(tempLine, tempMBR) != null) {
+        // Skip the record before paying the cost of fully parsing it
+        if (!matchesPushedDownQuery(tempMBR))
+          continue;
+        s.fromText(tempLine);
+      } else {
+        s.fromText(tempLine);
+        if (!matchesPushedDownQuery(s.getMBR(tempMBR)))
+          continue;
+      }
+      blockRecordsEmitted++;
+      return true;
+    }
+    return false;
+  }
+  
+  /**
+   * Checks whether a record with the given MBR might match the query pushed
+   * down to this reader. This is always true if no query is pushed down.
+   * @param mbr
+   * @return
+   */
+  private boolean matchesPushedDownQuery(Rectangle mbr) {
+    if (pushedDownMBR == null || mbr == null)
+      return true;
+    return mbr.getX2() >= pushedDownMBR.getX1() &&
+        pushedDownMBR.getX2() >= mbr.getX1() &&
+        mbr.getY2() >= pushedDownMBR.getY1() &&
+        pushedDownMBR.getY2() >= mbr.getY1();
+  }
+  
+  /**
+   * Reports the number of records scanned and emitted from the current block
+   * when a query is pushed down and resets them for the next block.
+   */
+  private void reportBlockSelectivity() {
+    if (pushedDownMBR == null || blockRecordsScanned == 0)
+      return;
+    LOG.info("Emitted "+blockRecordsEmitted+" out of "+blockRecordsScanned+
+        " records scanned in block at position "+pos);
+    if (reporter != null) {
+      reporter.incrCounter(Counter.RECORDS_SCANNED, blockRecordsScanned);
+      reporter.incrCounter(Counter.RECORDS_EMITTED, blockRecordsEmitted);
+    }
+    blockRecordsScanned = blockRecordsEmitted = 0;
   }
   
   /**
@@ -367,9 +667,15 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
   protected boolean nextRTree(RTree<? extends Shape> rtree) throws IOException {
     if (getPos() >= end || !moveToNextBlock())
       return false;
-    if (blockType == BlockType.RTREE) {
+    if (blockType == BlockType.RTREE || blockType == BlockType.RTREE_BINARY) {
       // Signature was already read in initialization.
       buffer = null;
+      rtree.setBinary(blockType == BlockType.RTREE_BINARY);
+      if (pushedDownMBR != null && in instanceof PositionedReadable) {
+        // Read only the parts of the tree that are needed by the query
+        pos += rtree.readFields((PositionedReadable) in, pos, pushedDownMBR);
+        return true;
+      }
       DataInput dataIn = in instanceof DataInput?
           (DataInput) in : new DataInputStream(in);
       rtree.readFields(dataIn);
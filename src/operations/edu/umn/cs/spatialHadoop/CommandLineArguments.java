@@ -173,6 +173,15 @@ public class CommandLineArguments {
     return Integer.MAX_VALUE;
   }
 
+  public int getNumThreads() {
+    for (String arg : args) {
+      if (arg.startsWith("threads:")) {
+        return Integer.parseInt(arg.substring(arg.indexOf(':')+1));
+      }
+    }
+    return 1;
+  }
+
   public long getBlockSize() {
     for (String arg : args) {
       if (arg.startsWith("blocksize:") || arg.startsWith("block_size:")) {
@@ -2,9 +2,16 @@ package edu.umn.cs.spatialHadoop;
 
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
@@ -33,6 +40,9 @@ import org.apache.hadoop.spatial.SpatialSite;
 public class RandomSpatialGenerator {
   static byte[] NEW_LINE;
   
+  /**Number of bytes of shapes generated from one random generator*/
+  static final long SegmentSize = 16 * 1024 * 1024;
+  
   static {
     try {
       NEW_LINE = System.getProperty("line.separator").getBytes("utf-8");
@@ -54,6 +64,11 @@ public class RandomSpatialGenerator {
    * accumulated size of all generated shapes. It is the size of the file if
    * it were generated as a heap file. This also makes the size of the output
    * file (grid file) comparable with that of the heap file.
+   * The total size is split into fixed segments of {@link #SegmentSize}
+   * bytes each with its own random generator seeded from the given seed.
+   * Segments are generated by the given number of threads and written in
+   * order so that the same seed always generates the same file regardless
+   * of the number of threads.
    * @param outFS
    * @param outFilePath
    * @param mbr
@@ -61,19 +76,18 @@ public class RandomSpatialGenerator {
    * @param totalSize
    * @param blocksize - Size of each block in the generated file
    * @param rtree
+   * @param numThreads - Number of threads that generate shapes
    * @throws IOException
    */
   public static void generateGridFile(FileSystem outFS, Path outFilePath,
       Shape shape, final long totalSize, final Rectangle mbr, int rectSize,
-      long seed,
-      long blocksize, String gindex, String lindex, boolean overwrite) throws IOException {
+      final long seed,
+      long blocksize, String gindex, String lindex, boolean overwrite,
+      int numThreads) throws IOException {
     GridInfo gridInfo = new GridInfo(mbr.x, mbr.y, mbr.width, mbr.height);
     Configuration conf = outFS.getConf();
     final double IndexingOverhead =
         conf.getFloat(SpatialSite.INDEXING_OVERHEAD, 0.1f);
-    // Serialize one shape and see how many characters it takes
-    final Random random = new Random(seed);
-    final Text text = new Text();
     if (blocksize == 0)
       blocksize = outFS.getDefaultBlockSize();
     int num_of_cells = (int) Math.ceil(totalSize * (1+IndexingOverhead) /
@@ -93,6 +107,7 @@ public class RandomSpatialGenerator {
     if (lindex == null) {
       recordWriter = new GridRecordWriter(outFS, outFilePath, cellInfo,
           overwrite);
+      recordWriter.setStockObject(shape);
       ((GridRecordWriter)recordWriter).setBlockSize(blocksize);
     } else if (lindex.equals("rtree")) {
       recordWriter = new RTreeGridRecordWriter(outFS, outFilePath, cellInfo,
@@ -103,26 +118,67 @@ public class RandomSpatialGenerator {
       throw new RuntimeException("Unsupported local index: " + lindex);
     }
 
-    long generatedSize = 0;
-    if (rectSize == 0)
-      rectSize = 100;
+    final int shapeSize = rectSize == 0 ? 100 : rectSize;
     
-    int minPoints = 3, maxPoints = 5;
+    final int minPoints = 3, maxPoints = 5;
     
+    // Generate segments in multiple threads and write them in order.
+    // Each segment uses its own random generator and shapes.
     long t1 = System.currentTimeMillis();
-    while (true) {
-      // Generate a random rectangle
-      generateShape(shape, mbr, rectSize, random, minPoints, maxPoints);
-
-      // Serialize it to text first to make it easy count its size
-      text.clear();
-      shape.toText(text);
-      if (text.getLength() + NEW_LINE.length + generatedSize > totalSize)
-        break;
-      
-      recordWriter.write(shape, text);
-      
-      generatedSize += text.getLength() + NEW_LINE.length;
+    if (numThreads < 1)
+      numThreads = 1;
+    int numSegments = (int) ((totalSize + SegmentSize - 1) / SegmentSize);
+    Random segmentSeeds = new Random(seed);
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    // Limit segments kept in memory waiting to be written
+    int maxPendingSegments = 2 * numThreads;
+    Vector<Future<Vector<Text>>> pendingSegments =
+        new Vector<Future<Vector<Text>>>();
+    int nextSegment = 0;
+    Shape stockShape = shape.clone();
+    try {
+      for (int i_segment = 0; i_segment < numSegments; i_segment++) {
+        while (nextSegment < numSegments &&
+            pendingSegments.size() < maxPendingSegments) {
+          final long segmentSize = Math.min(SegmentSize,
+              totalSize - (long)nextSegment * SegmentSize);
+          final Random random = new Random(segmentSeeds.nextLong());
+          final Shape segmentShape = shape.clone();
+          pendingSegments.add(executor.submit(new Callable<Vector<Text>>() {
+            @Override
+            public Vector<Text> call() {
+              Vector<Text> lines = new Vector<Text>();
+              long generatedSize = 0;
+              while (true) {
+                // Generate a random rectangle
+                generateShape(segmentShape, mbr, shapeSize, random,
+                    minPoints, maxPoints);
+                
+                // Serialize it to text first to make it easy count its size
+                Text text = new Text();
+                segmentShape.toText(text);
+                generatedSize += text.getLength() + NEW_LINE.length;
+                if (generatedSize > segmentSize)
+                  break;
+                lines.add(text);
+              }
+              return lines;
+            }
+          }));
+          nextSegment++;
+        }
+        Vector<Text> lines = pendingSegments.remove(0).get();
+        for (Text line : lines) {
+          stockShape.fromText(line);
+          recordWriter.write(stockShape, line);
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while generating shapes");
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Error generating shapes", e.getCause());
+    } finally {
+      executor.shutdownNow();
     }
     long t2 = System.currentTimeMillis();
     recordWriter.close(null);
@@ -234,6 +290,7 @@ public class RandomSpatialGenerator {
     System.out.println("global:<grid|rtree> - Type of global index in generated file");
     System.out.println("local:<grid|rtree> - Type of local index in generated file");
     System.out.println("seed:<s> - Use a specific seed to generate the file");
+    System.out.println("threads:<t> - Number of threads used to generate a grid file (default: 1)");
     System.out.println("-overwrite - Overwrite output file without notice");
   }
   
@@ -263,6 +320,7 @@ public class RandomSpatialGenerator {
     String gindex = cla.getGIndex();
     String lindex = cla.getLIndex();
     boolean overwrite = cla.isOverwrite();
+    int numThreads = cla.getNumThreads();
 
     
     if (outputFile != null) {
@@ -276,7 +334,7 @@ public class RandomSpatialGenerator {
     if (gindex == null && lindex == null)
       generateHeapFile(fs, outputFile, stockShape, totalSize, mbr, rectSize, seed, blocksize, overwrite);
     else
-      generateGridFile(fs, outputFile, stockShape, totalSize, mbr, rectSize, seed, blocksize, gindex, lindex, overwrite);
+      generateGridFile(fs, outputFile, stockShape, totalSize, mbr, rectSize, seed, blocksize, gindex, lindex, overwrite, numThreads);
   }
 
 }
@@ -140,4 +140,35 @@ public class TigerShape extends Rectangle {
     }
     System.arraycopy(text.getBytes(), 0, extraInfo, 0, extraInfoLength);
   }
+  
+  @Override
+  public Rectangle parseMBR(Text text, Rectangle mbr) {
+    byte[] bytes = text.getBytes();
+    int end = text.getLength();
+    while (end > 0 && (bytes[end - 1] == '\n' || bytes[end - 1] == '\r'))
+      end--;
+    // Skip the id
+    int offset = TextSerializerHelper.skipToSeparator(bytes, 0, end, ',') + 1;
+    int i = TextSerializerHelper.skipToSeparator(bytes, offset, end, ',');
+    if (i <= offset) return null;
+    long x1 = Math.round(TextSerializerHelper.deserializeDouble(bytes,
+        offset, i - offset) * Precision);
+    offset = i + 1;
+    i = TextSerializerHelper.skipToSeparator(bytes, offset, end, ',');
+    if (i <= offset) return null;
+    long y1 = Math.round(TextSerializerHelper.deserializeDouble(bytes,
+        offset, i - offset) * Precision);
+    offset = i + 1;
+    i = TextSerializerHelper.skipToSeparator(bytes, offset, end, ',');
+    if (i <= offset) return null;
+    long x2 = Math.round(TextSerializerHelper.deserializeDouble(bytes,
+        offset, i - offset) * Precision);
+    offset = i + 1;
+    i = TextSerializerHelper.skipToSeparator(bytes, offset, end, ',');
+    if (i <= offset) return null;
+    long y2 = Math.round(TextSerializerHelper.deserializeDouble(bytes,
+        offset, i - offset) * Precision);
+    mbr.set(x1, y1, x2 - x1, y2 - y1);
+    return mbr;
+  }
 }
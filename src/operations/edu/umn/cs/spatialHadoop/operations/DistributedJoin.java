@@ -11,10 +11,8 @@ import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.ArrayWritable;
 import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.ClusterStatus;
 import org.apache.hadoop.mapred.Counters;
 import org.apache.hadoop.mapred.Counters.Counter;
@@ -37,11 +35,15 @@ import org.apache.hadoop.mapred.spatial.BinarySpatialInputFormat;
 import org.apache.hadoop.mapred.spatial.BlockFilter;
 import org.apache.hadoop.mapred.spatial.DefaultBlockFilter;
 import org.apache.hadoop.mapred.spatial.PairWritable;
-import org.apache.hadoop.mapred.spatial.ShapeArrayRecordReader;
+import org.apache.hadoop.mapred.spatial.RTreeRecordReader;
+import org.apache.hadoop.mapred.spatial.ShapeBatchRecordReader;
+import org.apache.hadoop.spatial.BlockStatistics;
 import org.apache.hadoop.spatial.CellInfo;
+import org.apache.hadoop.spatial.RTree;
 import org.apache.hadoop.spatial.Rectangle;
 import org.apache.hadoop.spatial.ResultCollector2;
 import org.apache.hadoop.spatial.Shape;
+import org.apache.hadoop.spatial.ShapeBatch;
 import org.apache.hadoop.spatial.SimpleSpatialIndex;
 import org.apache.hadoop.spatial.SpatialAlgorithms;
 import org.apache.hadoop.spatial.SpatialSite;
@@ -64,32 +66,67 @@ public class DistributedJoin {
     @Override
     public void selectBlockPairs(SimpleSpatialIndex<BlockLocation> gIndex1,
         SimpleSpatialIndex<BlockLocation> gIndex2,
-        ResultCollector2<BlockLocation, BlockLocation> output) {
+        final ResultCollector2<BlockLocation, BlockLocation> output) {
       // Do a spatial join between the two global indexes
-      SimpleSpatialIndex.spatialJoin(gIndex1, gIndex2, output);
+      SimpleSpatialIndex.spatialJoin(gIndex1, gIndex2,
+          new ResultCollector2<BlockLocation, BlockLocation>() {
+        @Override
+        public void collect(BlockLocation b1, BlockLocation b2) {
+          if (isDataOverlapping(b1, b2))
+            output.collect(b1, b2);
+        }
+      });
     }
   }
   
-  public static class RedistributeJoinMap extends MapReduceBase
-  implements Mapper<PairWritable<CellInfo>, PairWritable<? extends Writable>, Shape, Shape> {
+  /**
+   * Tests whether the data in the given two blocks could overlap using
+   * their statistics. If the statistics of any of them is not available,
+   * they are assumed to overlap.
+   * @param b1
+   * @param b2
+   * @return
+   */
+  static boolean isDataOverlapping(BlockLocation b1, BlockLocation b2) {
+    BlockStatistics stats1 = b1.getStatistics();
+    BlockStatistics stats2 = b2.getStatistics();
+    return stats1 == null || stats2 == null || stats1.isIntersected(stats2);
+  }
+  
+  /**
+   * Joins a pair of batches of records using a plane sweep over the
+   * primitive MBRs of the records. Only records with overlapping MBRs are
+   * parsed into shapes.
+   * @author eldawy
+   *
+   */
+  public static class RedistributeJoinMapBatch extends MapReduceBase
+  implements Mapper<PairWritable<CellInfo>, PairWritable<ShapeBatch>, Shape, Shape> {
+    /**Stock shapes used to parse candidate records of the two batches*/
+    private Shape stockShape1, stockShape2;
+    
+    @Override
+    public void configure(JobConf job) {
+      super.configure(job);
+      stockShape1 = SpatialSite.createStockShape(job);
+      stockShape2 = SpatialSite.createStockShape(job);
+    }
+    
     public void map(
         final PairWritable<CellInfo> key,
-        final PairWritable<? extends Writable> value,
+        final PairWritable<ShapeBatch> value,
         final OutputCollector<Shape, Shape> output,
         Reporter reporter) throws IOException {
       final Rectangle mapperMBR = key.first.getIntersection(key.second);
+      final Rectangle xMBR = new Rectangle(), yMBR = new Rectangle();
 
-      // Join two arrays
-      ArrayWritable ar1 = (ArrayWritable) value.first;
-      ArrayWritable ar2 = (ArrayWritable) value.second;
-      SpatialAlgorithms.SpatialJoin_planeSweep(
-          (Shape[])ar1.get(), (Shape[])ar2.get(),
-          new ResultCollector2<Shape, Shape>() {
+      SpatialAlgorithms.SpatialJoin_planeSweep(value.first, value.second,
+          stockShape1, stockShape2, new ResultCollector2<Shape, Shape>() {
             @Override
             public void collect(Shape x, Shape y) {
-              Rectangle intersectionMBR = x.getMBR().getIntersection(y.getMBR());
               // Employ reference point duplicate avoidance technique 
-              if (mapperMBR.contains(intersectionMBR.x, intersectionMBR.y)) {
+              if (mapperMBR.containsReferencePoint(x.getMBR(xMBR),
+                  y.getMBR(yMBR))) {
                 try {
                   output.collect(x, y);
                 } catch (IOException e) {
@@ -103,37 +140,124 @@ public class DistributedJoin {
   }
   
   /**
-   * Reads a pair of arrays of shapes
+   * Joins a pair of RTrees using a synchronized traversal of both trees
+   * @author eldawy
+   *
+   */
+  public static class RedistributeJoinMapRTree<S extends Shape> extends MapReduceBase
+  implements Mapper<PairWritable<CellInfo>, PairWritable<RTree<S>>, S, S> {
+    public void map(
+        final PairWritable<CellInfo> key,
+        final PairWritable<RTree<S>> value,
+        final OutputCollector<S, S> output,
+        Reporter reporter) throws IOException {
+      final Rectangle mapperMBR = key.first.getIntersection(key.second);
+      final Rectangle xMBR = new Rectangle(), yMBR = new Rectangle();
+
+      RTree.spatialJoin(value.first, value.second,
+          new ResultCollector2<S, S>() {
+            @Override
+            public void collect(S x, S y) {
+              // Employ reference point duplicate avoidance technique 
+              if (mapperMBR.containsReferencePoint(x.getMBR(xMBR),
+                  y.getMBR(yMBR))) {
+                try {
+                  output.collect(x, y);
+                } catch (IOException e) {
+                  e.printStackTrace();
+                }
+              }
+            }
+          }
+      );
+    }
+  }
+
+  /**
+   * Reads a pair of RTrees
    * @author eldawy
    *
    */
-  public static class DJRecordReaderArray extends BinaryRecordReader<CellInfo, ArrayWritable> {
-    public DJRecordReaderArray(Configuration conf, CombineFileSplit fileSplits) throws IOException {
+  public static class DJRecordReaderRTree<S extends Shape> extends BinaryRecordReader<CellInfo, RTree<S>> {
+    public DJRecordReaderRTree(Configuration conf, CombineFileSplit fileSplits) throws IOException {
       super(conf, fileSplits);
     }
     
     @Override
-    protected RecordReader<CellInfo, ArrayWritable> createRecordReader(
+    protected RecordReader<CellInfo, RTree<S>> createRecordReader(
         Configuration conf, CombineFileSplit split, int i) throws IOException {
       FileSplit fsplit = new FileSplit(split.getPath(i),
           split.getStartOffsets()[i],
           split.getLength(i), split.getLocations());
-      return new ShapeArrayRecordReader(conf, fsplit);
+      return new RTreeRecordReader<S>(conf, fsplit);
     }
   }
 
   /**
-   * Input format that returns a record reader that reads a pair of arrays of
-   * shapes
+   * Input format that returns a record reader that reads a pair of RTrees
    * @author eldawy
    *
    */
-  public static class DJInputFormatArray extends BinarySpatialInputFormat<CellInfo, ArrayWritable> {
+  public static class DJInputFormatRTree<S extends Shape> extends BinarySpatialInputFormat<CellInfo, RTree<S>> {
     
     @Override
-    public RecordReader<PairWritable<CellInfo>, PairWritable<ArrayWritable>> getRecordReader(
+    public RecordReader<PairWritable<CellInfo>, PairWritable<RTree<S>>> getRecordReader(
         InputSplit split, JobConf job, Reporter reporter) throws IOException {
-      return new DJRecordReaderArray(job, (CombineFileSplit)split);
+      return new DJRecordReaderRTree<S>(job, (CombineFileSplit)split);
+    }
+  }
+
+  /**
+   * Checks whether the given file is stored as RTree blocks or not by
+   * checking the marker in its first block.
+   * @param fs
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  private static boolean isRTreeIndexed(FileSystem fs, Path file) throws IOException {
+    long marker = SpatialSite.readBlockMarker(fs, file);
+    return marker == SpatialSite.RTreeFileMarker ||
+        marker == SpatialSite.RTreeBinaryFileMarker;
+  }
+
+  /**
+   * Reads a pair of batches of records. Each batch holds all the records of
+   * its split. The binary reader reads the second split again for each
+   * value of the first split so splitting the first one into many batches
+   * would read the second split many times.
+   * @author eldawy
+   *
+   */
+  public static class DJRecordReaderBatch extends BinaryRecordReader<CellInfo, ShapeBatch> {
+    public DJRecordReaderBatch(Configuration conf, CombineFileSplit fileSplits) throws IOException {
+      super(conf, fileSplits);
+    }
+    
+    @Override
+    protected RecordReader<CellInfo, ShapeBatch> createRecordReader(
+        Configuration conf, CombineFileSplit split, int i) throws IOException {
+      FileSplit fsplit = new FileSplit(split.getPath(i),
+          split.getStartOffsets()[i],
+          split.getLength(i), split.getLocations());
+      ShapeBatchRecordReader reader = new ShapeBatchRecordReader(conf, fsplit);
+      reader.setWholeSplit(true);
+      return reader;
+    }
+  }
+
+  /**
+   * Input format that returns a record reader that reads a pair of batches
+   * of records
+   * @author eldawy
+   *
+   */
+  public static class DJInputFormatBatch extends BinarySpatialInputFormat<CellInfo, ShapeBatch> {
+    
+    @Override
+    public RecordReader<PairWritable<CellInfo>, PairWritable<ShapeBatch>> getRecordReader(
+        InputSplit split, JobConf job, Reporter reporter) throws IOException {
+      return new DJRecordReaderBatch(job, (CombineFileSplit)split);
     }
   }
 
@@ -255,14 +379,21 @@ public class DistributedJoin {
 
     job.setJobName("DistributedJoin");
     ClusterStatus clusterStatus = new JobClient(job).getClusterStatus();
-    job.setMapperClass(RedistributeJoinMap.class);
     job.setMapOutputKeyClass(stockShape.getClass());
     job.setMapOutputValueClass(stockShape.getClass());
     job.setBoolean(SpatialSite.AutoCombineSplits, true);
     job.setNumMapTasks(10 * Math.max(1, clusterStatus.getMaxMapTasks()));
     job.setNumReduceTasks(0); // No reduce needed for this task
 
-    job.setInputFormat(DJInputFormatArray.class);
+    if (isRTreeIndexed(fs, inputFiles[0]) && isRTreeIndexed(fs, inputFiles[1])) {
+      // Both files are locally indexed. Join each pair of RTrees directly
+      LOG.info("Joining two RTree indexed files");
+      job.setMapperClass(RedistributeJoinMapRTree.class);
+      job.setInputFormat(DJInputFormatRTree.class);
+    } else {
+      job.setMapperClass(RedistributeJoinMapBatch.class);
+      job.setInputFormat(DJInputFormatBatch.class);
+    }
     job.setClass(SpatialSite.FilterClass, SpatialJoinFilter.class, BlockFilter.class);
     job.set(SpatialSite.SHAPE_CLASS, stockShape.getClass().getName());
     job.setOutputFormat(TextOutputFormat.class);
@@ -273,7 +404,7 @@ public class DistributedJoin {
         commaSeparatedFiles += ',';
       commaSeparatedFiles += inputFiles[i].toUri().toString();
     }
-    DJInputFormatArray.addInputPaths(job, commaSeparatedFiles);
+    DJInputFormatBatch.addInputPaths(job, commaSeparatedFiles);
     TextOutputFormat.setOutputPath(job, outputPath);
     
     RunningJob runningJob = JobClient.runJob(job);
@@ -381,8 +512,18 @@ public class DistributedJoin {
     for (int i_file = 0; i_file < fStatus.length; i_file++)
       gIndexes[i_file] = fs.getGlobalIndex(fStatus[i_file]);
     
-    cost_without_repartition = SimpleSpatialIndex.spatialJoin(gIndexes[0],
-        gIndexes[1], null);
+    // Count pairs of blocks that need to be joined skipping the ones where
+    // the actual data does not overlap
+    final int[] overlappingPairs = new int[1];
+    SimpleSpatialIndex.spatialJoin(gIndexes[0], gIndexes[1],
+        new ResultCollector2<BlockLocation, BlockLocation>() {
+      @Override
+      public void collect(BlockLocation b1, BlockLocation b2) {
+        if (isDataOverlapping(b1, b2))
+          overlappingPairs[0]++;
+      }
+    });
+    cost_without_repartition = overlappingPairs[0];
     // Cost of repartition + cost of join
     cost_with_repartition = gIndexes[0].size() * 3 + gIndexes[1].size();
     LOG.info("Cost with repartition is estimated to "+cost_with_repartition);
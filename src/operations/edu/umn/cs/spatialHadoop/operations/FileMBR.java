@@ -18,11 +18,12 @@ import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.TextOutputFormat;
-import org.apache.hadoop.mapred.spatial.ShapeInputFormat;
-import org.apache.hadoop.mapred.spatial.ShapeRecordReader;
+import org.apache.hadoop.mapred.spatial.ShapeBatchInputFormat;
+import org.apache.hadoop.mapred.spatial.ShapeBatchRecordReader;
 import org.apache.hadoop.spatial.CellInfo;
 import org.apache.hadoop.spatial.Rectangle;
 import org.apache.hadoop.spatial.Shape;
+import org.apache.hadoop.spatial.ShapeBatch;
 import org.apache.hadoop.spatial.SpatialSite;
 import org.apache.hadoop.util.LineReader;
 
@@ -48,6 +49,32 @@ public class FileMBR {
     }
   }
   
+  /**
+   * Computes the MBR of a batch of records directly from their primitive
+   * coordinates without creating an object for each record.
+   * @author eldawy
+   *
+   */
+  public static class BatchMap extends MapReduceBase implements
+      Mapper<CellInfo, ShapeBatch, NullWritable, Rectangle> {
+    public void map(CellInfo dummy, ShapeBatch batch,
+        OutputCollector<NullWritable, Rectangle> output, Reporter reporter)
+        throws IOException {
+      long x1 = Long.MAX_VALUE;
+      long y1 = Long.MAX_VALUE;
+      long x2 = Long.MIN_VALUE;
+      long y2 = Long.MIN_VALUE;
+      for (int i = 0; i < batch.size(); i++) {
+        if (batch.getX1(i) < x1) x1 = batch.getX1(i);
+        if (batch.getY1(i) < y1) y1 = batch.getY1(i);
+        if (batch.getX2(i) > x2) x2 = batch.getX2(i);
+        if (batch.getY2(i) > y2) y2 = batch.getY2(i);
+      }
+      MBR.set(x1, y1, x2 - x1, y2 - y1);
+      output.collect(Dummy, MBR);
+    }
+  }
+  
   public static class Reduce extends MapReduceBase implements
   Reducer<NullWritable, Rectangle, NullWritable, Rectangle> {
     @Override
@@ -117,17 +144,19 @@ public class FileMBR {
     job.setMapOutputKeyClass(NullWritable.class);
     job.setMapOutputValueClass(Rectangle.class);
 
-    job.setMapperClass(Map.class);
+    job.setMapperClass(BatchMap.class);
     job.setReducerClass(Reduce.class);
     job.setCombinerClass(Reduce.class);
     ClusterStatus clusterStatus = new JobClient(job).getClusterStatus();
     job.setNumMapTasks(clusterStatus.getMaxMapTasks() * 5);
     
-    job.setInputFormat(ShapeInputFormat.class);
+    job.setInputFormat(ShapeBatchInputFormat.class);
     job.set(SpatialSite.SHAPE_CLASS, stockShape.getClass().getName());
+    // Only MBRs are needed. Skip attributes of columnar blocks
+    job.setBoolean(SpatialSite.BATCH_MBR_ONLY, true);
     job.setOutputFormat(TextOutputFormat.class);
     
-    ShapeInputFormat.setInputPaths(job, file);
+    ShapeBatchInputFormat.setInputPaths(job, file);
     TextOutputFormat.setOutputPath(job, outputPath);
     
     // Submit the job
@@ -188,24 +217,27 @@ public class FileMBR {
     }
     long file_size = fs.getFileStatus(file).getLen();
     
-    ShapeRecordReader<Shape> shapeReader =
-        new ShapeRecordReader<Shape>(fs.open(file), 0, file_size);
+    ShapeBatchRecordReader batchReader =
+        new ShapeBatchRecordReader(fs.open(file), 0, file_size, stockShape);
+    batchReader.setMBROnly(true);
 
     long x1 = Long.MAX_VALUE;
     long y1 = Long.MAX_VALUE;
     long x2 = Long.MIN_VALUE;
     long y2 = Long.MIN_VALUE;
     
-    CellInfo key = shapeReader.createKey();
+    CellInfo key = batchReader.createKey();
+    ShapeBatch batch = batchReader.createValue();
 
-    while (shapeReader.next(key, stockShape)) {
-      Rectangle rect = stockShape.getMBR();
-      if (rect.getX1() < x1) x1 = rect.getX1();
-      if (rect.getY1() < y1) y1 = rect.getY1();
-      if (rect.getX2() > x2) x2 = rect.getX2();
-      if (rect.getY2() > y2) y2 = rect.getY2();
+    while (batchReader.next(key, batch)) {
+      for (int i = 0; i < batch.size(); i++) {
+        if (batch.getX1(i) < x1) x1 = batch.getX1(i);
+        if (batch.getY1(i) < y1) y1 = batch.getY1(i);
+        if (batch.getX2(i) > x2) x2 = batch.getX2(i);
+        if (batch.getY2(i) > y2) y2 = batch.getY2(i);
+      }
     }
-    shapeReader.close();
+    batchReader.close();
     return new Rectangle(x1, y1, x2-x1, y2-y1);
   }
   
@@ -3,8 +3,12 @@ package edu.umn.cs.spatialHadoop.operations;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.Vector;
@@ -27,6 +31,7 @@ import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.ClusterStatus;
 import org.apache.hadoop.mapred.Counters;
 import org.apache.hadoop.mapred.Counters.Counter;
+import org.apache.hadoop.mapred.FileSplit;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
@@ -39,16 +44,21 @@ import org.apache.hadoop.mapred.Task;
 import org.apache.hadoop.mapred.TextOutputFormat;
 import org.apache.hadoop.mapred.spatial.BlockFilter;
 import org.apache.hadoop.mapred.spatial.RTreeInputFormat;
+import org.apache.hadoop.mapred.spatial.RTreeRecordReader;
 import org.apache.hadoop.mapred.spatial.RangeFilter;
+import org.apache.hadoop.mapred.spatial.ResultStreamServer;
 import org.apache.hadoop.mapred.spatial.ShapeInputFormat;
 import org.apache.hadoop.mapred.spatial.ShapeRecordReader;
+import org.apache.hadoop.spatial.BlockStatistics;
 import org.apache.hadoop.spatial.CellInfo;
 import org.apache.hadoop.spatial.Circle;
 import org.apache.hadoop.spatial.Point;
 import org.apache.hadoop.spatial.RTree;
+import org.apache.hadoop.spatial.Rectangle;
 import org.apache.hadoop.spatial.ResultCollector;
 import org.apache.hadoop.spatial.ResultCollector2;
 import org.apache.hadoop.spatial.Shape;
+import org.apache.hadoop.spatial.SimpleSpatialIndex;
 import org.apache.hadoop.spatial.SpatialSite;
 import org.apache.hadoop.util.LineReader;
 import org.apache.hadoop.util.PriorityQueue;
@@ -305,8 +315,9 @@ public class KNN {
     
     job.setJobName("KNN");
     
-    FSDataInputStream in = fs.open(outputFile);
-    if (in.readLong() == SpatialSite.RTreeFileMarker) {
+    long marker = SpatialSite.readBlockMarker(fs, outputFile);
+    if (marker == SpatialSite.RTreeFileMarker ||
+        marker == SpatialSite.RTreeBinaryFileMarker) {
       LOG.info("Performing KNN on RTree blocks");
       job.setMapperClass(Map2.class);
       job.setInputFormat(RTreeInputFormat.class);
@@ -317,7 +328,6 @@ public class KNN {
       job.setCombinerClass(KNNReduce.class);
       job.setInputFormat(ShapeInputFormat.class);
     }
-    in.close();
     
     ClusterStatus clusterStatus = new JobClient(job).getClusterStatus();
     job.setNumMapTasks(clusterStatus.getMaxMapTasks() * 5);
@@ -346,98 +356,136 @@ public class KNN {
     final TextWithDistance t = new TextWithDistance();
     
     Shape range_for_this_iteration = new Point(queryPoint.x, queryPoint.y);
+    // Start with a range that is expected to contain k records if block
+    // statistics are available. This saves iterations that expand the range.
+    BlockStatistics[] blockStats = fs.getBlockStatistics(fileStatus);
+    if (blockStats != null) {
+      double radius = estimateKNNRadius(blockStats, queryPoint, k);
+      if (radius > 0) {
+        range_for_this_iteration =
+            new Circle(queryPoint.x, queryPoint.y, radius);
+        LOG.info("Starting with an estimated radius of "+radius);
+      }
+    }
     int additional_blocks_2b_processed;
     long resultCount;
     int iterations = 0;
     
     Path outputPath = userOutputPath;
+    if (outputPath != null && outFs.exists(outputPath)) {
+      if (overwrite)
+        outFs.delete(outputPath, true);
+      else
+        throw new RuntimeException("Output path already exists and -overwrite flag is not set");
+    }
+    
+    // If output path is not set by user, results of each iteration are
+    // streamed back to this list instead of written to a temporary file
+    final Vector<TextWithDistance> streamedResults =
+        new Vector<TextWithDistance>();
+    ResultStreamServer resultServer = null;
     if (outputPath == null) {
-      do {
-        outputPath = new Path("/"+outputFile.getName()+
-            ".knn_"+(int)(Math.random() * 1000000));
-      } while (outFs.exists(outputPath));
+      resultServer = new ResultStreamServer(new ResultCollector<Text>() {
+        @Override
+        public void collect(Text line) {
+          TextWithDistance result = new TextWithDistance();
+          result.fromText(line);
+          streamedResults.add(result);
+        }
+      });
+      resultServer.configure(job);
     } else {
-      if (outFs.exists(outputPath)) {
-        if (overwrite)
-          outFs.delete(outputPath, true);
-        else
-          throw new RuntimeException("Output path already exists and -overwrite flag is not set");
-      }
+      TextOutputFormat.setOutputPath(job, outputPath);
     }
 
-    do {
-      // Delete results of last iteration if not first iteration
-      if (outputPath != null)
-        outFs.delete(outputPath, true);
-        
-      TextOutputFormat.setOutputPath(job, outputPath);
+    try {
+      do {
+        // Delete results of last iteration if not first iteration
+        if (outputPath != null)
+          outFs.delete(outputPath, true);
+        streamedResults.clear();
       
-      LOG.info("Running iteration: "+(++iterations));
-      RangeFilter.setQueryRange(job, range_for_this_iteration);
+        LOG.info("Running iteration: "+(++iterations));
+        RangeFilter.setQueryRange(job, range_for_this_iteration);
 
-      // Submit the job
-      runningJob = JobClient.runJob(job);
+        // Submit the job
+        runningJob = JobClient.runJob(job);
 
-      // Retrieve answers for this iteration
-      Counters counters = runningJob.getCounters();
-      Counter outputRecordCounter = counters.findCounter(Task.Counter.REDUCE_OUTPUT_RECORDS);
-      resultCount = outputRecordCounter.getValue();
+        // Retrieve answers for this iteration
+        Counters counters = runningJob.getCounters();
+        Counter outputRecordCounter = counters.findCounter(Task.Counter.REDUCE_OUTPUT_RECORDS);
+        resultCount = outputRecordCounter.getValue();
       
-      Circle range_for_next_iteration;
-      if (resultCount < k) {
-        LOG.info("Found only "+resultCount+" results");
-        // Did not find enough results in the query space
-        // Increase the distance by doubling the maximum distance
-        double maximum_distance = 0;
-        for (BlockLocation l : fileBlockLocations) {
-          if (l.getCellInfo().isIntersected(range_for_this_iteration)) {
-            double distance =
-                l.getCellInfo().getMaxDistanceTo(queryPoint.x, queryPoint.y);
-            if (distance > maximum_distance)
-              maximum_distance = distance;
+        Circle range_for_next_iteration;
+        if (resultCount < k) {
+          LOG.info("Found only "+resultCount+" results");
+          // Did not find enough results in the query space
+          // Increase the distance by doubling the maximum distance
+          double maximum_distance = 0;
+          for (BlockLocation l : fileBlockLocations) {
+            if (l.getCellInfo().isIntersected(range_for_this_iteration)) {
+              double distance =
+                  l.getCellInfo().getMaxDistanceTo(queryPoint.x, queryPoint.y);
+              if (distance > maximum_distance)
+                maximum_distance = distance;
+            }
           }
-        }
-        range_for_next_iteration =
-            new Circle(queryPoint.x, queryPoint.y, maximum_distance*2);
-        LOG.info("Expanding to "+maximum_distance*2);
-      } else {
-        // Calculate the new test range which is a circle centered at the
-        // query point and distance to the k^{th} neighbor
+          range_for_next_iteration =
+              new Circle(queryPoint.x, queryPoint.y, maximum_distance*2);
+          LOG.info("Expanding to "+maximum_distance*2);
+        } else {
+          // Calculate the new test range which is a circle centered at the
+          // query point and distance to the k^{th} neighbor
 
-        // Get distance to the kth neighbor
-        final DoubleWritable distance_to_kth_neighbor = new DoubleWritable();
-        FileStatus[] results = outFs.listStatus(outputPath);
-        for (FileStatus result_file : results) {
-          if (result_file.getLen() > 0 && result_file.getPath().getName().startsWith("part-")) {
-            in = outFs.open(result_file.getPath());
-            LineReader reader = new LineReader(in);
-            Text first_line = new Text();
-            reader.readLine(first_line);
-            t.fromText(first_line);
-            distance_to_kth_neighbor.set(t.distance);
-            in.close();
+          // Get distance to the kth neighbor
+          final DoubleWritable distance_to_kth_neighbor = new DoubleWritable();
+          if (outputPath == null) {
+            for (TextWithDistance result : streamedResults)
+              if (result.distance > distance_to_kth_neighbor.get())
+                distance_to_kth_neighbor.set(result.distance);
+          } else {
+            FileStatus[] results = outFs.listStatus(outputPath);
+            for (FileStatus result_file : results) {
+              if (result_file.getLen() > 0 && result_file.getPath().getName().startsWith("part-")) {
+                FSDataInputStream in = outFs.open(result_file.getPath());
+                LineReader reader = new LineReader(in);
+                Text first_line = new Text();
+                reader.readLine(first_line);
+                t.fromText(first_line);
+                distance_to_kth_neighbor.set(t.distance);
+                in.close();
+              }
+            }
           }
+          range_for_next_iteration = new Circle(queryPoint.x, queryPoint.y,
+              distance_to_kth_neighbor.get());
+          LOG.info("Expanding to kth neighbor: "+distance_to_kth_neighbor);
         }
-        range_for_next_iteration = new Circle(queryPoint.x, queryPoint.y,
-            distance_to_kth_neighbor.get());
-        LOG.info("Expanding to kth neighbor: "+distance_to_kth_neighbor);
-      }
       
-      // Calculate the number of blocks to be processed to check the
-      // terminating condition;
-      additional_blocks_2b_processed = 0;
-      for (BlockLocation l : fileBlockLocations) {
-        if (l.getCellInfo() != null &&
-            l.getCellInfo().isIntersected(range_for_next_iteration) &&
-            !(l.getCellInfo().isIntersected(range_for_this_iteration))) {
-          additional_blocks_2b_processed++;
+        // Calculate the number of blocks to be processed to check the
+        // terminating condition;
+        additional_blocks_2b_processed = 0;
+        for (BlockLocation l : fileBlockLocations) {
+          if (l.getCellInfo() != null &&
+              l.getCellInfo().isIntersected(range_for_next_iteration) &&
+              !(l.getCellInfo().isIntersected(range_for_this_iteration))) {
+            additional_blocks_2b_processed++;
+          }
         }
-      }
-      range_for_this_iteration = range_for_next_iteration;
-    } while (additional_blocks_2b_processed > 0);
+        range_for_this_iteration = range_for_next_iteration;
+      } while (additional_blocks_2b_processed > 0);
+    } finally {
+      if (resultServer != null)
+        resultServer.close();
+    }
     
     // Read job result
-    if (output != null) {
+    if (output != null && outputPath == null) {
+      for (TextWithDistance result : streamedResults) {
+        shape.fromText(result.text);
+        output.collect(result.distance, shape);
+      }
+    } else if (output != null) {
       FileStatus[] results = outFs.listStatus(outputPath);
       for (FileStatus result_file : results) {
         if (result_file.getLen() > 0 && result_file.getPath().getName().startsWith("part-")) {
@@ -454,19 +502,179 @@ public class KNN {
         }
       }
     }
-
-    // If output file is not set by user, delete it
-    if (userOutputPath == null)
-      outFs.delete(outputPath, true);
     TotalIterations.addAndGet(iterations);
     
     return resultCount;
   }
   
+  /**
+   * Estimates the radius of a circle around the query point that contains
+   * at least k records using statistics of the blocks of the file. The
+   * range is doubled until the records estimated in it reach k.
+   * @param blockStats
+   * @param queryPoint
+   * @param k
+   * @return - the estimated radius or zero if it cannot be estimated
+   */
+  static double estimateKNNRadius(BlockStatistics[] blockStats,
+      Point queryPoint, int k) {
+    long totalRecords = 0;
+    for (BlockStatistics stats : blockStats)
+      totalRecords += stats.getRecordCount();
+    if (totalRecords < k)
+      return 0;
+    Rectangle range = new Rectangle();
+    for (double halfSide = 1; halfSide < Long.MAX_VALUE / 4; halfSide *= 2) {
+      range.set((long) (queryPoint.x - halfSide), (long) (queryPoint.y - halfSide),
+          (long) (2 * halfSide), (long) (2 * halfSide));
+      double estimate = 0;
+      for (BlockStatistics stats : blockStats)
+        estimate += stats.estimateRecordCount(range);
+      if (estimate >= k) {
+        // The circle that encloses the square
+        return halfSide * Math.sqrt(2);
+      }
+    }
+    return 0;
+  }
+  
+  /**
+   * Performs a kNN query on a globally indexed file without running a
+   * MapReduce job. Blocks are read in the order of their minimum distance
+   * to the query point as found from the global index. Once k results are
+   * found, the remaining blocks that are farther than the kth neighbor are
+   * pruned without reading them. The MBR of the data in each block is used
+   * instead of its cell if block statistics are available.
+   * @param fs
+   * @param file
+   * @param queryPoint
+   * @param k
+   * @param shape
+   * @param output - receives the results ordered by distance. Might be null
+   * @return - number of results or -1 if the file is not globally indexed
+   * @throws IOException
+   */
+  public static <S extends Shape> long knnGlobalIndex(FileSystem fs,
+      Path file, final Point queryPoint, int k, final S shape,
+      OutputCollector<Double, ? super S> output) throws IOException {
+    FileStatus fileStatus = fs.getFileStatus(file);
+    SimpleSpatialIndex<BlockLocation> gIndex = fs.getGlobalIndex(fileStatus);
+    // Compute the minimum distance of each block to the query point
+    Vector<BlockLocation> blocks = new Vector<BlockLocation>();
+    final Map<BlockLocation, Double> minDistances =
+        new HashMap<BlockLocation, Double>();
+    for (BlockLocation block : gIndex) {
+      if (block.getCellInfo() == null)
+        return -1;
+      Rectangle blockMBR = block.getCellInfo();
+      if (block.getStatistics() != null) {
+        blockMBR = block.getStatistics().getMBR();
+        if (blockMBR == null)
+          continue; // An empty block
+      }
+      blocks.add(block);
+      minDistances.put(block, getMinDistance(blockMBR, queryPoint.x, queryPoint.y));
+    }
+    Collections.sort(blocks, new Comparator<BlockLocation>() {
+      @Override
+      public int compare(BlockLocation b1, BlockLocation b2) {
+        return minDistances.get(b1).compareTo(minDistances.get(b2));
+      }
+    });
+    
+    final boolean rtreeBlocks;
+    long marker = SpatialSite.readBlockMarker(fs, file);
+    rtreeBlocks = marker == SpatialSite.RTreeFileMarker ||
+        marker == SpatialSite.RTreeBinaryFileMarker;
+    
+    final KNNObjects knn = new KNNObjects(k);
+    Configuration conf = fs.getConf();
+    CellInfo key = new CellInfo();
+    int blocksRead = 0;
+    for (BlockLocation block : blocks) {
+      // Blocks are sorted by distance. All remaining blocks are farther.
+      if (k == 0 || (knn.size() == k &&
+          minDistances.get(block) > knn.top().distance))
+        break;
+      blocksRead++;
+      FileSplit split = new FileSplit(file, block.getOffset(),
+          block.getLength(), new String[0]);
+      if (rtreeBlocks) {
+        RTreeRecordReader<S> reader = new RTreeRecordReader<S>(conf, split);
+        RTree<S> rtree = new RTree<S>();
+        rtree.setStockObject(shape);
+        while (reader.next(key, rtree)) {
+          rtree.knn(queryPoint.x, queryPoint.y, k, new ResultCollector2<S, Long>() {
+            @Override
+            public void collect(S s, Long distance) {
+              insertNeighbor(knn, s, distance);
+            }
+          });
+        }
+        reader.close();
+      } else {
+        ShapeRecordReader<S> reader = new ShapeRecordReader<S>(conf, split);
+        while (reader.next(key, shape))
+          insertNeighbor(knn, shape, shape.distanceTo(queryPoint.x, queryPoint.y));
+        reader.close();
+      }
+    }
+    LOG.info("Read "+blocksRead+" out of "+blocks.size()+" blocks");
+    
+    // The queue returns the farthest neighbor first
+    TextWithDistance[] results = new TextWithDistance[knn.size()];
+    for (int i = results.length - 1; i >= 0; i--)
+      results[i] = knn.pop();
+    if (output != null) {
+      for (TextWithDistance result : results) {
+        shape.fromText(result.text);
+        output.collect(result.distance, shape);
+      }
+    }
+    return results.length;
+  }
+  
+  /**
+   * Inserts a shape in the given list of nearest neighbors if it is closer
+   * than the current kth neighbor
+   * @param knn
+   * @param shape
+   * @param distance
+   */
+  static void insertNeighbor(KNNObjects knn, Shape shape,
+      double distance) {
+    if (knn.size() == knn.capacity && distance >= knn.top().distance)
+      return;
+    TextWithDistance neighbor = new TextWithDistance();
+    neighbor.distance = distance;
+    shape.toText(neighbor.text);
+    knn.insert(neighbor);
+  }
+  
+  /**
+   * Returns the minimum distance between the given point and any point in
+   * the given rectangle
+   * @param r
+   * @param x
+   * @param y
+   * @return
+   */
+  static double getMinDistance(Rectangle r, long x, long y) {
+    double dx = x < r.getX1() ? r.getX1() - x : (x > r.getX2() ? x - r.getX2() : 0);
+    double dy = y < r.getY1() ? r.getY1() - y : (y > r.getY2() ? y - r.getY2() : 0);
+    return Math.sqrt(dx * dx + dy * dy);
+  }
+  
   public static<S extends Shape> long knnLocal(FileSystem fs, Path file,
       Point queryPoint, int k, S shape,
       OutputCollector<Double, Shape> output)
       throws IOException {
+    // Use the global index to read only the blocks closest to the query
+    long indexedResultCount =
+        knnGlobalIndex(fs, file, queryPoint, k, shape, output);
+    if (indexedResultCount >= 0)
+      return indexedResultCount;
+    
     long file_size = fs.getFileStatus(file).getLen();
     ShapeRecordReader<S> shapeReader =
         new ShapeRecordReader<S>(fs.open(file), 0, file_size);
@@ -539,6 +747,7 @@ public class KNN {
       LOG.warn("k = 0");
     }
     final boolean overwrite = cla.isOverwrite();
+    final boolean local = cla.isLocal();
     
     if (paths.length == 1 || (queryPoint == null && count == 0)) {
       printUsage();
@@ -550,7 +759,8 @@ public class KNN {
     
     if (queryPoint != null) {
       // User provided a query, use it
-      long resultCount = 
+      long resultCount = local ?
+          knnLocal(fs, inputFile, queryPoint, k, shape, null) :
           knnMapReduce(fs, inputFile, outputPath, queryPoint, k, shape, null, overwrite);
       System.out.println("Result size: "+resultCount);
     } else {
@@ -593,8 +803,10 @@ public class KNN {
             try {
               Point query_point =
                   query_points.elementAt(threads.indexOf(this));
-              long result_count = knnMapReduce(fs, inputFile, outputPath,
-                  query_point, k, shape, null, overwrite);
+              long result_count = local ?
+                  knnLocal(fs, inputFile, query_point, k, shape, null) :
+                  knnMapReduce(fs, inputFile, outputPath, query_point, k,
+                      shape, null, overwrite);
               results.add(result_count);
             } catch (IOException e) {
               e.printStackTrace();
@@ -0,0 +1,499 @@
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Vector;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.ClusterStatus;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.Counters.Counter;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.Task;
+import org.apache.hadoop.mapred.TextInputFormat;
+import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.mapred.spatial.RTreeRecordReader;
+import org.apache.hadoop.mapred.spatial.ShapeRecordReader;
+import org.apache.hadoop.spatial.CellIndex;
+import org.apache.hadoop.spatial.CellInfo;
+import org.apache.hadoop.spatial.Point;
+import org.apache.hadoop.spatial.RTree;
+import org.apache.hadoop.spatial.Rectangle;
+import org.apache.hadoop.spatial.ResultCollector2;
+import org.apache.hadoop.spatial.Shape;
+import org.apache.hadoop.spatial.SimpleSpatialIndex;
+import org.apache.hadoop.spatial.SpatialSite;
+
+import edu.umn.cs.spatialHadoop.CommandLineArguments;
+import edu.umn.cs.spatialHadoop.operations.KNN.KNNObjects;
+import edu.umn.cs.spatialHadoop.operations.KNN.TextWithDistance;
+
+/**
+ * Performs a k nearest neighbor (kNN) join between a file of query points
+ * and a globally indexed file. For each query point, the k nearest shapes
+ * in the indexed file are found in one MapReduce job.
+ * Query points are partitioned using the cells of the global index of the
+ * indexed file where each point goes to the cell that contains it. Each
+ * reduce call finds the kNN of all points in one cell by searching the
+ * blocks of that cell. Only points with a kth neighbor that is farther than
+ * the boundary of their cell are refined by searching neighboring blocks
+ * that are closer than their kth neighbor.
+ * @author eldawy
+ *
+ */
+public class KNNJoin {
+  /**Logger for KNNJoin*/
+  private static final Log LOG = LogFactory.getLog(KNNJoin.class);
+
+  /**Configuration line name for the path of the indexed file*/
+  public static final String DATA_FILE =
+      "edu.umn.cs.spatialHadoop.operations.KNNJoin.DataFile";
+
+  /**Configuration line name for the number of neighbors*/
+  public static final String K = "edu.umn.cs.spatialHadoop.operations.KNNJoin.K";
+
+  /**
+   * Returns the distinct cells of the blocks of the given file or
+   * <code>null</code> if the file is not globally indexed.
+   * @param fs
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  static CellInfo[] getCells(FileSystem fs, Path file) throws IOException {
+    FileStatus fileStatus = fs.getFileStatus(file);
+    BlockLocation[] blocks =
+        fs.getFileBlockLocations(fileStatus, 0, fileStatus.getLen());
+    Map<Long, CellInfo> cells = new HashMap<Long, CellInfo>();
+    for (BlockLocation block : blocks) {
+      if (block.getCellInfo() == null)
+        return null;
+      cells.put(block.getCellInfo().cellId, block.getCellInfo());
+    }
+    return cells.values().toArray(new CellInfo[cells.size()]);
+  }
+
+  /**
+   * Returns the minimum distance between two rectangles
+   * @param r1
+   * @param r2
+   * @return
+   */
+  static double getMinDistance(Rectangle r1, Rectangle r2) {
+    double dx = r1.getX2() < r2.getX1() ? r2.getX1() - r1.getX2() :
+      (r2.getX2() < r1.getX1() ? r1.getX1() - r2.getX2() : 0);
+    double dy = r1.getY2() < r2.getY1() ? r2.getY1() - r1.getY2() :
+      (r2.getY2() < r1.getY1() ? r1.getY1() - r2.getY2() : 0);
+    return Math.sqrt(dx * dx + dy * dy);
+  }
+
+  /**
+   * Assigns each query point to the cell of the indexed file that contains
+   * it. Points outside all cells are assigned to the nearest cell.
+   * @author eldawy
+   *
+   */
+  public static class KNNJoinMap extends MapReduceBase implements
+      Mapper<LongWritable, Text, LongWritable, Text> {
+    /**All cells of the indexed file*/
+    private CellInfo[] cells;
+
+    /**An index over the cells to find the cell of each point*/
+    private CellIndex cellIndex;
+
+    /**Receives the IDs of cells that contain a point*/
+    private int[] cellIds;
+
+    private final Point point = new Point();
+    private final Rectangle pointRect = new Rectangle();
+    private final Text tempLine = new Text();
+    private final LongWritable cellId = new LongWritable();
+
+    @Override
+    public void configure(JobConf job) {
+      super.configure(job);
+      try {
+        Path dataFile = new Path(job.get(DATA_FILE));
+        cells = getCells(dataFile.getFileSystem(job), dataFile);
+        cellIndex = new CellIndex(cells);
+        cellIds = new int[cellIndex.getCellCount()];
+      } catch (IOException e) {
+        throw new RuntimeException("Cannot read the global index", e);
+      }
+    }
+
+    @Override
+    public void map(LongWritable offset, Text line,
+        OutputCollector<LongWritable, Text> output, Reporter reporter)
+        throws IOException {
+      if (line.getLength() == 0)
+        return;
+      // Parse a copy of the line as parsing consumes it
+      tempLine.set(line);
+      point.fromText(tempLine);
+      // A unit square makes cells that start at the point contain it
+      pointRect.set(point.x, point.y, 1, 1);
+      if (cellIndex.search(pointRect, cellIds) > 0) {
+        cellId.set(cellIds[0]);
+      } else {
+        double minDistance = Double.MAX_VALUE;
+        for (CellInfo cell : cells) {
+          double distance = KNN.getMinDistance(cell, point.x, point.y);
+          if (distance < minDistance) {
+            minDistance = distance;
+            cellId.set(cell.cellId);
+          }
+        }
+      }
+      output.collect(cellId, line);
+    }
+  }
+
+  /**
+   * Finds the kNN of all query points assigned to one cell.
+   * @author eldawy
+   *
+   */
+  public static class KNNJoinReduce<S extends Shape> extends MapReduceBase
+      implements Reducer<LongWritable, Text, Text, TextWithDistance> {
+    /**The configuration of the job used to open readers*/
+    private JobConf job;
+
+    /**The indexed file*/
+    private Path dataFile;
+
+    /**All blocks of the indexed file*/
+    private Vector<BlockLocation> blocks;
+
+    /**Whether blocks of the indexed file are RTrees or not*/
+    private boolean rtreeBlocks;
+
+    /**Used to parse shapes of the indexed file*/
+    private S stockShape;
+
+    private int k;
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void configure(JobConf job) {
+      super.configure(job);
+      this.job = job;
+      k = job.getInt(K, 1);
+      stockShape = (S) SpatialSite.createStockShape(job);
+      try {
+        dataFile = new Path(job.get(DATA_FILE));
+        FileSystem fs = dataFile.getFileSystem(job);
+        SimpleSpatialIndex<BlockLocation> gIndex =
+            fs.getGlobalIndex(fs.getFileStatus(dataFile));
+        blocks = new Vector<BlockLocation>();
+        for (BlockLocation block : gIndex)
+          blocks.add(block);
+        long marker = SpatialSite.readBlockMarker(fs, dataFile);
+        rtreeBlocks = marker == SpatialSite.RTreeFileMarker ||
+            marker == SpatialSite.RTreeBinaryFileMarker;
+      } catch (IOException e) {
+        throw new RuntimeException("Cannot read the global index", e);
+      }
+    }
+
+    @Override
+    public void reduce(LongWritable cellId, Iterator<Text> values,
+        OutputCollector<Text, TextWithDistance> output, Reporter reporter)
+        throws IOException {
+      // Blocks of this cell and all other blocks
+      Vector<BlockLocation> cellBlocks = new Vector<BlockLocation>();
+      Vector<BlockLocation> otherBlocks = new Vector<BlockLocation>();
+      for (BlockLocation block : blocks) {
+        if (block.getCellInfo().cellId == cellId.get())
+          cellBlocks.add(block);
+        else
+          otherBlocks.add(block);
+      }
+      CellInfo cell = cellBlocks.firstElement().getCellInfo();
+
+      Vector<Text> pointTexts = new Vector<Text>();
+      Vector<Point> points = new Vector<Point>();
+      // Covers the cell and all points including those outside the cell
+      Rectangle pointsMBR = cell.getMBR();
+      while (values.hasNext()) {
+        Text pointText = new Text(values.next());
+        Point point = new Point();
+        point.fromText(new Text(pointText));
+        pointTexts.add(pointText);
+        points.add(point);
+        pointsMBR = pointsMBR.union(point);
+      }
+      KNNObjects[] knns = new KNNObjects[points.size()];
+      for (int i = 0; i < knns.length; i++)
+        knns[i] = new KNNObjects(k);
+
+      // Candidate neighbors from the cell itself
+      Vector<Integer> allPoints = new Vector<Integer>();
+      for (int i = 0; i < points.size(); i++)
+        allPoints.add(i);
+      for (BlockLocation block : cellBlocks)
+        searchBlock(block, points, knns, allPoints);
+
+      // Points whose kth neighbor might be in another cell
+      Vector<Integer> pending = new Vector<Integer>();
+      for (int i = 0; i < points.size(); i++) {
+        Point p = points.get(i);
+        double distanceToBoundary = Math.min(
+            Math.min(p.x - cell.getX1(), cell.getX2() - p.x),
+            Math.min(p.y - cell.getY1(), cell.getY2() - p.y));
+        if (knns[i].size() < k || knns[i].top().distance > distanceToBoundary)
+          pending.add(i);
+      }
+      LOG.info(pending.size()+" out of "+points.size()+
+          " points need refinement in "+cell);
+
+      if (!pending.isEmpty()) {
+        // Visit other blocks in the order of their distance to the points
+        final Map<BlockLocation, Double> distances =
+            new HashMap<BlockLocation, Double>();
+        for (BlockLocation block : otherBlocks)
+          distances.put(block, getMinDistance(pointsMBR, getDataMBR(block)));
+        Collections.sort(otherBlocks, new Comparator<BlockLocation>() {
+          @Override
+          public int compare(BlockLocation b1, BlockLocation b2) {
+            return distances.get(b1).compareTo(distances.get(b2));
+          }
+        });
+        Vector<Integer> selected = new Vector<Integer>();
+        for (BlockLocation block : otherBlocks) {
+          Rectangle blockMBR = getDataMBR(block);
+          double maxKthDistance = 0;
+          selected.clear();
+          for (int i : pending) {
+            double kthDistance = knns[i].size() < k ? Double.MAX_VALUE :
+              knns[i].top().distance;
+            maxKthDistance = Math.max(maxKthDistance, kthDistance);
+            Point p = points.get(i);
+            if (KNN.getMinDistance(blockMBR, p.x, p.y) < kthDistance)
+              selected.add(i);
+          }
+          // All remaining blocks are farther than the kth neighbor of all
+          // pending points
+          if (distances.get(block) >= maxKthDistance)
+            break;
+          if (!selected.isEmpty()) {
+            searchBlock(block, points, knns, selected);
+            reporter.progress();
+          }
+        }
+      }
+
+      // Write the results of each point ordered by distance
+      for (int i = 0; i < points.size(); i++) {
+        TextWithDistance[] results = new TextWithDistance[knns[i].size()];
+        for (int j = results.length - 1; j >= 0; j--)
+          results[j] = knns[i].pop();
+        for (TextWithDistance result : results)
+          output.collect(pointTexts.get(i), result);
+      }
+    }
+
+    /**
+     * Returns the MBR of the data in the given block if statistics are
+     * available or its cell otherwise
+     */
+    private Rectangle getDataMBR(BlockLocation block) {
+      if (block.getStatistics() != null) {
+        Rectangle dataMBR = block.getStatistics().getMBR();
+        if (dataMBR != null)
+          return dataMBR;
+      }
+      return block.getCellInfo();
+    }
+
+    /**
+     * Searches the given block for the kNN of some points
+     * @param block
+     * @param points - all points of the cell
+     * @param knns - current kNN of all points
+     * @param selected - indexes of points to search for
+     * @throws IOException
+     */
+    private void searchBlock(BlockLocation block, Vector<Point> points,
+        final KNNObjects[] knns, Vector<Integer> selected) throws IOException {
+      FileSplit split = new FileSplit(dataFile, block.getOffset(),
+          block.getLength(), new String[0]);
+      CellInfo key = new CellInfo();
+      Vector<RTree<S>> rtrees = new Vector<RTree<S>>();
+      if (rtreeBlocks) {
+        RTreeRecordReader<S> reader = new RTreeRecordReader<S>(job, split);
+        RTree<S> rtree = reader.createValue();
+        while (reader.next(key, rtree)) {
+          rtrees.add(rtree);
+          rtree = reader.createValue();
+        }
+        reader.close();
+      } else {
+        RTree<S> rtree = buildRTree(split);
+        if (rtree != null)
+          rtrees.add(rtree);
+      }
+      for (RTree<S> rtree : rtrees) {
+        for (final int i : selected) {
+          Point p = points.get(i);
+          rtree.knn(p.x, p.y, k, new ResultCollector2<S, Long>() {
+            @Override
+            public void collect(S shape, Long distance) {
+              KNN.insertNeighbor(knns[i], shape, distance);
+            }
+          });
+        }
+      }
+    }
+
+    /**
+     * Builds an RTree in memory over the shapes of a block that is not
+     * locally indexed
+     * @param split
+     * @return - the tree or <code>null</code> if the block is empty
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    private RTree<S> buildRTree(FileSplit split) throws IOException {
+      ShapeRecordReader<S> reader = new ShapeRecordReader<S>(job, split);
+      CellInfo key = new CellInfo();
+      ByteArrayOutputStream elements = new ByteArrayOutputStream();
+      Text text = new Text();
+      while (reader.next(key, stockShape)) {
+        text.clear();
+        stockShape.toText(text);
+        elements.write(text.getBytes(), 0, text.getLength());
+        elements.write('\n');
+      }
+      reader.close();
+      if (elements.size() == 0)
+        return null;
+      byte[] data = elements.toByteArray();
+      RTree<S> builder = new RTree<S>();
+      builder.setStockObject((S) stockShape.clone());
+      ByteArrayOutputStream tree = new ByteArrayOutputStream();
+      builder.bulkLoadWrite(data, 0, data.length,
+          Math.max(data.length / 10, 64 * 1024), new DataOutputStream(tree),
+          true);
+      RTree<S> rtree = new RTree<S>();
+      rtree.setStockObject((S) stockShape.clone());
+      rtree.readFields(new DataInputStream(
+          new ByteArrayInputStream(tree.toByteArray())));
+      return rtree;
+    }
+  }
+
+  /**
+   * Finds the k nearest neighbors in a globally indexed file of each point
+   * in a file of query points.
+   * @param fs
+   * @param dataFile - the globally indexed file
+   * @param queryFile - a file of points
+   * @param outputPath - receives lines of query points and their neighbors
+   * @param k
+   * @param shape - the shape of the indexed file
+   * @param overwrite
+   * @return - total number of neighbors found for all points
+   * @throws IOException
+   */
+  public static <S extends Shape> long knnJoinMapReduce(FileSystem fs,
+      Path dataFile, Path queryFile, Path outputPath, int k, S shape,
+      boolean overwrite) throws IOException {
+    if (getCells(fs, dataFile) == null)
+      throw new RuntimeException("File "+dataFile+" is not globally indexed");
+    JobConf job = new JobConf(KNNJoin.class);
+    job.setJobName("KNNJoin");
+
+    FileSystem outFs = outputPath.getFileSystem(job);
+    if (outFs.exists(outputPath)) {
+      if (overwrite)
+        outFs.delete(outputPath, true);
+      else
+        throw new RuntimeException("Output path already exists and -overwrite flag is not set");
+    }
+
+    ClusterStatus clusterStatus = new JobClient(job).getClusterStatus();
+    job.setMapperClass(KNNJoinMap.class);
+    job.setMapOutputKeyClass(LongWritable.class);
+    job.setMapOutputValueClass(Text.class);
+    job.setReducerClass(KNNJoinReduce.class);
+    job.setNumReduceTasks(Math.max(1, clusterStatus.getMaxReduceTasks()));
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(TextWithDistance.class);
+
+    job.set(DATA_FILE, fs.makeQualified(dataFile).toString());
+    job.setInt(K, k);
+    job.set(SpatialSite.SHAPE_CLASS, shape.getClass().getName());
+
+    job.setInputFormat(TextInputFormat.class);
+    TextInputFormat.setInputPaths(job, queryFile);
+    job.setOutputFormat(TextOutputFormat.class);
+    TextOutputFormat.setOutputPath(job, outputPath);
+
+    RunningJob runningJob = JobClient.runJob(job);
+    Counters counters = runningJob.getCounters();
+    Counter outputRecordCounter =
+        counters.findCounter(Task.Counter.REDUCE_OUTPUT_RECORDS);
+    return outputRecordCounter.getValue();
+  }
+
+  private static void printUsage() {
+    System.out.println("Finds the k nearest neighbors of each point in a file of query points");
+    System.out.println("Parameters: (* marks required parameters)");
+    System.out.println("<indexed file> - (*) Path to the globally indexed file");
+    System.out.println("<query file> - (*) Path to the file of query points");
+    System.out.println("<output file> - (*) Path to output file");
+    System.out.println("k:<k> - (*) Number of neighbors of each point");
+    System.out.println("shape:<s> - Type of shapes in the indexed file");
+    System.out.println("-overwrite - Overwrite output file without notice");
+  }
+
+  public static void main(String[] args) throws IOException {
+    CommandLineArguments cla = new CommandLineArguments(args);
+    Path[] paths = cla.getPaths();
+    if (paths.length < 3) {
+      printUsage();
+      throw new RuntimeException("Illegal arguments");
+    }
+    JobConf conf = new JobConf(KNNJoin.class);
+    Path dataFile = paths[0];
+    Path queryFile = paths[1];
+    FileSystem fs = dataFile.getFileSystem(conf);
+    if (!fs.exists(dataFile) || !queryFile.getFileSystem(conf).exists(queryFile)) {
+      printUsage();
+      throw new RuntimeException("Input file does not exist");
+    }
+    int k = cla.getK();
+    Shape shape = cla.getShape(true);
+
+    long t1 = System.currentTimeMillis();
+    long resultCount = knnJoinMapReduce(fs, dataFile, queryFile, paths[2], k,
+        shape, cla.isOverwrite());
+    long t2 = System.currentTimeMillis();
+    System.out.println("Total time: "+(t2-t1)+" millis");
+    System.out.println("Result size: "+resultCount);
+  }
+}
@@ -19,9 +19,14 @@ public class Main {
       
       pgd.addClass("rangequery", RangeQuery.class,
           "Finds all objects in the query range given by a rectangle");
+      pgd.addClass("multirangequery", MultiRangeQuery.class,
+          "Answers a batch of range queries given in a file in one job");
 
       pgd.addClass("knn", KNN.class,
           "Finds the k nearest neighbor in a file to a point");
+      pgd.addClass("knnjoin", KNNJoin.class,
+          "Finds the k nearest neighbors in an indexed file to each point " +
+          "in a file of query points");
       pgd.addClass(
           "dj",
           DistributedJoin.class,
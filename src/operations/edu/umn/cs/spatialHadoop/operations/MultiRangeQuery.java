@@ -0,0 +1,394 @@
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.IOException;
+import java.util.Vector;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.ClusterStatus;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.Counters.Counter;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.Task;
+import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.mapred.lib.NullOutputFormat;
+import org.apache.hadoop.mapred.spatial.BlockFilter;
+import org.apache.hadoop.mapred.spatial.MultiRangeFilter;
+import org.apache.hadoop.mapred.spatial.RTreeInputFormat;
+import org.apache.hadoop.mapred.spatial.RangeFilter;
+import org.apache.hadoop.mapred.spatial.ResultStreamServer;
+import org.apache.hadoop.mapred.spatial.ShapeInputFormat;
+import org.apache.hadoop.spatial.CellIndex;
+import org.apache.hadoop.spatial.CellInfo;
+import org.apache.hadoop.spatial.RTree;
+import org.apache.hadoop.spatial.Rectangle;
+import org.apache.hadoop.spatial.ResultCollector;
+import org.apache.hadoop.spatial.ResultCollector2;
+import org.apache.hadoop.spatial.Shape;
+import org.apache.hadoop.spatial.SpatialSite;
+import org.apache.hadoop.util.LineReader;
+
+import edu.umn.cs.spatialHadoop.CommandLineArguments;
+
+/**
+ * Answers a batch of range queries over the same file in one job. Blocks
+ * selected by any query are scanned once and each record is matched against
+ * all queries using an index over the queries. Each result is tagged with
+ * the ID of its query which is the index of the query in the batch.
+ * @author eldawy
+ *
+ */
+public class MultiRangeQuery {
+  /**Logger for MultiRangeQuery*/
+  private static final Log LOG = LogFactory.getLog(MultiRangeQuery.class);
+
+  /**
+   * The map function used for a batch of range queries
+   * @author eldawy
+   *
+   * @param <T>
+   */
+  public static class MultiRangeQueryMap<T extends Shape> extends MapReduceBase {
+    /**All queries of the batch*/
+    private Shape[] queryShapes;
+
+    /**MBRs of the queries*/
+    private Rectangle[] queryMBRs;
+
+    /**An index over the MBRs of the queries to find queries of a record*/
+    private CellIndex queryIndex;
+
+    /**IDs of queries found by the last search of the index*/
+    private int[] overlappingQueries;
+
+    /**MBR of the current shape. Reused to avoid creating objects*/
+    private final Rectangle shapeMBR = new Rectangle();
+
+    /**ID of the query of the current result*/
+    private final IntWritable queryId = new IntWritable();
+
+    @Override
+    public void configure(JobConf job) {
+      super.configure(job);
+      queryShapes = MultiRangeFilter.getQueryRanges(job);
+      queryMBRs = new Rectangle[queryShapes.length];
+      CellInfo[] queryCells = new CellInfo[queryShapes.length];
+      for (int i = 0; i < queryShapes.length; i++) {
+        queryMBRs[i] = queryShapes[i].getMBR();
+        queryCells[i] = new CellInfo(i, queryMBRs[i]);
+      }
+      queryIndex = new CellIndex(queryCells);
+      overlappingQueries = new int[queryShapes.length];
+    }
+
+    /**
+     * Map function for non-indexed blocks
+     */
+    public void map(CellInfo cellInfo, T shape,
+        OutputCollector<IntWritable, T> output, Reporter reporter)
+            throws IOException {
+      shape.getMBR(shapeMBR);
+      int count = queryIndex.search(shapeMBR, overlappingQueries);
+      for (int i = 0; i < count; i++) {
+        int query = overlappingQueries[i];
+        if (shape.isIntersected(queryShapes[query])) {
+          boolean report_result = false;
+          if (cellInfo.cellId == -1) {
+            // A heap block, report right away
+            report_result = true;
+          } else {
+            // Check for duplicate avoidance using reference point technique
+            report_result = cellInfo.containsReferencePoint(queryMBRs[query],
+                shapeMBR);
+          }
+          if (report_result) {
+            queryId.set(query);
+            output.collect(queryId, shape);
+          }
+        }
+      }
+    }
+
+    /**
+     * Map function for RTree indexed blocks. The RTree is searched once for
+     * each query that overlaps the cell of the block.
+     */
+    public void map(final CellInfo cellInfo, RTree<T> shapes,
+        final OutputCollector<IntWritable, T> output, Reporter reporter) {
+      int count;
+      if (cellInfo.cellId == -1) {
+        // A heap block, all queries might overlap it
+        count = queryShapes.length;
+        for (int i = 0; i < count; i++)
+          overlappingQueries[i] = i;
+      } else {
+        count = queryIndex.search(cellInfo, overlappingQueries);
+      }
+      for (int i = 0; i < count; i++) {
+        final int query = overlappingQueries[i];
+        shapes.search(queryMBRs[query], new ResultCollector<T>() {
+          @Override
+          public void collect(T shape) {
+            try {
+              boolean report_result = false;
+              if (cellInfo.cellId == -1) {
+                // A heap block, report right away
+                report_result = true;
+              } else {
+                // Check for duplicate avoidance using reference point technique
+                report_result = cellInfo.containsReferencePoint(
+                    queryMBRs[query], shape.getMBR(shapeMBR));
+              }
+              if (report_result) {
+                queryId.set(query);
+                output.collect(queryId, shape);
+              }
+            } catch (IOException e) {
+              e.printStackTrace();
+            }
+          }
+        });
+      }
+    }
+  }
+
+  /** Mapper for non-indexed blocks */
+  public static class Map1<T extends Shape> extends MultiRangeQueryMap<T>
+      implements Mapper<CellInfo, T, IntWritable, T> { }
+
+  /** Mapper for RTree indexed blocks */
+  public static class Map2<T extends Shape> extends MultiRangeQueryMap<T>
+      implements Mapper<CellInfo, RTree<T>, IntWritable, T> { }
+
+  /**
+   * Returns the MBR of all the given shapes
+   * @param shapes
+   * @return
+   */
+  private static Rectangle getMBR(Shape[] shapes) {
+    long x1 = Long.MAX_VALUE, y1 = Long.MAX_VALUE;
+    long x2 = Long.MIN_VALUE, y2 = Long.MIN_VALUE;
+    for (Shape shape : shapes) {
+      Rectangle mbr = shape.getMBR();
+      x1 = Math.min(x1, mbr.getX1());
+      y1 = Math.min(y1, mbr.getY1());
+      x2 = Math.max(x2, mbr.getX2());
+      y2 = Math.max(y2, mbr.getY2());
+    }
+    return new Rectangle(x1, y1, x2 - x1, y2 - y1);
+  }
+
+  /**
+   * Performs a batch of range queries using one MapReduce job
+   * @param fs
+   * @param inputFile
+   * @param userOutputPath - receives lines of query IDs and results. If
+   *  <code>null</code>, results are not written to files.
+   * @param queryShapes - all queries of the batch. They must all be of the
+   *  same class.
+   * @param shape
+   * @param output - receives the ID of the query and the result. Might be
+   *  <code>null</code>
+   * @param overwrite
+   * @return - total number of results of all queries
+   * @throws IOException
+   */
+  public static long multiRangeQueryMapReduce(FileSystem fs, Path inputFile,
+      Path userOutputPath, Shape[] queryShapes, final Shape shape,
+      final ResultCollector2<Integer, Shape> output, boolean overwrite)
+      throws IOException {
+    JobConf job = new JobConf(MultiRangeQuery.class);
+
+    FileSystem outFs = inputFile.getFileSystem(job);
+    if (userOutputPath != null && outFs.exists(userOutputPath)) {
+      if (overwrite) {
+        outFs.delete(userOutputPath, true);
+      } else {
+        throw new RuntimeException("Output path already exists and -overwrite flag is not set");
+      }
+    }
+
+    job.setJobName("MultiRangeQuery");
+    ClusterStatus clusterStatus = new JobClient(job).getClusterStatus();
+    job.setNumMapTasks(clusterStatus.getMaxMapTasks() * 5);
+    job.setBoolean(SpatialSite.AutoCombineSplits, false);
+    job.setNumReduceTasks(0);
+    // Select the blocks of all queries
+    job.setClass(SpatialSite.FilterClass, MultiRangeFilter.class,
+        BlockFilter.class);
+    MultiRangeFilter.setQueryRanges(job, queryShapes);
+    // Let record readers skip records outside the MBR of all queries
+    RangeFilter.setQueryRange(job, getMBR(queryShapes));
+    RangeFilter.setPushDown(job, true);
+
+    job.setMapOutputKeyClass(IntWritable.class);
+    job.setMapOutputValueClass(shape.getClass());
+    long marker = SpatialSite.readBlockMarker(fs, inputFile);
+    if (marker == SpatialSite.RTreeFileMarker ||
+        marker == SpatialSite.RTreeBinaryFileMarker) {
+      LOG.info("Searching an RTree indexed file");
+      job.setMapperClass(Map2.class);
+      job.setInputFormat(RTreeInputFormat.class);
+    } else {
+      LOG.info("Searching a non local-indexed file");
+      job.setMapperClass(Map1.class);
+      job.setInputFormat(ShapeInputFormat.class);
+    }
+
+    // Set shape class for the SpatialInputFormat
+    job.set(SpatialSite.SHAPE_CLASS, shape.getClass().getName());
+
+    ShapeInputFormat.setInputPaths(job, inputFile);
+
+    ResultStreamServer resultServer = null;
+    if (userOutputPath != null) {
+      job.setOutputFormat(TextOutputFormat.class);
+      TextOutputFormat.setOutputPath(job, userOutputPath);
+    } else if (output != null) {
+      // Stream results to the collector without writing them to files
+      resultServer = new ResultStreamServer(new ResultCollector<Text>() {
+        @Override
+        public void collect(Text line) {
+          collectLine(line, shape, output);
+        }
+      });
+      resultServer.configure(job);
+    } else {
+      // Only the number of results is needed
+      job.setOutputFormat(NullOutputFormat.class);
+    }
+
+    // Submit the job
+    RunningJob runningJob;
+    try {
+      runningJob = JobClient.runJob(job);
+    } finally {
+      if (resultServer != null)
+        resultServer.close();
+    }
+    Counters counters = runningJob.getCounters();
+    Counter outputRecordCounter = counters.findCounter(Task.Counter.MAP_OUTPUT_RECORDS);
+    final long resultCount = outputRecordCounter.getValue();
+
+    // Read job result if it was written to files
+    if (output != null && userOutputPath != null) {
+      Text line = new Text();
+      FileStatus[] results = outFs.listStatus(userOutputPath);
+      for (FileStatus fileStatus : results) {
+        if (fileStatus.getLen() > 0
+            && fileStatus.getPath().getName().startsWith("part-")) {
+          LineReader lineReader = new LineReader(outFs.open(fileStatus
+              .getPath()));
+          line.clear();
+          while (lineReader.readLine(line) > 0)
+            collectLine(line, shape, output);
+          lineReader.close();
+        }
+      }
+    }
+
+    return resultCount;
+  }
+
+  /**
+   * Parses one line of output in the form of a query ID followed by a tab
+   * and the result shape and passes it to the given collector
+   */
+  private static void collectLine(Text line, Shape shape,
+      ResultCollector2<Integer, Shape> output) {
+    byte[] bytes = line.getBytes();
+    int tab = 0;
+    while (bytes[tab] != '\t')
+      tab++;
+    int queryId = Integer.parseInt(new String(bytes, 0, tab));
+    Text shapeText = new Text();
+    shapeText.set(bytes, tab + 1, line.getLength() - tab - 1);
+    shape.fromText(shapeText);
+    output.collect(queryId, shape);
+  }
+
+  /**
+   * Reads query rectangles from a text file with one rectangle per line
+   * @param fs
+   * @param queryFile
+   * @return
+   * @throws IOException
+   */
+  private static Rectangle[] readQueries(FileSystem fs, Path queryFile)
+      throws IOException {
+    Vector<Rectangle> queries = new Vector<Rectangle>();
+    LineReader lineReader = new LineReader(fs.open(queryFile));
+    Text line = new Text();
+    while (lineReader.readLine(line) > 0) {
+      if (line.getLength() == 0)
+        continue;
+      Rectangle query = new Rectangle();
+      query.fromText(line);
+      queries.add(query);
+    }
+    lineReader.close();
+    return queries.toArray(new Rectangle[queries.size()]);
+  }
+
+  private static void printUsage() {
+    System.out.println("Performs a batch of range queries on an input file in one job");
+    System.out.println("Parameters: (* marks required parameters)");
+    System.out.println("<input file> - (*) Path to input file");
+    System.out.println("<query file> - (*) Path to a file of query rectangles <x,y,w,h> one per line");
+    System.out.println("<output file> - Path to output file");
+    System.out.println("shape:<s> - Type of shapes in the input file");
+    System.out.println("-overwrite - Overwrite output file without notice");
+  }
+
+  public static void main(String[] args) throws IOException {
+    CommandLineArguments cla = new CommandLineArguments(args);
+    Path[] paths = cla.getPaths();
+    if (paths.length < 2) {
+      printUsage();
+      throw new RuntimeException("Illegal arguments");
+    }
+    JobConf conf = new JobConf(MultiRangeQuery.class);
+    Path inputFile = paths[0];
+    Path queryFile = paths[1];
+    FileSystem fs = inputFile.getFileSystem(conf);
+    FileSystem queryFs = queryFile.getFileSystem(conf);
+    if (!fs.exists(inputFile) || !queryFs.exists(queryFile)) {
+      printUsage();
+      throw new RuntimeException("Input file does not exist");
+    }
+    Path outputPath = paths.length > 2 ? paths[2] : null;
+    Rectangle[] queries = readQueries(queryFs, queryFile);
+    if (queries.length == 0) {
+      printUsage();
+      throw new RuntimeException("No queries found in "+queryFile);
+    }
+    Shape shape = cla.getShape(true);
+
+    // Count the results of each query
+    final long[] resultCounts = new long[queries.length];
+    long t1 = System.currentTimeMillis();
+    long resultCount = multiRangeQueryMapReduce(fs, inputFile, outputPath,
+        queries, shape, new ResultCollector2<Integer, Shape>() {
+          @Override
+          public void collect(Integer queryId, Shape result) {
+            resultCounts[queryId]++;
+          }
+        }, cla.isOverwrite());
+    long t2 = System.currentTimeMillis();
+    System.out.println("Time for "+queries.length+" queries is "+(t2-t1)+" millis");
+    for (int i = 0; i < queries.length; i++)
+      System.out.println("Query #"+i+" "+queries[i]+": "+resultCounts[i]);
+    System.out.println("Result size: "+resultCount);
+  }
+}
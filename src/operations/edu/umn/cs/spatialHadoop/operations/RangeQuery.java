@@ -1,11 +1,19 @@
 package edu.umn.cs.spatialHadoop.operations;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -14,18 +22,23 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.ClusterStatus;
 import org.apache.hadoop.mapred.Counters;
 import org.apache.hadoop.mapred.Counters.Counter;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputSplit;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.RunningJob;
 import org.apache.hadoop.mapred.Task;
 import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.mapred.lib.NullOutputFormat;
 import org.apache.hadoop.mapred.spatial.BlockFilter;
 import org.apache.hadoop.mapred.spatial.RTreeInputFormat;
 import org.apache.hadoop.mapred.spatial.RangeFilter;
+import org.apache.hadoop.mapred.spatial.ResultStreamServer;
 import org.apache.hadoop.mapred.spatial.ShapeInputFormat;
 import org.apache.hadoop.mapred.spatial.ShapeRecordReader;
 import org.apache.hadoop.spatial.CellInfo;
@@ -55,6 +68,11 @@ public class RangeQuery {
   public static final String QUERY_SHAPE =
       "edu.umn.cs.spatialHadoop.operations.RangeQuery.QueryShape";
   
+  /**Counters of how range queries are executed*/
+  public static enum QueryExecution {
+    LOCAL_QUERIES, MAPREDUCE_QUERIES, SELECTED_BLOCKS, SELECTED_BYTES
+  };
+  
   /**
    * The map function used for range query
    * @author eldawy
@@ -64,6 +82,12 @@ public class RangeQuery {
   public static class RangeQueryMap<T extends Shape> extends MapReduceBase {
     /**A shape that is used to filter input*/
     private Shape queryShape;
+    
+    /**MBR of the query shape*/
+    private final Rectangle queryMBR = new Rectangle();
+    
+    /**MBR of the current shape. Reused to avoid creating objects*/
+    private final Rectangle shapeMBR = new Rectangle();
 
     @Override
     public void configure(JobConf job) {
@@ -74,6 +98,7 @@ public class RangeQuery {
             Class.forName(queryShapeClassName).asSubclass(Shape.class);
         queryShape = queryShapeClass.newInstance();
         queryShape.fromText(new Text(job.get(QUERY_SHAPE)));
+        queryShape.getMBR(queryMBR);
       } catch (ClassNotFoundException e) {
         e.printStackTrace();
       } catch (InstantiationException e) {
@@ -98,9 +123,8 @@ public class RangeQuery {
           report_result = true;
         } else {
           // Check for duplicate avoidance using reference point technique
-          Rectangle intersection =
-              queryShape.getMBR().getIntersection(shape.getMBR());
-          report_result = cellInfo.contains(intersection.x, intersection.y);
+          report_result = cellInfo.containsReferencePoint(queryMBR,
+              shape.getMBR(shapeMBR));
         }
         if (report_result)
           output.collect(dummy, shape);
@@ -126,9 +150,8 @@ public class RangeQuery {
               report_result = true;
             } else {
               // Check for duplicate avoidance using reference point technique
-              Rectangle intersection =
-                  queryShape.getMBR().getIntersection(shape.getMBR());
-              report_result = cellInfo.contains(intersection.x, intersection.y);
+              report_result = cellInfo.containsReferencePoint(queryMBR,
+                  shape.getMBR(shapeMBR));
             }
             if (report_result)
               output.collect(dummy, shape);
@@ -155,30 +178,26 @@ public class RangeQuery {
    * @param queryRange
    * @param shape
    * @param output
+   * @param executionCounters - if not <code>null</code>, it is updated with
+   *  the {@link QueryExecution} counters that tell whether the query ran in
+   *  this process or as a MapReduce job
    * @return
    * @throws IOException
    */
   public static long rangeQueryMapReduce(FileSystem fs, Path inputFile,
       Path userOutputPath,
-      Shape queryShape, Shape shape, ResultCollector<Shape> output,
-      boolean overwrite)
+      Shape queryShape, final Shape shape,
+      final ResultCollector<Shape> output, boolean overwrite,
+      Counters executionCounters)
       throws IOException {
     JobConf job = new JobConf(FileMBR.class);
     
     FileSystem outFs = inputFile.getFileSystem(job);
-    Path outputPath = userOutputPath;
-    if (outputPath == null) {
-      do {
-        outputPath = new Path("/"+inputFile.getName()+
-            ".rangequery_"+(int)(Math.random() * 1000000));
-      } while (outFs.exists(outputPath));
-    } else {
-      if (outFs.exists(outputPath)) {
-        if (overwrite) {
-          outFs.delete(outputPath, true);
-        } else {
-          throw new RuntimeException("Output path already exists and -overwrite flag is not set");
-        }
+    if (userOutputPath != null && outFs.exists(userOutputPath)) {
+      if (overwrite) {
+        outFs.delete(userOutputPath, true);
+      } else {
+        throw new RuntimeException("Output path already exists and -overwrite flag is not set");
       }
     }
     
@@ -194,19 +213,23 @@ public class RangeQuery {
     job.setMapOutputValueClass(shape.getClass());
     // Decide which map function to use depending on how blocks are indexed
     // And also which input format to use
-    FSDataInputStream in = fs.open(inputFile);
-    if (in.readLong() == SpatialSite.RTreeFileMarker) {
+    long marker = SpatialSite.readBlockMarker(fs, inputFile);
+    if (marker == SpatialSite.RTreeFileMarker ||
+        marker == SpatialSite.RTreeBinaryFileMarker) {
       // RTree indexed file
       LOG.info("Searching an RTree indexed file");
       job.setMapperClass(Map2.class);
       job.setInputFormat(RTreeInputFormat.class);
+      // Let the record reader fetch only the leaves that overlap the query
+      RangeFilter.setPushDown(job, true);
     } else {
       // A file with no local index
       LOG.info("Searching a non local-indexed file");
       job.setMapperClass(Map1.class);
       job.setInputFormat(ShapeInputFormat.class);
+      // Let the record reader skip records that are far from the query
+      RangeFilter.setPushDown(job, true);
     }
-    in.close();
 
     // Set query range for the map function
     job.set(QUERY_SHAPE_CLASS, queryShape.getClass().getName());
@@ -218,18 +241,83 @@ public class RangeQuery {
     job.setOutputFormat(TextOutputFormat.class);
     
     ShapeInputFormat.setInputPaths(job, inputFile);
-    TextOutputFormat.setOutputPath(job, outputPath);
+    
+    // Estimate the cost of the query from the blocks that the filter selects
+    // from the global index. Splits are created only if the query runs in
+    // this process as the job client creates its own splits on submission.
+    final Vector<BlockLocation> selectedBlocks = new Vector<BlockLocation>();
+    BlockFilter blockFilter = new RangeFilter();
+    blockFilter.configure(job);
+    blockFilter.selectBlocks(fs.getGlobalIndex(fs.getFileStatus(inputFile)),
+        new ResultCollector<BlockLocation>() {
+      @Override
+      public void collect(BlockLocation block) {
+        selectedBlocks.add(block);
+      }
+    });
+    long selectedSize = 0;
+    for (BlockLocation block : selectedBlocks)
+      selectedSize += block.getLength();
+    if (executionCounters == null)
+      executionCounters = new Counters();
+    executionCounters.incrCounter(QueryExecution.SELECTED_BLOCKS,
+        selectedBlocks.size());
+    executionCounters.incrCounter(QueryExecution.SELECTED_BYTES, selectedSize);
+    long maxLocalSize =
+        job.getLong(SpatialSite.LOCAL_EXECUTION_MAX_SIZE, 256 * 1024 * 1024);
+    int maxLocalBlocks = job.getInt(SpatialSite.LOCAL_EXECUTION_MAX_BLOCKS, 8);
+    if (selectedSize <= maxLocalSize && selectedBlocks.size() <= maxLocalBlocks) {
+      LOG.info("Running the query locally as it selects "+selectedBlocks.size()+
+          " blocks of "+selectedSize+" bytes which is within the limits of "+
+          maxLocalBlocks+" blocks and "+maxLocalSize+" bytes");
+      executionCounters.incrCounter(QueryExecution.LOCAL_QUERIES, 1);
+      InputSplit[] splits = new InputSplit[selectedBlocks.size()];
+      for (int i = 0; i < splits.length; i++) {
+        BlockLocation block = selectedBlocks.get(i);
+        splits[i] = new FileSplit(inputFile, block.getOffset(),
+            block.getLength(), block.getHosts());
+      }
+      return rangeQueryLocal(job, splits, userOutputPath, output);
+    }
+    LOG.info("Submitting a job as the query selects "+selectedBlocks.size()+
+        " blocks of "+selectedSize+" bytes which exceeds the limits of "+
+        maxLocalBlocks+" blocks or "+maxLocalSize+" bytes");
+    executionCounters.incrCounter(QueryExecution.MAPREDUCE_QUERIES, 1);
+    
+    ResultStreamServer resultServer = null;
+    if (userOutputPath != null) {
+      TextOutputFormat.setOutputPath(job, userOutputPath);
+    } else if (output != null) {
+      // Stream results to the collector without writing them to files
+      resultServer = new ResultStreamServer(new ResultCollector<Text>() {
+        @Override
+        public void collect(Text line) {
+          shape.fromText(line);
+          output.collect(shape);
+        }
+      });
+      resultServer.configure(job);
+    } else {
+      // Only the number of results is needed
+      job.setOutputFormat(NullOutputFormat.class);
+    }
     
     // Submit the job
-    RunningJob runningJob = JobClient.runJob(job);
+    RunningJob runningJob;
+    try {
+      runningJob = JobClient.runJob(job);
+    } finally {
+      if (resultServer != null)
+        resultServer.close();
+    }
     Counters counters = runningJob.getCounters();
     Counter outputRecordCounter = counters.findCounter(Task.Counter.MAP_OUTPUT_RECORDS);
     final long resultCount = outputRecordCounter.getValue();
     
-    // Read job result
-    if (output != null) {
+    // Read job result if it was written to files
+    if (output != null && userOutputPath != null) {
       Text line = new Text();
-      FileStatus[] results = outFs.listStatus(outputPath);
+      FileStatus[] results = outFs.listStatus(userOutputPath);
       for (FileStatus fileStatus : results) {
         if (fileStatus.getLen() > 0
             && fileStatus.getPath().getName().startsWith("part-")) {
@@ -245,14 +333,91 @@ public class RangeQuery {
         }
       }
     }
-    
-    // If outputPath not set by user, automatically delete it
-    if (userOutputPath == null)
-      outFs.delete(outputPath, true);
 
     return resultCount;
   }
   
+  /**
+   * Runs the map function of a range query over the given splits in this
+   * process using a pool of threads instead of submitting a job. The job
+   * should be configured as it would be submitted.
+   * @param job - the configured job of the query
+   * @param splits - splits selected by the input format of the job
+   * @param outputPath - a directory to write the results to. If
+   *  <code>null</code>, results are not written to a file.
+   * @param output - results are sent to this collector. Might be
+   *  <code>null</code>
+   * @return number of results found
+   * @throws IOException
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  private static long rangeQueryLocal(final JobConf job, InputSplit[] splits,
+      Path outputPath, final ResultCollector<Shape> output) throws IOException {
+    final FSDataOutputStream outFile = outputPath == null ? null :
+      outputPath.getFileSystem(job).create(new Path(outputPath, "part-00000"));
+    final AtomicLong resultCount = new AtomicLong();
+    // Results of all threads go through one collector
+    final OutputCollector<NullWritable, Shape> collector =
+        new OutputCollector<NullWritable, Shape>() {
+      private final Text line = new Text();
+      
+      @Override
+      public synchronized void collect(NullWritable dummy, Shape result)
+          throws IOException {
+        resultCount.incrementAndGet();
+        if (output != null)
+          output.collect(result);
+        if (outFile != null) {
+          line.clear();
+          result.toText(line);
+          outFile.write(line.getBytes(), 0, line.getLength());
+          outFile.write('\n');
+        }
+      }
+    };
+    final boolean rtreeBlocks = job.getMapperClass() == Map2.class;
+    int numThreads = Math.max(1, Math.min(splits.length,
+        Runtime.getRuntime().availableProcessors()));
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    Vector<Future<?>> tasks = new Vector<Future<?>>();
+    for (final InputSplit split : splits) {
+      tasks.add(executor.submit(new Callable<Object>() {
+        @Override
+        public Object call() throws IOException {
+          RecordReader reader = job.getInputFormat().getRecordReader(split,
+              job, Reporter.NULL);
+          RangeQueryMap mapper = rtreeBlocks ? new Map2() : new Map1();
+          mapper.configure(job);
+          Object key = reader.createKey();
+          Object value = reader.createValue();
+          while (reader.next(key, value)) {
+            if (rtreeBlocks)
+              mapper.map((CellInfo) key, (RTree) value, collector, Reporter.NULL);
+            else
+              mapper.map((CellInfo) key, (Shape) value, collector, Reporter.NULL);
+          }
+          reader.close();
+          return null;
+        }
+      }));
+    }
+    try {
+      for (Future<?> task : tasks)
+        task.get();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while running the query");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+      if (outFile != null)
+        outFile.close();
+    }
+    return resultCount.get();
+  }
+  
   /**
    * Runs a range query on the local machine by iterating over the whole file.
    * @param fs - FileSystem that contains input file
@@ -270,9 +435,12 @@ public class RangeQuery {
     long file_size = fs.getFileStatus(file).getLen();
     ShapeRecordReader<S> shapeReader =
         new ShapeRecordReader<S>(fs.open(file), 0, file_size);
+    shapeReader.setPushedDownQuery(queryRange);
 
     long resultCount = 0;
     CellInfo cell = shapeReader.createKey();
+    Rectangle queryMBR = queryRange.getMBR();
+    Rectangle shapeMBR = new Rectangle();
 
     while (shapeReader.next(cell, shape)) {
       if (shape.isIntersected(queryRange)) {
@@ -281,9 +449,8 @@ public class RangeQuery {
           report_result = true;
         } else {
           // Check for duplicate avoidance
-          Rectangle intersection_mbr =
-              queryRange.getMBR().getIntersection(shape.getMBR());
-          report_result = cell.contains(intersection_mbr.x, intersection_mbr.y);
+          report_result = cell.containsReferencePoint(queryMBR,
+              shape.getMBR(shapeMBR));
         }
         if (report_result) {
           resultCount++;
@@ -332,6 +499,8 @@ public class RangeQuery {
     final boolean overwrite = cla.isOverwrite();
 
     final Vector<Long> results = new Vector<Long>();
+    // Counters are synchronized so all query threads can update them
+    final Counters executionCounters = new Counters();
     
     if (ratio >= 0.0 && ratio <= 1.0f) {
       final Rectangle queryMBR = queryRange != null?
@@ -356,7 +525,7 @@ public class RangeQuery {
                 int thread_i = threads.indexOf(this);
                 long result_count = rangeQueryMapReduce(fs, inputFile, outputPath,
                     query_rectangles.elementAt(thread_i), stockShape,
-                    null, overwrite);
+                    null, overwrite, executionCounters);
                 results.add(result_count);
               } catch (IOException e) {
                 e.printStackTrace();
@@ -397,9 +566,13 @@ public class RangeQuery {
       System.out.println("Result size: "+results);
     } else {
       long resultCount = 
-          rangeQueryMapReduce(fs, inputFile, outputPath, queryRange, stockShape, null, overwrite);
+          rangeQueryMapReduce(fs, inputFile, outputPath, queryRange, stockShape, null, overwrite,
+              executionCounters);
       System.out.println("Result size: "+resultCount);
     }
-    
+    System.out.println("Queries run locally: "+
+        executionCounters.getCounter(QueryExecution.LOCAL_QUERIES)+
+        ", as MapReduce jobs: "+
+        executionCounters.getCounter(QueryExecution.MAPREDUCE_QUERIES));
   }
 }
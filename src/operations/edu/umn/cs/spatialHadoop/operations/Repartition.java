@@ -1,8 +1,15 @@
 package edu.umn.cs.spatialHadoop.operations;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.Iterator;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -23,12 +30,16 @@ import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.spatial.ColumnarGridOutputFormat;
+import org.apache.hadoop.mapred.spatial.ColumnarGridRecordWriter;
 import org.apache.hadoop.mapred.spatial.GridOutputFormat;
 import org.apache.hadoop.mapred.spatial.GridRecordWriter;
 import org.apache.hadoop.mapred.spatial.RTreeGridOutputFormat;
 import org.apache.hadoop.mapred.spatial.RTreeGridRecordWriter;
 import org.apache.hadoop.mapred.spatial.ShapeInputFormat;
 import org.apache.hadoop.mapred.spatial.ShapeRecordReader;
+import org.apache.hadoop.spatial.BlockStatistics;
+import org.apache.hadoop.spatial.CellIndex;
 import org.apache.hadoop.spatial.CellInfo;
 import org.apache.hadoop.spatial.GridInfo;
 import org.apache.hadoop.spatial.Point;
@@ -56,8 +67,11 @@ public class Repartition {
    */
   public static class RepartitionMap<T extends Shape> extends MapReduceBase
       implements Mapper<CellInfo, T, IntWritable, Text> {
-    /**List of cells used by the mapper*/
-    private CellInfo[] cellInfos;
+    /**Finds the cells that overlap each shape*/
+    private CellIndex cellIndex;
+    
+    /**IDs of cells that overlap the current shape*/
+    private int[] overlappingCells;
     
     /**Used to output intermediate records*/
     private IntWritable cellId = new IntWritable();
@@ -65,10 +79,14 @@ public class Repartition {
     /**Text representation of a shape*/
     private Text shapeText = new Text();
     
+    /**MBR of the current shape. Reused to avoid creating objects*/
+    private final Rectangle shapeMBR = new Rectangle();
+    
     @Override
     public void configure(JobConf job) {
       String cellsInfoStr = job.get(GridOutputFormat.OUTPUT_CELLS);
-      cellInfos = GridOutputFormat.decodeCells(cellsInfoStr);
+      cellIndex = new CellIndex(GridOutputFormat.decodeCells(cellsInfoStr));
+      overlappingCells = new int[cellIndex.getCellCount()];
       super.configure(job);
     }
     
@@ -88,11 +106,11 @@ public class Repartition {
 
       shapeText.clear();
       shape.toText(shapeText);
-      for (int cellIndex = 0; cellIndex < cellInfos.length; cellIndex++) {
-        if (cellInfos[cellIndex].isIntersected(shape)) {
-          cellId.set((int) cellInfos[cellIndex].cellId);
-          output.collect(cellId, shapeText);
-        }
+      shape.getMBR(shapeMBR);
+      int numCells = cellIndex.search(shapeMBR, overlappingCells);
+      for (int i = 0; i < numCells; i++) {
+        cellId.set(overlappingCells[i]);
+        output.collect(cellId, shapeText);
       }
     }
   }
@@ -218,7 +236,7 @@ public class Repartition {
     // Overwrite output file
     if (outFs.exists(outPath)) {
       if (overwrite)
-        outFs.delete(outPath, true);
+        outFs.deleteWithStatistics(outPath, true);
       else
         throw new RuntimeException("Output file '" + outPath
             + "' already exists and overwrite flag is not set");
@@ -248,6 +266,8 @@ public class Repartition {
     } else if (lindex.equals("rtree")) {
       // For now, the two types of local index are the same
       job.setOutputFormat(RTreeGridOutputFormat.class);
+    } else if (lindex.equals("columnar")) {
+      job.setOutputFormat(ColumnarGridOutputFormat.class);
     } else {
       throw new RuntimeException("Unsupported local index: "+lindex);
     }
@@ -269,11 +289,18 @@ public class Repartition {
     
     // Combine all output files into one file as we do with grid files
     Vector<Path> pathsToConcat = new Vector<Path>();
+    Vector<FileStatus> concatenatedFiles = new Vector<FileStatus>();
+    Vector<BlockStatistics[]> concatenatedStats = new Vector<BlockStatistics[]>();
     FileStatus[] resultFiles = outFs.listStatus(outPath);
     for (int i = 0; i < resultFiles.length; i++) {
       FileStatus resultFile = resultFiles[i];
+      // Skip hidden files such as sidecar files of block statistics
+      if (resultFile.getPath().getName().startsWith("."))
+        continue;
       if (resultFile.getLen() > 0 &&
           resultFile.getLen() % resultFile.getBlockSize() == 0) {
+        concatenatedFiles.add(resultFile);
+        concatenatedStats.add(outFs.getBlockStatistics(resultFile));
         Path partFile = new Path(outPath.toUri().getPath()+"_"+i);
         outFs.rename(resultFile.getPath(), partFile);
         LOG.info("Rename "+resultFile.getPath()+" -> "+partFile);
@@ -281,9 +308,28 @@ public class Repartition {
       }
     }
     
+    // Compute statistics of the concatenated file where the last file is
+    // placed first
+    BlockStatistics[] stats = null;
+    if (!concatenatedFiles.isEmpty() && !concatenatedStats.contains(null)) {
+      concatenatedFiles.add(0, concatenatedFiles.remove(concatenatedFiles.size() - 1));
+      concatenatedStats.add(0, concatenatedStats.remove(concatenatedStats.size() - 1));
+      Vector<BlockStatistics> allStats = new Vector<BlockStatistics>();
+      long offset = 0;
+      for (int i = 0; i < concatenatedFiles.size(); i++) {
+        for (BlockStatistics stat : concatenatedStats.elementAt(i)) {
+          stat.setOffset(stat.getOffset() + offset);
+          allStats.add(stat);
+        }
+        offset += concatenatedFiles.elementAt(i).getLen();
+      }
+      stats = allStats.toArray(new BlockStatistics[allStats.size()]);
+    }
+    
     LOG.info("Concatenating: "+pathsToConcat+" into "+outPath);
-    if (outFs.exists(outPath))
-      outFs.delete(outPath, true);
+    // Statistics of an older file are deleted even if no new statistics
+    // are written
+    outFs.deleteWithStatistics(outPath, true);
     if (pathsToConcat.size() == 1) {
       outFs.rename(pathsToConcat.firstElement(), outPath);
     } else if (!pathsToConcat.isEmpty()) {
@@ -293,6 +339,8 @@ public class Repartition {
           pathsToConcat.toArray(new Path[pathsToConcat.size()]));
       outFs.rename(target, outPath);
     }
+    if (stats != null)
+      outFs.setBlockStatistics(outPath, stats);
   }
   
   public static <S extends Shape> CellInfo[] packInRectangles(
@@ -384,7 +432,9 @@ public class Repartition {
   }
 
   /**
-   * Repartitions a file on local machine without MapReduce jobs.
+   * Repartitions a file on local machine without MapReduce jobs. Blocks of
+   * the input file are read in parallel using one thread per available
+   * processor.
    * @param inFs
    * @param in
    * @param outFs
@@ -395,29 +445,31 @@ public class Repartition {
    * @param overwrite
    * @throws IOException 
    */
-  public static <S extends Shape> void repartitionLocal(Path in, Path out,
-      S stockShape, long blockSize, CellInfo[] cells, String lindex,
+  public static <S extends Shape> void repartitionLocal(final Path in, Path out,
+      final S stockShape, long blockSize, CellInfo[] cells, String lindex,
       boolean overwrite) throws IOException {
-    FileSystem inFs = in.getFileSystem(new Configuration());
+    final FileSystem inFs = in.getFileSystem(new Configuration());
     FileSystem outFs = out.getFileSystem(new Configuration());
     // Overwrite output file
     if (outFs.exists(out)) {
       if (overwrite)
-        outFs.delete(out, true);
+        outFs.deleteWithStatistics(out, true);
       else
         throw new RuntimeException("Output file '" + out
             + "' already exists and overwrite flag is not set");
     }
     
-    ShapeRecordWriter<Shape> writer;
+    final ShapeRecordWriter<Shape> writer;
     if (lindex == null) {
       writer = new GridRecordWriter(outFs, out, cells, overwrite);
     } else if (lindex.equals("grid") || lindex.equals("rtree")) {
       writer = new RTreeGridRecordWriter(outFs, out, cells, overwrite);
-      writer.setStockObject(stockShape);
+    } else if (lindex.equals("columnar")) {
+      writer = new ColumnarGridRecordWriter(outFs, out, cells, overwrite);
     } else {
       throw new RuntimeException("Unupoorted local idnex: "+lindex);
     }
+    writer.setStockObject(stockShape);
     
     FileStatus inFileStatus = inFs.getFileStatus(in);
     // Copy blocksize from source file if it's globally indexed
@@ -428,15 +480,51 @@ public class Repartition {
     if (blockSize != 0)
       ((GridRecordWriter)writer).setBlockSize(blockSize);
     
-    long length = inFileStatus.getLen();
-    FSDataInputStream datain = inFs.open(in);
-    ShapeRecordReader<S> reader = new ShapeRecordReader<S>(datain, 0, length);
-    CellInfo c = reader.createKey();
-    
-    NullWritable dummy = NullWritable.get();
-    
-    while (reader.next(c, stockShape)) {
-      writer.write(dummy, stockShape);
+    // Read the input file in multiple threads that write to the same
+    // writer. Each thread reads one block of the input at a time.
+    final long length = inFileStatus.getLen();
+    final long splitSize = inFileStatus.getBlockSize();
+    final int numSplits = (int) Math.max(1, (length + splitSize - 1) / splitSize);
+    final AtomicInteger nextSplit = new AtomicInteger();
+    int numThreads = Math.min(numSplits,
+        Runtime.getRuntime().availableProcessors());
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    Vector<Future<Object>> tasks = new Vector<Future<Object>>();
+    for (int i_thread = 0; i_thread < numThreads; i_thread++) {
+      tasks.add(executor.submit(new Callable<Object>() {
+        @SuppressWarnings("unchecked")
+        @Override
+        public Object call() throws IOException {
+          S shape = (S) stockShape.clone();
+          CellInfo c = new CellInfo();
+          NullWritable dummy = NullWritable.get();
+          int split;
+          while ((split = nextSplit.getAndIncrement()) < numSplits) {
+            long start = split * splitSize;
+            long end = Math.min(length, start + splitSize);
+            FSDataInputStream datain = inFs.open(in);
+            datain.seek(start);
+            ShapeRecordReader<S> reader =
+                new ShapeRecordReader<S>(datain, start, end);
+            while (reader.next(c, shape)) {
+              writer.write(dummy, shape);
+            }
+            reader.close();
+          }
+          return null;
+        }
+      }));
+    }
+    executor.shutdown();
+    try {
+      for (Future<Object> task : tasks)
+        task.get();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while repartitioning");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new RuntimeException("Error repartitioning "+in, e.getCause());
     }
     writer.close(null);
   }
@@ -448,7 +536,7 @@ public class Repartition {
     System.out.println("<output file> - (*) Path to output file");
     System.out.println("shape:<point|rectangle|polygon> - (*) Type of shapes stored in input file");
     System.out.println("global:<grid|rtree> - (*) Type of global index");
-    System.out.println("local:<grid|rtree> - Type of local index");
+    System.out.println("local:<grid|rtree|columnar> - Type of local index");
     System.out.println("mbr:<x,y,w,h> - MBR of data in input file");
     System.out.println("blocksize:<size> - Size of blocks in output file");
     System.out.println("-overwrite - Overwrite output file without noitce");
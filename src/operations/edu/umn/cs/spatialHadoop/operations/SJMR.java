@@ -4,8 +4,6 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.util.Iterator;
-import java.util.List;
-import java.util.Vector;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -33,12 +31,13 @@ import org.apache.hadoop.mapred.Task;
 import org.apache.hadoop.mapred.TextOutputFormat;
 import org.apache.hadoop.mapred.spatial.GridOutputFormat;
 import org.apache.hadoop.mapred.spatial.ShapeLineInputFormat;
+import org.apache.hadoop.spatial.CellIndex;
 import org.apache.hadoop.spatial.CellInfo;
 import org.apache.hadoop.spatial.GridInfo;
+import org.apache.hadoop.spatial.RStarTree;
 import org.apache.hadoop.spatial.Rectangle;
-import org.apache.hadoop.spatial.ResultCollector2;
+import org.apache.hadoop.spatial.ResultCollector;
 import org.apache.hadoop.spatial.Shape;
-import org.apache.hadoop.spatial.SpatialAlgorithms;
 import org.apache.hadoop.spatial.SpatialSite;
 import org.apache.hadoop.util.LineReader;
 
@@ -50,7 +49,8 @@ import edu.umn.cs.spatialHadoop.CommandLineArguments;
  * Parallelizing spatial join with MapReduce on clusters. In
  * CLUSTER, pages 1–8, New Orleans, LA, Aug. 2009.
  * The map function partitions data into grid cells and the reduce function
- * makes a plane-sweep over each cell.
+ * joins the shapes of each cell by incrementally building an in-memory
+ * R*-tree for each input.
  * @author eldawy
  *
  */
@@ -91,17 +91,23 @@ public class SJMR {
     /**List of cells used by the mapper*/
     private Shape shape;
     private IndexedText outputValue = new IndexedText();
-    private CellInfo[] cellInfos;
+    /**Finds the cells that overlap each shape*/
+    private CellIndex cellIndex;
+    /**IDs of cells that overlap the current shape*/
+    private int[] overlappingCells;
     private IntWritable cellId = new IntWritable();
     private Path[] inputFiles;
     private InputSplit currentSplit;
+    /**MBR of the current shape. Reused to avoid creating objects*/
+    private final Rectangle shapeMBR = new Rectangle();
     
     @Override
     public void configure(JobConf job) {
       super.configure(job);
       // Retrieve cells to use for partitioning
       String cellsInfoStr = job.get(GridOutputFormat.OUTPUT_CELLS);
-      cellInfos = GridOutputFormat.decodeCells(cellsInfoStr);
+      cellIndex = new CellIndex(GridOutputFormat.decodeCells(cellsInfoStr));
+      overlappingCells = new int[cellIndex.getCellCount()];
       // Create a stock shape for deserializing lines
       shape = SpatialSite.createStockShape(job);
       // Get input paths to determine file index for every record
@@ -123,12 +129,12 @@ public class SJMR {
 
       Text tempText = new Text(value);
       shape.fromText(tempText);
-      for (int cellIndex = 0; cellIndex < cellInfos.length; cellIndex++) {
-        if (cellInfos[cellIndex].isIntersected(shape)) {
-          cellId.set((int)cellInfos[cellIndex].cellId);
-          outputValue.text = value;
-          output.collect(cellId, outputValue);
-        }
+      shape.getMBR(shapeMBR);
+      int numCells = cellIndex.search(shapeMBR, overlappingCells);
+      for (int i = 0; i < numCells; i++) {
+        cellId.set(overlappingCells[i]);
+        outputValue.text = value;
+        output.collect(cellId, outputValue);
       }
     }
   }
@@ -138,16 +144,19 @@ public class SJMR {
     /**Number of files in the input*/
     private int inputFileCount;
     
-    /**List of cells used by the reducer*/
-    private CellInfo[] cellInfos;
+    /**Cells used by the reducer to find a cell by its ID*/
+    private CellIndex cellIndex;
 
     private S shape;
     
+    /**MBRs of a pair of shapes. Reused to avoid creating objects*/
+    private final Rectangle xMBR = new Rectangle(), yMBR = new Rectangle();
+    
     @Override
     public void configure(JobConf job) {
       super.configure(job);
       String cellsInfoStr = job.get(GridOutputFormat.OUTPUT_CELLS);
-      cellInfos = GridOutputFormat.decodeCells(cellsInfoStr);
+      cellIndex = new CellIndex(GridOutputFormat.decodeCells(cellsInfoStr));
       shape = (S) SpatialSite.createStockShape(job);
       inputFileCount = FileInputFormat.getInputPaths(job).length;
     }
@@ -157,40 +166,54 @@ public class SJMR {
         final OutputCollector<S, S> output, Reporter reporter)
         throws IOException {
       // Extract CellInfo (MBR) for duplicate avoidance checking
-      int i_cell = 0;
-      while (i_cell < cellInfos.length && cellInfos[i_cell].cellId != cellId.get())
-        i_cell++;
-      final CellInfo cellInfo = cellInfos[i_cell];
+      final CellInfo cellInfo = cellIndex.getCell(cellId.get());
       
-      // Partition retrieved shapes (values) into lists for each file
+      // Index shapes of each file as they arrive. Each new shape is joined
+      // with all shapes received so far from the other file so that every
+      // pair is reported exactly once without waiting for the whole cell.
       @SuppressWarnings("unchecked")
-      List<S>[] shapeLists = new List[inputFileCount];
-      for (int i = 0; i < shapeLists.length; i++) {
-        shapeLists[i] = new Vector<S>();
+      RStarTree<S>[] indexes = new RStarTree[inputFileCount];
+      for (int i = 0; i < indexes.length; i++) {
+        indexes[i] = new RStarTree<S>();
       }
       
       while (values.hasNext()) {
         IndexedText t = values.next();
-        S s = (S) shape.clone();
+        final S s = (S) shape.clone();
         s.fromText(t.text);
-        shapeLists[t.index].add(s);
-      }
-      
-      // Perform spatial join between the two lists
-      SpatialAlgorithms.SpatialJoin_planeSweep(shapeLists[0], shapeLists[1], new ResultCollector2<S, S>() {
-        @Override
-        public void collect(S x, S y) {
-          try {
-            Rectangle intersectionMBR = x.getMBR().getIntersection(y.getMBR());
-            if (cellInfo.contains(intersectionMBR.x, intersectionMBR.y)) {
-              // Report to the reduce result collector
-              output.collect(x, y);
+        if (t.index == 0) {
+          indexes[1].search(s, new ResultCollector<S>() {
+            @Override
+            public void collect(S y) {
+              reportPair(cellInfo, s, y, output);
             }
-          } catch (IOException e) {
-            e.printStackTrace();
-          }
+          });
+        } else if (t.index == 1) {
+          indexes[0].search(s, new ResultCollector<S>() {
+            @Override
+            public void collect(S x) {
+              reportPair(cellInfo, x, s, output);
+            }
+          });
         }
-      });
+        indexes[t.index].insert(s);
+      }
+    }
+    
+    /**
+     * Reports a pair of overlapping shapes only if the reference point of
+     * their intersection lies in the given cell to avoid duplicates.
+     */
+    private void reportPair(CellInfo cellInfo, S x, S y,
+        OutputCollector<S, S> output) {
+      try {
+        if (cellInfo.containsReferencePoint(x.getMBR(xMBR), y.getMBR(yMBR))) {
+          // Report to the reduce result collector
+          output.collect(x, y);
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
     }
   }
 
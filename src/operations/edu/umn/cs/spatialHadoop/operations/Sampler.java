@@ -4,6 +4,7 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.Vector;
 
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileStatus;
@@ -16,6 +17,7 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Text2;
 import org.apache.hadoop.io.TextSerializable;
 import org.apache.hadoop.mapred.ClusterStatus;
+import org.apache.hadoop.mapred.FileSplit;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
@@ -24,6 +26,7 @@ import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.TextOutputFormat;
 import org.apache.hadoop.mapred.spatial.ShapeLineInputFormat;
+import org.apache.hadoop.mapred.spatial.ShapeLineRecordReader;
 import org.apache.hadoop.spatial.CellInfo;
 import org.apache.hadoop.spatial.RTree;
 import org.apache.hadoop.spatial.ResultCollector;
@@ -278,11 +281,36 @@ public class Sampler {
         // The start and end offsets of data within this block
         // offsets are calculated relative to file start
         long data_start_offset = current_block_start_offset;
-        if (current_file_in.readLong() == SpatialSite.RTreeFileMarker) {
+        long marker = current_file_in.readLong();
+        if (marker == SpatialSite.ColumnarFileMarker ||
+            marker == SpatialSite.CompressedFileMarker) {
+          // Records of this block are not stored as lines. Decode the block
+          // and map each position to a record of it
+          Vector<Text> records = readDecodedBlock(fs, files[file_i],
+              current_block_start_offset,
+              Math.min(current_file_size, current_block_end_offset));
+          while (record_i < count &&
+              offsets[record_i] < current_block_end_offset) {
+            if (!records.isEmpty()) {
+              int record_index = (int) ((offsets[record_i] -
+                  current_block_start_offset) * records.size() / current_block_size);
+              if (output != null) {
+                stockObject.fromText(new Text(records.get(record_index)));
+                output.collect(stockObject);
+              }
+              records_returned++;
+            }
+            record_i++;
+          }
+          continue;
+        }
+        if (marker == SpatialSite.RTreeFileMarker ||
+            marker == SpatialSite.RTreeBinaryFileMarker) {
           // This block is an RTree block. Update the start offset to point
           // to the first byte after the header
           data_start_offset =
-              current_block_start_offset + RTree.getHeaderSize(current_file_in);
+              current_block_start_offset + RTree.getHeaderSize(current_file_in,
+                  marker == SpatialSite.RTreeBinaryFileMarker);
         } 
         // Get the end offset of data by searching for the last non-empty line
         // We perform an exponential search starting from the last offset in
@@ -426,14 +454,47 @@ public class Sampler {
             SpatialSite.RTreeFileMarkerB[i] == block_data[i]) {
           i++;
         }
+        boolean rtree = i == SpatialSite.RTreeFileMarkerB.length;
+        
+        // Check if this block is a binary RTree
+        i = 0;
+        while (i < SpatialSite.RTreeBinaryFileMarkerB.length &&
+            SpatialSite.RTreeBinaryFileMarkerB[i] == block_data[i]) {
+          i++;
+        }
+        boolean binaryRTree = i == SpatialSite.RTreeBinaryFileMarkerB.length;
+
+        if (startsWith(block_data, SpatialSite.ColumnarFileMarkerB) ||
+            startsWith(block_data, SpatialSite.CompressedFileMarkerB)) {
+          // Records of this block are not stored as lines. Decode the block
+          // and map each position to a record of it
+          Vector<Text> records = readDecodedBlock(fs, files[file_i],
+              current_block_start_offset, current_block_end_offset);
+          while (record_i < count &&
+              offsets[record_i] < current_block_end_offset) {
+            if (!records.isEmpty()) {
+              int record_index = (int) ((offsets[record_i] -
+                  current_block_start_offset) * records.size() / current_block_size);
+              if (output != null) {
+                line.set(records.get(record_index));
+                stockObject.fromText(line);
+                output.collect(stockObject);
+              }
+              records_returned++;
+            }
+            record_i++;
+          }
+          continue;
+        }
 
         // If RTree, update data_start_offset to point right after the index
-        if (i == SpatialSite.RTreeFileMarkerB.length) {
+        if (rtree || binaryRTree) {
           DataInputStream temp_is =
               new DataInputStream(new MemoryInputStream(block_data));
           // This block is an RTree block. Update the start offset to point
-          // to the first byte after the header
-          data_start_offset = RTree.getHeaderSize(temp_is);
+          // to the first byte after the header. For binary RTrees, this
+          // skips the records as well so that only the text is sampled.
+          data_start_offset = RTree.getHeaderSize(temp_is, binaryRTree);
         } 
         // Get the end offset of data by searching for the last non-empty line
         // We perform an exponential search starting from the last offset in
@@ -503,6 +564,41 @@ public class Sampler {
     return records_returned;
   }
 
+  /**
+   * Checks whether the given data starts with the given marker
+   */
+  private static boolean startsWith(byte[] data, byte[] marker) {
+    for (int i = 0; i < marker.length; i++)
+      if (data[i] != marker[i])
+        return false;
+    return true;
+  }
+
+  /**
+   * Reads all records of a block that does not store its records as lines
+   * of text, e.g., a columnar or a compressed block. The block is decoded
+   * by the same record reader used to process it in MapReduce jobs.
+   * @param fs
+   * @param file
+   * @param blockStart - offset of the start of the block in the file
+   * @param blockEnd - offset of the end of the block in the file
+   * @return - text of all records of the block
+   * @throws IOException
+   */
+  private static Vector<Text> readDecodedBlock(FileSystem fs, Path file,
+      long blockStart, long blockEnd) throws IOException {
+    FileSplit split = new FileSplit(file, blockStart, blockEnd - blockStart,
+        new String[0]);
+    ShapeLineRecordReader reader =
+        new ShapeLineRecordReader(fs.getConf(), split);
+    Vector<Text> records = new Vector<Text>();
+    CellInfo cell = reader.createKey();
+    Text line = reader.createValue();
+    while (reader.next(cell, line))
+      records.add(new Text(line));
+    reader.close();
+    return records;
+  }
   
   public static void main(String[] args) throws IOException {
     CommandLineArguments cla = new CommandLineArguments(args);
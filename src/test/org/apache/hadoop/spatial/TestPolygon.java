@@ -0,0 +1,112 @@
+package org.apache.hadoop.spatial;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the exact intersection tests of {@link Polygon} and {@link Circle}.
+ * Two shapes intersect only if their interiors overlap so shapes that only
+ * touch along an edge or at a corner do not intersect.
+ * @author eldawy
+ *
+ */
+public class TestPolygon extends TestCase {
+
+  /**A square with the corners (0,0) and (10,10)*/
+  private static Polygon square() {
+    return square(0, 0, 10, 10);
+  }
+
+  /**An axis aligned polygon with the given corners in CCW order*/
+  private static Polygon square(int x1, int y1, int x2, int y2) {
+    return new Polygon(new int[] {x1, x2, x2, x1}, new int[] {y1, y1, y2, y2},
+        4);
+  }
+
+  /**Tests the intersection of two shapes in both directions*/
+  private static void assertIntersected(boolean expected, Shape s1, Shape s2) {
+    assertEquals(expected, s1.isIntersected(s2));
+    assertEquals(expected, s2.isIntersected(s1));
+  }
+
+  public void testRectangleTouchingEdge() {
+    assertIntersected(false, square(), new Rectangle(10, 2, 5, 5));
+    assertIntersected(false, square(), new Rectangle(2, -5, 5, 5));
+  }
+
+  public void testRectangleTouchingCorner() {
+    assertIntersected(false, square(), new Rectangle(10, 10, 5, 5));
+    assertIntersected(false, square(), new Rectangle(-5, -5, 5, 5));
+    // A triangle that touches the corner of the rectangle with its diagonal
+    Polygon triangle = new Polygon(new int[] {0, 10, 0},
+        new int[] {0, 0, 10}, 3);
+    assertIntersected(false, triangle, new Rectangle(5, 5, 4, 4));
+    assertIntersected(false, triangle, new Rectangle(6, 6, 4, 4));
+    assertIntersected(true, triangle, new Rectangle(4, 4, 4, 4));
+  }
+
+  public void testRectangleOverlapping() {
+    assertIntersected(true, square(), new Rectangle(5, 5, 10, 10));
+    // No vertex of any of the two shapes is inside the other one
+    assertIntersected(true, square(), new Rectangle(-5, 4, 20, 2));
+  }
+
+  public void testRectangleContainment() {
+    assertIntersected(true, square(), new Rectangle(2, 2, 3, 3));
+    assertIntersected(true, square(), new Rectangle(-5, -5, 20, 20));
+    assertIntersected(true, square(), new Rectangle(0, 0, 10, 10));
+  }
+
+  public void testPolygonTouchingEdge() {
+    assertIntersected(false, square(), square(10, 0, 20, 10));
+    assertIntersected(false, square(), square(10, 2, 20, 5));
+    // A triangle with one vertex on the right edge of the square
+    Polygon triangle = new Polygon(new int[] {10, 20, 20},
+        new int[] {5, 0, 10}, 3);
+    assertIntersected(false, square(), triangle);
+  }
+
+  public void testPolygonTouchingCorner() {
+    assertIntersected(false, square(), square(10, 10, 20, 20));
+    assertIntersected(false, square(), square(-10, 10, 0, 20));
+  }
+
+  public void testPolygonOverlapping() {
+    assertIntersected(true, square(), square(5, 5, 15, 15));
+    // A cross where no vertex is inside the other polygon
+    assertIntersected(true, square(), square(-5, 4, 15, 6));
+  }
+
+  public void testPolygonContainment() {
+    assertIntersected(true, square(), square(2, 2, 5, 5));
+    // Contained polygons that share a side or the whole boundary
+    assertIntersected(true, square(), square(0, 0, 5, 10));
+    assertIntersected(true, square(), square());
+    // Same square with points in clockwise order
+    Polygon clockwise = new Polygon(new int[] {0, 0, 10, 10},
+        new int[] {0, 10, 10, 0}, 4);
+    assertIntersected(true, square(), clockwise);
+    assertIntersected(false, clockwise, square(10, 0, 20, 10));
+  }
+
+  public void testCircleNearVertex() {
+    // The MBR of the circle overlaps the square but the circle does not
+    assertIntersected(false, square(), new Circle(13, 13, 4));
+    assertIntersected(true, square(), new Circle(13, 13, 5));
+    assertIntersected(false, new Rectangle(0, 0, 10, 10), new Circle(13, 13, 4));
+    assertIntersected(true, new Rectangle(0, 0, 10, 10), new Circle(13, 13, 5));
+  }
+
+  public void testCircleTouchingEdge() {
+    assertIntersected(false, square(), new Circle(15, 5, 5));
+    assertIntersected(true, square(), new Circle(15, 5, 5.5));
+    assertIntersected(false, new Rectangle(0, 0, 10, 10), new Circle(15, 5, 5));
+    assertIntersected(false, new Circle(0, 0, 5), new Circle(10, 0, 5));
+    assertIntersected(true, new Circle(0, 0, 5), new Circle(9, 0, 5));
+  }
+
+  public void testCircleContainment() {
+    assertIntersected(true, square(), new Circle(5, 5, 1));
+    assertIntersected(true, square(), new Circle(5, 5, 100));
+    assertIntersected(true, new Rectangle(0, 0, 10, 10), new Circle(5, 5, 1));
+  }
+}